@@ -0,0 +1,53 @@
+package com.thingworx.extensions.http;
+
+import java.util.concurrent.TimeUnit;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Construction of a client, which the services did on every call before
+ * clients were pooled.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ClientBenchmark {
+  @Param({ "false", "true" })
+  public boolean ignoreSSLErrors;
+
+  @Benchmark
+  public void createHttpClient(Blackhole blackhole) throws Exception {
+    try (
+      CloseableHttpClient client = HttpClientUtilities.createHttpClient(
+        "user",
+        "password",
+        ignoreSSLErrors,
+        60.0D,
+        false,
+        null,
+        null,
+        false,
+        null,
+        null,
+        null,
+        null,
+        null
+      )
+    ) {
+      blackhole.consume(client);
+    }
+  }
+}
@@ -0,0 +1,87 @@
+package com.thingworx.extensions.http;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.cookie.Cookie;
+import org.apache.http.entity.mime.MultipartEntityBuilder;
+import org.apache.http.impl.cookie.BasicClientCookie;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Request preparation: headers, cookies and multipart bodies. The multipart
+ * benchmark adds the parts the same way infoTableToMultipart does for each
+ * row, since InfoTables cannot be created outside the platform.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RequestBenchmark {
+  @Param({ "1", "10", "50" })
+  public int count;
+
+  private JSONObject headers;
+  private List<Cookie> cookies;
+  private List<String> fieldNames;
+  private String[][] rows;
+
+  @Setup
+  public void setup() throws Exception {
+    headers = new JSONObject();
+    cookies = new ArrayList<>();
+    fieldNames = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      headers.put("X-Header-" + i, "value-" + i);
+      cookies.add(new BasicClientCookie("cookie" + i, "value" + i));
+      fieldNames.add("field" + i);
+    }
+
+    rows = new String[count][count];
+    for (int row = 0; row < count; row++) {
+      for (int field = 0; field < count; field++) {
+        rows[row][field] = "row " + row + " field " + field;
+      }
+    }
+  }
+
+  @Benchmark
+  public HttpPost addHeaders() throws Exception {
+    HttpPost post = new HttpPost("http://localhost/");
+    HttpClientUtilities.addHeaders(post, headers);
+    return post;
+  }
+
+  @Benchmark
+  public String cookiesToString() {
+    return HttpClientUtilities.cookiesToString(cookies);
+  }
+
+  @Benchmark
+  public int infoTableToMultipart() throws Exception {
+    MultipartEntityBuilder builder = MultipartEntityBuilder.create();
+    for (String[] values : rows) {
+      HttpClientUtilities.addTextParts(builder, fieldNames, values);
+    }
+    HttpEntity entity = builder.build();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    entity.writeTo(out);
+    return out.size();
+  }
+}
@@ -0,0 +1,42 @@
+package com.thingworx.extensions.http;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building an SSL context from a PKCS12 client certificate. The certificate
+ * is read from the certs folder, so the benchmark must run from the project
+ * directory.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SslContextBenchmark {
+  @Param({ "certs/certificate.p12" })
+  public String certFile;
+
+  @Param({ "" })
+  public String certPass;
+
+  @Benchmark
+  public SSLContext createSSLContext() throws Exception {
+    try (InputStream certStream = new FileInputStream(certFile)) {
+      return SslContextCache.createSSLContext(certStream, certPass);
+    }
+  }
+}
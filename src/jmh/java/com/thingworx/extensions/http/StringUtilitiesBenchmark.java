@@ -0,0 +1,59 @@
+package com.thingworx.extensions.http;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decoding of response bodies into strings.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StringUtilitiesBenchmark {
+  @Param({ "1024", "65536", "1048576" })
+  public int payloadSize;
+
+  private byte[] payload;
+
+  @Setup
+  public void setup() {
+    StringBuilder body = new StringBuilder(payloadSize);
+    while (body.length() < payloadSize) {
+      body.append("{\"name\":\"value\",\"text\":\"caf\u00e9\"},");
+    }
+    body.setLength(payloadSize);
+    payload = body.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Benchmark
+  public String readFromStream() throws Exception {
+    return StringUtilities.readFromStream(
+      new ByteArrayInputStream(payload),
+      true
+    );
+  }
+
+  @Benchmark
+  public String readFromEntity() throws Exception {
+    return StringUtilities.readFromEntity(
+      new ByteArrayEntity(payload, ContentType.APPLICATION_JSON)
+    );
+  }
+}
@@ -0,0 +1,324 @@
+package com.thingworx.extensions.http.loadtest;
+
+import com.thingworx.extensions.http.HttpClientPool;
+import com.thingworx.extensions.http.HttpClientUtilities;
+import com.thingworx.extensions.http.SslContextCache;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.InputStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import javax.net.ssl.SSLContext;
+import org.apache.http.conn.ssl.NoopHostnameVerifier;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Drives the services against a local stub server and reports, per scheme
+ * and service, the throughput, the latency percentiles and the allocation
+ * rate of the calling threads.
+ *
+ * Options are given as key=value arguments, see DEFAULTS. The results are
+ * printed and written as json to the output file.
+ */
+public class LoadHarness {
+  private static final Map<String, String> DEFAULTS = new HashMap<>();
+
+  static {
+    DEFAULTS.put("schemes", "http,https");
+    DEFAULTS.put(
+      "services",
+      "GetJSON,PostJSON,GetBlob,PostMultipartMultipleFiles"
+    );
+    DEFAULTS.put("concurrency", "16");
+    DEFAULTS.put("warmup", "5");
+    DEFAULTS.put("duration", "20");
+    DEFAULTS.put("latency", "0");
+    DEFAULTS.put("payload", "16384");
+    DEFAULTS.put("files", "2");
+    DEFAULTS.put("serverThreads", "64");
+    DEFAULTS.put("cert", "certs/certificate.p12");
+    DEFAULTS.put("certPass", "");
+    DEFAULTS.put("output", "build/reports/loadtest/results.json");
+  }
+
+  private final Map<String, String> options;
+  private final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+  /**
+   * What one worker thread measured during a run.
+   */
+  private static final class WorkerResult {
+    private long[] latencies = new long[1024];
+    private int count;
+    private long errors;
+    private long allocatedBytes;
+
+    private void record(long latency) {
+      if (count == latencies.length) {
+        latencies = Arrays.copyOf(latencies, count * 2);
+      }
+      latencies[count++] = latency;
+    }
+  }
+
+  public LoadHarness(Map<String, String> options) {
+    this.options = options;
+  }
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = new HashMap<>(DEFAULTS);
+    for (String arg : args) {
+      int separator = arg.indexOf('=');
+      if (separator < 0 || !DEFAULTS.containsKey(arg.substring(0, separator))) {
+        throw new IllegalArgumentException(
+          "Unknown option [" + arg + "], known options: " + DEFAULTS.keySet()
+        );
+      }
+      options.put(arg.substring(0, separator), arg.substring(separator + 1));
+    }
+    new LoadHarness(options).run();
+  }
+
+  public void run() throws Exception {
+    int concurrency = getInt("concurrency");
+    int payloadSize = getInt("payload");
+    LoadService.Payload payload = new LoadService.Payload(
+      payloadSize,
+      getInt("files")
+    );
+    JSONArray results = new JSONArray();
+
+    try (
+      StubServer server = new StubServer(
+        getInt("latency"),
+        payloadSize,
+        getInt("serverThreads")
+      );
+      HttpClientPool pool = new HttpClientPool()
+    ) {
+      server.start(options.get("cert"), options.get("certPass"));
+      pool.setLimits(concurrency * 2, concurrency);
+
+      System.out.printf(
+        "%-6s %-27s %10s %8s %10s %9s %9s %9s %12s %10s%n",
+        "scheme",
+        "service",
+        "requests",
+        "errors",
+        "req/s",
+        "p50 ms",
+        "p99 ms",
+        "p999 ms",
+        "bytes/req",
+        "MB/s alloc"
+      );
+      for (String scheme : options.get("schemes").split(",")) {
+        CloseableHttpClient client = getClient(pool, scheme.trim());
+        String baseUrl = "https".equals(scheme.trim())
+          ? server.getHttpsUrl()
+          : server.getHttpUrl();
+        for (String name : options.get("services").split(",")) {
+          LoadService service = LoadService.valueOf(name.trim());
+          runPhase(client, baseUrl, service, payload, getInt("warmup"));
+          JSONObject result = report(
+            scheme.trim(),
+            service,
+            runPhase(client, baseUrl, service, payload, getInt("duration")),
+            getInt("duration")
+          );
+          results.put(result);
+        }
+      }
+    }
+
+    JSONObject report = new JSONObject();
+    report.put("options", new JSONObject(options));
+    report.put("results", results);
+    File output = new File(options.get("output"));
+    if (output.getParentFile() != null) {
+      output.getParentFile().mkdirs();
+    }
+    try (Writer writer = new FileWriter(output)) {
+      writer.write(report.toString(2));
+    }
+    System.out.println("Results written to " + output.getPath());
+  }
+
+  private CloseableHttpClient getClient(HttpClientPool pool, String scheme)
+    throws Exception {
+    final SSLContext sslContext;
+    if ("https".equals(scheme)) {
+      try (InputStream certStream = new FileInputStream(options.get("cert"))) {
+        sslContext =
+          SslContextCache.createSSLContext(certStream, options.get("certPass"));
+      }
+    } else if ("http".equals(scheme)) {
+      sslContext = null;
+    } else {
+      throw new IllegalArgumentException("Unknown scheme [" + scheme + "]");
+    }
+
+    return pool.getClient(
+      new HttpClientPool.ClientKey(scheme),
+      new HttpClientPool.ClientFactory() {
+
+        @Override
+        public SSLConnectionSocketFactory createSSLSocketFactory() {
+          if (sslContext == null) {
+            return null;
+          }
+          return new SSLConnectionSocketFactory(
+            sslContext,
+            NoopHostnameVerifier.INSTANCE
+          );
+        }
+
+        @Override
+        public HttpClientBuilder createClientBuilder() {
+          return HttpClientUtilities.createHttpClientBuilder(
+            null,
+            null,
+            60.0D,
+            false,
+            null,
+            null,
+            false,
+            null,
+            null,
+            null
+          );
+        }
+      }
+    );
+  }
+
+  /**
+   * Calls the service from the configured number of threads, as fast as
+   * possible, for the given number of seconds.
+   */
+  private List<WorkerResult> runPhase(
+    final CloseableHttpClient client,
+    final String baseUrl,
+    final LoadService service,
+    final LoadService.Payload payload,
+    int seconds
+  )
+    throws InterruptedException {
+    int concurrency = getInt("concurrency");
+    final long deadline = System.nanoTime() + seconds * 1000000000L;
+    final CountDownLatch done = new CountDownLatch(concurrency);
+    final List<WorkerResult> results = new ArrayList<>();
+
+    for (int i = 0; i < concurrency; i++) {
+      final WorkerResult result = new WorkerResult();
+      results.add(result);
+      Thread worker = new Thread(
+        new Runnable() {
+
+          @Override
+          public void run() {
+            long threadId = Thread.currentThread().getId();
+            long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+            try {
+              long start;
+              while ((start = System.nanoTime()) < deadline) {
+                try {
+                  service.execute(client, baseUrl, payload);
+                  result.record(System.nanoTime() - start);
+                } catch (Exception ex) {
+                  result.errors++;
+                }
+              }
+            } finally {
+              result.allocatedBytes =
+                threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+              done.countDown();
+            }
+          }
+        },
+        "load-" + service + "-" + i
+      );
+      worker.start();
+    }
+
+    done.await();
+    return results;
+  }
+
+  private JSONObject report(
+    String scheme,
+    LoadService service,
+    List<WorkerResult> workers,
+    int seconds
+  )
+    throws Exception {
+    int count = 0;
+    long errors = 0;
+    long allocatedBytes = 0;
+    for (WorkerResult worker : workers) {
+      count += worker.count;
+      errors += worker.errors;
+      allocatedBytes += worker.allocatedBytes;
+    }
+    long[] latencies = new long[count];
+    int offset = 0;
+    for (WorkerResult worker : workers) {
+      System.arraycopy(worker.latencies, 0, latencies, offset, worker.count);
+      offset += worker.count;
+    }
+    Arrays.sort(latencies);
+
+    JSONObject result = new JSONObject();
+    result.put("scheme", scheme);
+    result.put("service", service.name());
+    result.put("requests", count);
+    result.put("errors", errors);
+    result.put("throughput", (double) count / seconds);
+    result.put("p50Millis", percentile(latencies, 0.5D));
+    result.put("p99Millis", percentile(latencies, 0.99D));
+    result.put("p999Millis", percentile(latencies, 0.999D));
+    result.put(
+      "allocatedBytesPerRequest",
+      count > 0 ? allocatedBytes / count : 0
+    );
+    result.put("allocationRateMBps", allocatedBytes / 1048576D / seconds);
+
+    System.out.printf(
+      "%-6s %-27s %10d %8d %10.1f %9.2f %9.2f %9.2f %12d %10.1f%n",
+      scheme,
+      service,
+      count,
+      errors,
+      result.getDouble("throughput"),
+      result.getDouble("p50Millis"),
+      result.getDouble("p99Millis"),
+      result.getDouble("p999Millis"),
+      result.getLong("allocatedBytesPerRequest"),
+      result.getDouble("allocationRateMBps")
+    );
+    return result;
+  }
+
+  private static double percentile(long[] sorted, double percentile) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+    int index = (int) Math.ceil(percentile * sorted.length) - 1;
+    return sorted[Math.max(index, 0)] / 1000000D;
+  }
+
+  private int getInt(String option) {
+    return Integer.parseInt(options.get(option).trim());
+  }
+}
@@ -0,0 +1,133 @@
+package com.thingworx.extensions.http.loadtest;
+
+import com.thingworx.extensions.http.HttpClientUtilities;
+import com.thingworx.extensions.http.JsonStreamReader;
+import com.thingworx.extensions.http.RepeatableStreamBody;
+import java.io.ByteArrayInputStream;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.entity.mime.MultipartEntityBuilder;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONObject;
+
+/**
+ * The services driven by the harness. Each one sends the request the
+ * corresponding ContentLoaderExtended service sends and reads the response
+ * the same way. The resource itself cannot run outside the platform.
+ */
+public enum LoadService {
+  GetJSON {
+
+    @Override
+    public void execute(CloseableHttpClient client, String baseUrl, Payload p)
+      throws Exception {
+      HttpGet get = new HttpGet(baseUrl + "/json");
+      HttpClientUtilities.addHeaders(get, p.headers);
+      get.addHeader("Accept", "application/json");
+      try (
+        CloseableHttpResponse response = client.execute(get, createContext())
+      ) {
+        JsonStreamReader.readJSON(response.getEntity());
+      }
+    }
+  },
+  PostJSON {
+
+    @Override
+    public void execute(CloseableHttpClient client, String baseUrl, Payload p)
+      throws Exception {
+      HttpPost post = new HttpPost(baseUrl + "/json");
+      HttpClientUtilities.addHeaders(post, p.headers);
+      post.addHeader("Accept", "application/json");
+      post.setEntity(
+        new StringEntity(p.content.toString(), ContentType.APPLICATION_JSON)
+      );
+      try (
+        CloseableHttpResponse response = client.execute(post, createContext())
+      ) {
+        JsonStreamReader.readJSON(response.getEntity());
+      }
+    }
+  },
+  GetBlob {
+
+    @Override
+    public void execute(CloseableHttpClient client, String baseUrl, Payload p)
+      throws Exception {
+      HttpGet get = new HttpGet(baseUrl + "/blob");
+      HttpClientUtilities.addHeaders(get, p.headers);
+      try (
+        CloseableHttpResponse response = client.execute(get, createContext())
+      ) {
+        EntityUtils.toByteArray(response.getEntity());
+      }
+    }
+  },
+  PostMultipartMultipleFiles {
+
+    @Override
+    public void execute(CloseableHttpClient client, String baseUrl, Payload p)
+      throws Exception {
+      MultipartEntityBuilder entityBuilder = MultipartEntityBuilder.create();
+      for (int i = 0; i < p.files.length; i++) {
+        final byte[] file = p.files[i];
+        entityBuilder.addPart(
+          "file" + i,
+          new RepeatableStreamBody(
+            () -> new ByteArrayInputStream(file),
+            ContentType.APPLICATION_OCTET_STREAM,
+            "file" + i + ".bin"
+          )
+        );
+      }
+      HttpPost post = new HttpPost(baseUrl + "/upload");
+      HttpClientUtilities.addHeaders(post, p.headers);
+      post.setEntity(HttpClientUtilities.buildStreamingEntity(entityBuilder));
+      try (CloseableHttpResponse response = client.execute(post)) {
+        JsonStreamReader.readJSON(response.getEntity());
+      }
+    }
+  };
+
+  /**
+   * Request content shared by all the calls of a run.
+   */
+  public static final class Payload {
+    private final JSONObject headers;
+    private final JSONObject content;
+    private final byte[][] files;
+
+    public Payload(int payloadSize, int fileCount) throws Exception {
+      headers = new JSONObject();
+      headers.put("X-Load-Test", "true");
+
+      StringBuilder text = new StringBuilder(payloadSize);
+      while (text.length() < payloadSize) {
+        text.append("load test content ");
+      }
+      content = new JSONObject();
+      content.put("text", text.substring(0, payloadSize));
+
+      files = new byte[fileCount][payloadSize];
+    }
+  }
+
+  public abstract void execute(
+    CloseableHttpClient client,
+    String baseUrl,
+    Payload payload
+  )
+    throws Exception;
+
+  private static HttpClientContext createContext() {
+    HttpClientContext context = HttpClientContext.create();
+    context.setCookieStore(new BasicCookieStore());
+    return context;
+  }
+}
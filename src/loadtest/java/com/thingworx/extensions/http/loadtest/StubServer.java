@@ -0,0 +1,229 @@
+package com.thingworx.extensions.http.loadtest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsParameters;
+import com.sun.net.httpserver.HttpsServer;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * Local http and https server answering with generated payloads after a
+ * configurable latency. The https server uses the PKCS12 certificate both as
+ * its own key and as the only trusted client certificate, and requires
+ * client authentication.
+ *
+ * <ul>
+ * <li>GET /json returns a JSON object of about payloadSize bytes</li>
+ * <li>POST /json reads the body and returns the same JSON object</li>
+ * <li>GET /blob returns payloadSize bytes</li>
+ * <li>POST /upload reads the body and returns its size as JSON</li>
+ * </ul>
+ */
+public class StubServer implements Closeable {
+  private final int latencyMillis;
+  private final byte[] json;
+  private final byte[] blob;
+  private final ExecutorService executor;
+  private HttpServer httpServer;
+  private HttpsServer httpsServer;
+
+  static {
+    // otherwise Nagle's algorithm adds up to 40ms to small responses
+    if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+      System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+  }
+
+  public StubServer(int latencyMillis, int payloadSize, int threads) {
+    this.latencyMillis = latencyMillis;
+    this.json = createJSON(payloadSize);
+    this.blob = new byte[payloadSize];
+    for (int i = 0; i < blob.length; i++) {
+      blob[i] = (byte) i;
+    }
+    this.executor = Executors.newFixedThreadPool(threads);
+  }
+
+  public void start(String certFile, String certPass) throws Exception {
+    InetSocketAddress loopback = new InetSocketAddress(
+      InetAddress.getLoopbackAddress(),
+      0
+    );
+
+    httpServer = HttpServer.create(loopback, 0);
+    addHandlers(httpServer);
+    httpServer.setExecutor(executor);
+    httpServer.start();
+
+    final SSLContext sslContext = createServerContext(certFile, certPass);
+    httpsServer = HttpsServer.create(loopback, 0);
+    httpsServer.setHttpsConfigurator(
+      new HttpsConfigurator(sslContext) {
+
+        @Override
+        public void configure(HttpsParameters params) {
+          SSLParameters sslParameters = sslContext.getDefaultSSLParameters();
+          sslParameters.setNeedClientAuth(true);
+          params.setSSLParameters(sslParameters);
+        }
+      }
+    );
+    addHandlers(httpsServer);
+    httpsServer.setExecutor(executor);
+    httpsServer.start();
+  }
+
+  public String getHttpUrl() {
+    return "http://127.0.0.1:" + httpServer.getAddress().getPort();
+  }
+
+  public String getHttpsUrl() {
+    return "https://127.0.0.1:" + httpsServer.getAddress().getPort();
+  }
+
+  @Override
+  public void close() {
+    if (httpServer != null) {
+      httpServer.stop(0);
+    }
+    if (httpsServer != null) {
+      httpsServer.stop(0);
+    }
+    executor.shutdownNow();
+  }
+
+  private void addHandlers(HttpServer server) {
+    server.createContext(
+      "/json",
+      new HttpHandler() {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+          consume(exchange.getRequestBody());
+          respond(exchange, "application/json; charset=UTF-8", json);
+        }
+      }
+    );
+    server.createContext(
+      "/blob",
+      new HttpHandler() {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+          consume(exchange.getRequestBody());
+          respond(exchange, "application/octet-stream", blob);
+        }
+      }
+    );
+    server.createContext(
+      "/upload",
+      new HttpHandler() {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+          long received = consume(exchange.getRequestBody());
+          respond(
+            exchange,
+            "application/json; charset=UTF-8",
+            ("{\"received\":" + received + "}").getBytes(StandardCharsets.UTF_8)
+          );
+        }
+      }
+    );
+  }
+
+  private void respond(HttpExchange exchange, String contentType, byte[] body)
+    throws IOException {
+    if (latencyMillis > 0) {
+      try {
+        Thread.sleep(latencyMillis);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    exchange.getResponseHeaders().set("Content-Type", contentType);
+    exchange.sendResponseHeaders(200, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  private static long consume(InputStream in) throws IOException {
+    byte[] buffer = new byte[8192];
+    long total = 0;
+    int count;
+    while ((count = in.read(buffer)) != -1) {
+      total += count;
+    }
+    in.close();
+    return total;
+  }
+
+  private static byte[] createJSON(int payloadSize) {
+    StringBuilder builder = new StringBuilder(payloadSize + 64);
+    builder.append("{\"items\":[");
+    for (int i = 0; builder.length() < payloadSize; i++) {
+      if (i > 0) {
+        builder.append(',');
+      }
+      builder
+        .append("{\"id\":")
+        .append(i)
+        .append(",\"name\":\"item ")
+        .append(i)
+        .append("\",\"value\":")
+        .append(i * 0.5D)
+        .append('}');
+    }
+    builder.append("]}");
+    return builder.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static SSLContext createServerContext(
+    String certFile,
+    String certPass
+  )
+    throws Exception {
+    char[] password = certPass.toCharArray();
+    KeyStore keyStore = KeyStore.getInstance("PKCS12");
+    try (InputStream in = new FileInputStream(certFile)) {
+      keyStore.load(in, password);
+    }
+
+    KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(
+      KeyManagerFactory.getDefaultAlgorithm()
+    );
+    keyManagers.init(keyStore, password);
+    // the certificate of the key entry is the only trusted client certificate
+    TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(
+      TrustManagerFactory.getDefaultAlgorithm()
+    );
+    trustManagers.init(keyStore);
+
+    SSLContext sslContext = SSLContext.getInstance("TLS");
+    sslContext.init(
+      keyManagers.getKeyManagers(),
+      trustManagers.getTrustManagers(),
+      null
+    );
+    Arrays.fill(password, ' ');
+    return sslContext;
+  }
+}
@@ -0,0 +1,201 @@
+package com.thingworx.extensions.http;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.http.Header;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.auth.AuthScheme;
+import org.apache.http.auth.AuthenticationException;
+import org.apache.http.auth.ContextAwareAuthScheme;
+import org.apache.http.auth.Credentials;
+import org.apache.http.auth.MalformedChallengeException;
+import org.apache.http.client.AuthCache;
+import org.apache.http.conn.SchemePortResolver;
+import org.apache.http.conn.UnsupportedSchemeException;
+import org.apache.http.impl.auth.BasicScheme;
+import org.apache.http.impl.conn.DefaultSchemePortResolver;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Long-lived auth caches, one per client. A client is built for a single set
+ * of credentials, so the schemes negotiated for a host by one call (a Digest
+ * realm and nonce for instance) are reused preemptively by the next calls
+ * with the same client instead of being challenged again.
+ *
+ * The caches are dropped with their client.
+ */
+public class AuthCaches {
+  private final Map<Object, AuthCache> caches = Collections.synchronizedMap(
+    new WeakHashMap<>()
+  );
+
+  /**
+   * Keeps the scheme instances, unlike BasicAuthCache which stores
+   * serialized copies and so loses the state a scheme updates after it is
+   * cached, such as the Digest nonce count. Schemes are shared by the
+   * concurrent requests of the client: Basic is stateless, the others are
+   * handed out behind a SynchronizedScheme.
+   */
+  private static final class SharedAuthCache implements AuthCache {
+    private final ConcurrentMap<HttpHost, AuthScheme> schemes = new ConcurrentHashMap<>();
+    private final SchemePortResolver portResolver = DefaultSchemePortResolver.INSTANCE;
+
+    private HttpHost getKey(HttpHost host) {
+      if (host.getPort() <= 0) {
+        try {
+          return new HttpHost(
+            host.getHostName(),
+            portResolver.resolve(host),
+            host.getSchemeName()
+          );
+        } catch (UnsupportedSchemeException ex) {
+          return host;
+        }
+      }
+      return host;
+    }
+
+    @Override
+    public void put(HttpHost host, AuthScheme authScheme) {
+      if (authScheme instanceof SynchronizedScheme) {
+        authScheme = ((SynchronizedScheme) authScheme).scheme;
+      }
+      if (authScheme != null) {
+        schemes.put(getKey(host), authScheme);
+      }
+    }
+
+    @Override
+    public AuthScheme get(HttpHost host) {
+      AuthScheme scheme = schemes.get(getKey(host));
+      if (scheme == null || scheme instanceof BasicScheme) {
+        return scheme;
+      }
+      return new SynchronizedScheme(scheme);
+    }
+
+    @Override
+    public void remove(HttpHost host) {
+      schemes.remove(getKey(host));
+    }
+
+    @Override
+    public void clear() {
+      schemes.clear();
+    }
+  }
+
+  /**
+   * Serializes the calls that update the state of a shared scheme. A Digest
+   * scheme counts the uses of its nonce and draws a new client nonce while it
+   * builds each Authorization header, which concurrent requests would
+   * otherwise do at the same time.
+   */
+  private static final class SynchronizedScheme
+    implements ContextAwareAuthScheme {
+    private final AuthScheme scheme;
+
+    private SynchronizedScheme(AuthScheme scheme) {
+      this.scheme = scheme;
+    }
+
+    @Override
+    public void processChallenge(Header header)
+      throws MalformedChallengeException {
+      synchronized (scheme) {
+        scheme.processChallenge(header);
+      }
+    }
+
+    @Override
+    public String getSchemeName() {
+      return scheme.getSchemeName();
+    }
+
+    @Override
+    public String getParameter(String name) {
+      synchronized (scheme) {
+        return scheme.getParameter(name);
+      }
+    }
+
+    @Override
+    public String getRealm() {
+      synchronized (scheme) {
+        return scheme.getRealm();
+      }
+    }
+
+    @Override
+    public boolean isConnectionBased() {
+      return scheme.isConnectionBased();
+    }
+
+    @Override
+    public boolean isComplete() {
+      synchronized (scheme) {
+        return scheme.isComplete();
+      }
+    }
+
+    @Deprecated
+    @Override
+    public Header authenticate(Credentials credentials, HttpRequest request)
+      throws AuthenticationException {
+      synchronized (scheme) {
+        return scheme.authenticate(credentials, request);
+      }
+    }
+
+    @SuppressWarnings("deprecation")
+    @Override
+    public Header authenticate(
+      Credentials credentials,
+      HttpRequest request,
+      HttpContext context
+    )
+      throws AuthenticationException {
+      synchronized (scheme) {
+        if (scheme instanceof ContextAwareAuthScheme) {
+          return (
+            (ContextAwareAuthScheme) scheme
+          ).authenticate(credentials, request, context);
+        }
+        return scheme.authenticate(credentials, request);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return scheme.toString();
+    }
+  }
+
+  /**
+   * @return the auth cache of the client, with a Basic scheme for the host
+   * if nothing was negotiated with it yet, so that the first request sends
+   * its credentials preemptively
+   */
+  public AuthCache get(Object client, HttpHost host) {
+    AuthCache cache;
+    synchronized (caches) {
+      cache = caches.get(client);
+      if (cache == null) {
+        cache = new SharedAuthCache();
+        caches.put(client, cache);
+      }
+    }
+    if (cache.get(host) == null) {
+      cache.put(host, new BasicScheme());
+    }
+    return cache;
+  }
+
+  public void clear() {
+    caches.clear();
+  }
+}
@@ -0,0 +1,197 @@
+package com.thingworx.extensions.http;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.http.HttpHost;
+
+/**
+ * One circuit breaker per target host. After a number of consecutive
+ * failures the breaker opens and requests to the host fail immediately,
+ * instead of each one waiting for the timeout. Once the open duration has
+ * elapsed a single trial request is let through: it closes the breaker if it
+ * succeeds and opens it again otherwise.
+ */
+public class CircuitBreakers {
+  public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+  public static final int DEFAULT_OPEN_SECONDS = 30;
+
+  public enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  private final ConcurrentMap<String, Breaker> breakers = new ConcurrentHashMap<>();
+  private volatile int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+  private volatile long openMillis = DEFAULT_OPEN_SECONDS * 1000L;
+
+  /**
+   * Thrown instead of sending a request to a host whose breaker is open.
+   */
+  public static final class OpenException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private OpenException(String message) {
+      super(message);
+    }
+  }
+
+  public final class Breaker {
+    private final String host;
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+    private boolean trialRunning;
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    private Breaker(String host) {
+      this.host = host;
+    }
+
+    /**
+     * Lets the request through or throws if the breaker is open. Every
+     * acquired request must be followed by a call to recordSuccess or
+     * recordFailure.
+     */
+    public synchronized void acquire() throws OpenException {
+      if (state == State.OPEN) {
+        long remaining = openedAt + openMillis - System.currentTimeMillis();
+        if (remaining > 0) {
+          rejected.increment();
+          throw new OpenException(
+            "Circuit breaker open for host " +
+            host +
+            " after " +
+            consecutiveFailures +
+            " consecutive failures, retry in " +
+            (remaining + 999) / 1000 +
+            "s"
+          );
+        }
+        state = State.HALF_OPEN;
+      }
+      if (state == State.HALF_OPEN) {
+        if (trialRunning) {
+          rejected.increment();
+          throw new OpenException(
+            "Circuit breaker half open for host " +
+            host +
+            ", waiting for the trial request"
+          );
+        }
+        trialRunning = true;
+      }
+    }
+
+    public synchronized void recordSuccess() {
+      consecutiveFailures = 0;
+      trialRunning = false;
+      state = State.CLOSED;
+    }
+
+    public synchronized void recordFailure() {
+      failures.increment();
+      consecutiveFailures++;
+      trialRunning = false;
+      if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+        state = State.OPEN;
+        openedAt = System.currentTimeMillis();
+      }
+    }
+
+    public synchronized void reset() {
+      consecutiveFailures = 0;
+      trialRunning = false;
+      state = State.CLOSED;
+    }
+
+    public String getHost() {
+      return host;
+    }
+
+    public synchronized State getState() {
+      if (
+        state == State.OPEN &&
+        System.currentTimeMillis() >= openedAt + openMillis
+      ) {
+        return State.HALF_OPEN;
+      }
+      return state;
+    }
+
+    public synchronized int getConsecutiveFailures() {
+      return consecutiveFailures;
+    }
+
+    /**
+     * @return the milliseconds until a trial request is let through, 0 if
+     * the breaker is not open
+     */
+    public synchronized long getRemainingOpenMillis() {
+      if (state != State.OPEN) {
+        return 0;
+      }
+      return Math.max(0, openedAt + openMillis - System.currentTimeMillis());
+    }
+
+    public long getFailures() {
+      return failures.sum();
+    }
+
+    public long getRejected() {
+      return rejected.sum();
+    }
+  }
+
+  /**
+   * Sets the failures needed to open a breaker and how long it stays open.
+   * Breakers that are already open keep their open time until they close.
+   */
+  public void setLimits(int failureThreshold, int openSeconds) {
+    if (failureThreshold <= 0 || openSeconds <= 0) {
+      throw new IllegalArgumentException(
+        "Circuit breaker limits must be positive"
+      );
+    }
+    this.failureThreshold = failureThreshold;
+    this.openMillis = openSeconds * 1000L;
+  }
+
+  public Breaker get(HttpHost host) {
+    String hostKey = RequestMetrics.getHostKey(host);
+    Breaker breaker = breakers.get(hostKey);
+    if (breaker == null) {
+      breaker = breakers.computeIfAbsent(hostKey, k -> new Breaker(k));
+    }
+    return breaker;
+  }
+
+  public Map<String, Breaker> getBreakers() {
+    return breakers;
+  }
+
+  /**
+   * Closes the breaker of the given host key, or of every host if it is
+   * null or empty.
+   */
+  public void reset(String hostKey) {
+    if (StringUtilities.isNullOrEmpty(hostKey)) {
+      for (Breaker breaker : breakers.values()) {
+        breaker.reset();
+      }
+    } else {
+      Breaker breaker = breakers.get(hostKey);
+      if (breaker != null) {
+        breaker.reset();
+      }
+    }
+  }
+
+  public void clear() {
+    breakers.clear();
+  }
+}
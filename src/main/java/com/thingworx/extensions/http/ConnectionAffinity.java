@@ -0,0 +1,46 @@
+package com.thingworx.extensions.http;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Gives every request of a pooled client the user token of the client, before
+ * a connection is leased.
+ *
+ * Connections authenticated with NTLM or with a client certificate are tagged
+ * with the user they belong to, and the pool only leases them to requests
+ * carrying the same user token. A new context has none, so without this each
+ * call would open a new connection and, with NTLM, do the whole handshake
+ * again. A pooled client is built for a single identity (user, domain,
+ * workstation and certificate are part of its key), so its connections can
+ * all carry the same token.
+ */
+public class ConnectionAffinity implements HttpRequestInterceptor {
+  private final Object userToken;
+  private final boolean connectionAuthentication;
+
+  /**
+   * @param userToken identity of the client, compared with equals
+   * @param connectionAuthentication true if the client authenticates its
+   * connections (NTLM). The preemptive Basic credentials of the auth cache
+   * are then not sent: the server would take them for a new authentication
+   * of an already authenticated connection.
+   */
+  public ConnectionAffinity(Object userToken, boolean connectionAuthentication) {
+    this.userToken = userToken;
+    this.connectionAuthentication = connectionAuthentication;
+  }
+
+  @Override
+  public void process(HttpRequest request, HttpContext context) {
+    HttpClientContext clientContext = HttpClientContext.adapt(context);
+    if (clientContext.getUserToken() == null) {
+      clientContext.setUserToken(userToken);
+    }
+    if (connectionAuthentication) {
+      clientContext.removeAttribute(HttpClientContext.AUTH_CACHE);
+    }
+  }
+}
@@ -2,13 +2,16 @@ package com.thingworx.extensions.http;
 
 import com.thingworx.common.RESTAPIConstants;
 import com.thingworx.common.exceptions.InvalidRequestException;
-import com.thingworx.common.utils.HttpUtilities;
 import com.thingworx.common.utils.JSONUtilities;
 import com.thingworx.common.utils.StreamUtilities;
 import com.thingworx.datashape.DataShape;
 import com.thingworx.entities.utils.EntityUtilities;
 import com.thingworx.entities.utils.ThingUtilities;
 import com.thingworx.logging.LogUtilities;
+import com.thingworx.metadata.annotations.ThingworxConfigurationTableDefinition;
+import com.thingworx.metadata.annotations.ThingworxConfigurationTableDefinitions;
+import com.thingworx.metadata.annotations.ThingworxDataShapeDefinition;
+import com.thingworx.metadata.annotations.ThingworxFieldDefinition;
 import com.thingworx.metadata.annotations.ThingworxServiceDefinition;
 import com.thingworx.metadata.annotations.ThingworxServiceParameter;
 import com.thingworx.metadata.annotations.ThingworxServiceResult;
@@ -17,37 +20,57 @@ import com.thingworx.resources.Resource;
 import com.thingworx.things.repository.FileRepositoryThing;
 import com.thingworx.types.InfoTable;
 import com.thingworx.types.collections.ValueCollection;
+import com.thingworx.types.collections.ValueCollectionList;
+import com.thingworx.types.primitives.IntegerPrimitive;
+import com.thingworx.types.primitives.LongPrimitive;
+import com.thingworx.types.primitives.NumberPrimitive;
 import com.thingworx.types.primitives.StringPrimitive;
-import java.io.ByteArrayInputStream;
-import java.io.FileInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.net.URLEncoder;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
-import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.net.ssl.SSLContext;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
 import org.apache.commons.io.FilenameUtils;
-import org.apache.commons.io.IOUtils;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpHost;
+import org.apache.http.NameValuePair;
 import org.apache.http.StatusLine;
-import org.apache.http.auth.AuthScope;
-import org.apache.http.auth.NTCredentials;
-import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.AuthCache;
-import org.apache.http.client.CredentialsProvider;
-import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.GzipCompressingEntity;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
 import org.apache.http.client.methods.HttpPatch;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.methods.RequestBuilder;
 import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.utils.URIUtils;
 import org.apache.http.conn.ssl.NoopHostnameVerifier;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
-import org.apache.http.conn.ssl.TrustSelfSignedStrategy;
 import org.apache.http.cookie.Cookie;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
@@ -55,20 +78,999 @@ import org.apache.http.entity.mime.MultipartEntityBuilder;
 import org.apache.http.impl.auth.BasicScheme;
 import org.apache.http.impl.client.BasicAuthCache;
 import org.apache.http.impl.client.BasicCookieStore;
-import org.apache.http.impl.client.BasicCredentialsProvider;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
-import org.apache.http.ssl.SSLContextBuilder;
-import org.apache.http.ssl.SSLContexts;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 
+@ThingworxConfigurationTableDefinitions(
+  tables = {
+    @ThingworxConfigurationTableDefinition(
+      name = "ConnectionPool",
+      description = "Limits of the pooled http connections",
+      isMultiRow = false,
+      ordinal = 0,
+      dataShape = @ThingworxDataShapeDefinition(
+        fields = {
+          @ThingworxFieldDefinition(
+            name = "maxTotal",
+            description = "Maximum number of connections per client configuration",
+            baseType = "INTEGER",
+            ordinal = 0,
+            aspects = { "defaultValue:200" }
+          ),
+          @ThingworxFieldDefinition(
+            name = "maxPerRoute",
+            description = "Maximum number of connections per target host",
+            baseType = "INTEGER",
+            ordinal = 1,
+            aspects = { "defaultValue:20" }
+          ),
+          @ThingworxFieldDefinition(
+            name = "idleTimeout",
+            description = "Idle connections are closed after this number of seconds, 0 to keep them until their keep-alive expires",
+            baseType = "INTEGER",
+            ordinal = 2,
+            aspects = { "defaultValue:30" }
+          ),
+          @ThingworxFieldDefinition(
+            name = "keepAlive",
+            description = "Seconds a connection is kept alive when the server does not send a Keep-Alive timeout",
+            baseType = "INTEGER",
+            ordinal = 3,
+            aspects = { "defaultValue:60" }
+          ),
+          @ThingworxFieldDefinition(
+            name = "validateAfterInactivity",
+            description = "Connections idle for more than this number of milliseconds are checked before being reused",
+            baseType = "INTEGER",
+            ordinal = 4,
+            aspects = { "defaultValue:2000" }
+          ),
+          @ThingworxFieldDefinition(
+            name = "evictionInterval",
+            description = "Seconds between two evictions of the idle and expired connections",
+            baseType = "INTEGER",
+            ordinal = 5,
+            aspects = { "defaultValue:5" }
+          )
+        }
+      )
+    ),
+    @ThingworxConfigurationTableDefinition(
+      name = "ResponseCache",
+      description = "Limits of the response cache used by the GET services",
+      isMultiRow = false,
+      ordinal = 1,
+      dataShape = @ThingworxDataShapeDefinition(
+        fields = {
+          @ThingworxFieldDefinition(
+            name = "maxSize",
+            description = "Maximum total size of the cached bodies in bytes",
+            baseType = "INTEGER",
+            ordinal = 0,
+            aspects = { "defaultValue:33554432" }
+          ),
+          @ThingworxFieldDefinition(
+            name = "maxEntrySize",
+            description = "Maximum size of a single cached body in bytes",
+            baseType = "INTEGER",
+            ordinal = 1,
+            aspects = { "defaultValue:1048576" }
+          )
+        }
+      )
+    ),
+    @ThingworxConfigurationTableDefinition(
+      name = "Resilience",
+      description = "Retries of the idempotent requests and circuit breaker of the target hosts",
+      isMultiRow = false,
+      ordinal = 2,
+      dataShape = @ThingworxDataShapeDefinition(
+        fields = {
+          @ThingworxFieldDefinition(
+            name = "maxRetries",
+            description = "Times a failed GET, PUT or DELETE is sent again, 0 to disable",
+            baseType = "INTEGER",
+            ordinal = 0,
+            aspects = { "defaultValue:0" }
+          ),
+          @ThingworxFieldDefinition(
+            name = "retryBaseDelay",
+            description = "Backoff before the first retry in milliseconds, doubled on each retry and randomized",
+            baseType = "INTEGER",
+            ordinal = 1,
+            aspects = { "defaultValue:200" }
+          ),
+          @ThingworxFieldDefinition(
+            name = "retryMaxDelay",
+            description = "Maximum backoff between two attempts in milliseconds",
+            baseType = "INTEGER",
+            ordinal = 2,
+            aspects = { "defaultValue:10000" }
+          ),
+          @ThingworxFieldDefinition(
+            name = "failureThreshold",
+            description = "Consecutive failures after which the requests to a host fail immediately",
+            baseType = "INTEGER",
+            ordinal = 3,
+            aspects = { "defaultValue:5" }
+          ),
+          @ThingworxFieldDefinition(
+            name = "openDuration",
+            description = "Seconds before a trial request is sent to a host whose breaker opened",
+            baseType = "INTEGER",
+            ordinal = 4,
+            aspects = { "defaultValue:30" }
+          )
+        }
+      )
+    ),
+    @ThingworxConfigurationTableDefinition(
+      name = "HostLimits",
+      description = "Rate and concurrency limits per target host",
+      isMultiRow = true,
+      ordinal = 3,
+      dataShape = @ThingworxDataShapeDefinition(
+        fields = {
+          @ThingworxFieldDefinition(
+            name = "host",
+            description = "Host name, host:port, or * for every host without its own row",
+            baseType = "STRING",
+            ordinal = 0,
+            aspects = { "isPrimaryKey:true" }
+          ),
+          @ThingworxFieldDefinition(
+            name = "requestsPerSecond",
+            description = "Sustained request rate to the host, 0 for no rate limit",
+            baseType = "NUMBER",
+            ordinal = 1,
+            aspects = { "defaultValue:0" }
+          ),
+          @ThingworxFieldDefinition(
+            name = "burst",
+            description = "Requests that can be sent at once above the sustained rate",
+            baseType = "INTEGER",
+            ordinal = 2,
+            aspects = { "defaultValue:1" }
+          ),
+          @ThingworxFieldDefinition(
+            name = "maxConcurrent",
+            description = "Maximum requests in flight to the host, 0 for no limit",
+            baseType = "INTEGER",
+            ordinal = 3,
+            aspects = { "defaultValue:0" }
+          ),
+          @ThingworxFieldDefinition(
+            name = "queueTimeout",
+            description = "Milliseconds a request waits for the limits before failing, 0 to fail immediately",
+            baseType = "INTEGER",
+            ordinal = 4,
+            aspects = { "defaultValue:0" }
+          )
+        }
+      )
+    ),
+    @ThingworxConfigurationTableDefinition(
+      name = "OutboundSpool",
+      description = "Storage and batching of the requests queued with EnqueuePost",
+      isMultiRow = false,
+      ordinal = 4,
+      dataShape = @ThingworxDataShapeDefinition(
+        fields = {
+          @ThingworxFieldDefinition(
+            name = "repository",
+            description = "File repository where the queued requests are stored",
+            baseType = "THINGNAME",
+            ordinal = 0,
+            aspects = {
+              "thingTemplate:FileRepository", "defaultValue:SystemRepository"
+            }
+          ),
+          @ThingworxFieldDefinition(
+            name = "directory",
+            description = "Directory of the queued requests in the repository",
+            baseType = "STRING",
+            ordinal = 1,
+            aspects = { "defaultValue:spool" }
+          ),
+          @ThingworxFieldDefinition(
+            name = "batchSize",
+            description = "Maximum number of queued bodies posted together as a JSON array",
+            baseType = "INTEGER",
+            ordinal = 2,
+            aspects = { "defaultValue:100" }
+          ),
+          @ThingworxFieldDefinition(
+            name = "batchWindow",
+            description = "Milliseconds a queued body waits for others to be sent in the same batch",
+            baseType = "INTEGER",
+            ordinal = 3,
+            aspects = { "defaultValue:1000" }
+          ),
+          @ThingworxFieldDefinition(
+            name = "maxSize",
+            description = "Maximum megabytes of queued bodies on disk, EnqueuePost fails once they are reached",
+            baseType = "INTEGER",
+            ordinal = 4,
+            aspects = { "defaultValue:100" }
+          )
+        }
+      )
+    ),
+    @ThingworxConfigurationTableDefinition(
+      name = "EndpointProfiles",
+      description = "Named connection settings that the services use instead of their own parameters",
+      isMultiRow = true,
+      ordinal = 5,
+      dataShape = @ThingworxDataShapeDefinition(
+        fields = {
+          @ThingworxFieldDefinition(
+            name = "name",
+            description = "Name of the profile, passed as endpointProfile to the services",
+            baseType = "STRING",
+            ordinal = 0,
+            aspects = { "isPrimaryKey:true" }
+          ),
+          @ThingworxFieldDefinition(
+            name = "baseUrl",
+            description = "Url the paths passed to the services are appended to",
+            baseType = "STRING",
+            ordinal = 1
+          ),
+          @ThingworxFieldDefinition(
+            name = "username",
+            description = "Optional user name credential",
+            baseType = "STRING",
+            ordinal = 2
+          ),
+          @ThingworxFieldDefinition(
+            name = "password",
+            description = "Optional password credential",
+            baseType = "STRING",
+            ordinal = 3
+          ),
+          @ThingworxFieldDefinition(
+            name = "headers",
+            description = "Optional default HTTP headers, as a JSON object",
+            baseType = "STRING",
+            ordinal = 4
+          ),
+          @ThingworxFieldDefinition(
+            name = "ignoreSSLErrors",
+            description = "Ignore SSL Certificate Errors",
+            baseType = "BOOLEAN",
+            ordinal = 5,
+            aspects = { "defaultValue:false" }
+          ),
+          @ThingworxFieldDefinition(
+            name = "timeout",
+            description = "Timeout in seconds",
+            baseType = "NUMBER",
+            ordinal = 6,
+            aspects = { "defaultValue:60" }
+          ),
+          @ThingworxFieldDefinition(
+            name = "useNTLM",
+            description = "Use NTLM Authentication",
+            baseType = "BOOLEAN",
+            ordinal = 7,
+            aspects = { "defaultValue:false" }
+          ),
+          @ThingworxFieldDefinition(
+            name = "workstation",
+            description = "Auth workstation",
+            baseType = "STRING",
+            ordinal = 8
+          ),
+          @ThingworxFieldDefinition(
+            name = "domain",
+            description = "Auth domain",
+            baseType = "STRING",
+            ordinal = 9
+          ),
+          @ThingworxFieldDefinition(
+            name = "useProxy",
+            description = "Use Proxy server",
+            baseType = "BOOLEAN",
+            ordinal = 10,
+            aspects = { "defaultValue:false" }
+          ),
+          @ThingworxFieldDefinition(
+            name = "proxyHost",
+            description = "Proxy host",
+            baseType = "STRING",
+            ordinal = 11
+          ),
+          @ThingworxFieldDefinition(
+            name = "proxyPort",
+            description = "Proxy port",
+            baseType = "INTEGER",
+            ordinal = 12,
+            aspects = { "defaultValue:8080" }
+          ),
+          @ThingworxFieldDefinition(
+            name = "proxyScheme",
+            description = "Proxy scheme",
+            baseType = "STRING",
+            ordinal = 13,
+            aspects = { "defaultValue:http" }
+          ),
+          @ThingworxFieldDefinition(
+            name = "certRepository",
+            description = "FileRepository where the client keys are",
+            baseType = "THINGNAME",
+            ordinal = 14,
+            aspects = { "thingTemplate:FileRepository" }
+          ),
+          @ThingworxFieldDefinition(
+            name = "certFilePath",
+            description = "Path to the p12 cert file",
+            baseType = "STRING",
+            ordinal = 15
+          ),
+          @ThingworxFieldDefinition(
+            name = "certFilePassword",
+            description = "Password of the p12 file",
+            baseType = "STRING",
+            ordinal = 16
+          ),
+          @ThingworxFieldDefinition(
+            name = "useHttp2",
+            description = "Send https requests over a shared, multiplexed HTTP/2 connection. The request and response bodies are then buffered in memory and the credentials are only sent as preemptive basic authentication",
+            baseType = "BOOLEAN",
+            ordinal = 17,
+            aspects = { "defaultValue:false" }
+          ),
+          @ThingworxFieldDefinition(
+            name = "oauthClient",
+            description = "Optional row of the OAuthClients table whose bearer token is sent with the requests",
+            baseType = "STRING",
+            ordinal = 18
+          )
+        }
+      )
+    ),
+    @ThingworxConfigurationTableDefinition(
+      name = "OAuthClients",
+      description = "OAuth2 clients whose access tokens are requested, cached and refreshed by the resource",
+      isMultiRow = true,
+      ordinal = 6,
+      dataShape = @ThingworxDataShapeDefinition(
+        fields = {
+          @ThingworxFieldDefinition(
+            name = "name",
+            description = "Name of the client, passed as oauthClient to the services and endpoint profiles",
+            baseType = "STRING",
+            ordinal = 0,
+            aspects = { "isPrimaryKey:true" }
+          ),
+          @ThingworxFieldDefinition(
+            name = "tokenUrl",
+            description = "Token endpoint of the authorization server",
+            baseType = "STRING",
+            ordinal = 1
+          ),
+          @ThingworxFieldDefinition(
+            name = "clientId",
+            description = "Client identifier",
+            baseType = "STRING",
+            ordinal = 2
+          ),
+          @ThingworxFieldDefinition(
+            name = "clientSecret",
+            description = "Client secret",
+            baseType = "STRING",
+            ordinal = 3
+          ),
+          @ThingworxFieldDefinition(
+            name = "scope",
+            description = "Optional space separated scopes to request",
+            baseType = "STRING",
+            ordinal = 4
+          ),
+          @ThingworxFieldDefinition(
+            name = "refreshToken",
+            description = "Optional refresh token, used instead of the client credentials grant",
+            baseType = "STRING",
+            ordinal = 5
+          ),
+          @ThingworxFieldDefinition(
+            name = "credentialsInBody",
+            description = "Send the client id and secret as form parameters instead of Basic authentication",
+            baseType = "BOOLEAN",
+            ordinal = 6,
+            aspects = { "defaultValue:false" }
+          ),
+          @ThingworxFieldDefinition(
+            name = "ignoreSSLErrors",
+            description = "Ignore SSL Certificate Errors",
+            baseType = "BOOLEAN",
+            ordinal = 7,
+            aspects = { "defaultValue:false" }
+          ),
+          @ThingworxFieldDefinition(
+            name = "timeout",
+            description = "Timeout in seconds",
+            baseType = "NUMBER",
+            ordinal = 8,
+            aspects = { "defaultValue:60" }
+          )
+        }
+      )
+    ),
+    @ThingworxConfigurationTableDefinition(
+      name = "Batch",
+      description = "Limits of the threads running ExecuteBatch requests, download segments and token refreshes",
+      isMultiRow = false,
+      ordinal = 7,
+      dataShape = @ThingworxDataShapeDefinition(
+        fields = {
+          @ThingworxFieldDefinition(
+            name = "maxThreads",
+            description = "Maximum number of threads shared by the batches, further tasks wait for a free thread",
+            baseType = "INTEGER",
+            ordinal = 0,
+            aspects = { "defaultValue:64" }
+          ),
+          @ThingworxFieldDefinition(
+            name = "maxParallelism",
+            description = "Upper bound of the maxParallelism of an ExecuteBatch call",
+            baseType = "INTEGER",
+            ordinal = 1,
+            aspects = { "defaultValue:32" }
+          )
+        }
+      )
+    )
+  }
+)
 public class ContentLoaderExtended extends Resource {
   private static final Logger _logger = LogUtilities
     .getInstance()
     .getApplicationLogger(ContentLoaderExtended.class);
 
+  private static final int DEFAULT_BATCH_PARALLELISM = 8;
+  private static final int DEFAULT_MAX_BATCH_PARALLELISM = 32;
+  private static final int DEFAULT_MAX_BATCH_THREADS = 64;
+  private static final long BATCH_THREAD_KEEP_ALIVE_SECONDS = 60;
+  private static final int DEFAULT_DOWNLOAD_SEGMENTS = 4;
+  private static final int MAX_DOWNLOAD_SEGMENTS = 16;
+  private static final int DEFAULT_MIN_SEGMENT_SIZE = 1024 * 1024;
+
+  private final HttpClientPool httpClientPool = new HttpClientPool();
+  private final Http2ClientPool http2ClientPool = new Http2ClientPool();
+  private final ResponseCache responseCache = new ResponseCache();
+  private final SingleFlight<ResponseCache.Entry> inFlightGets = new SingleFlight<>();
+  private final RequestMetrics requestMetrics = new RequestMetrics();
+  private final CircuitBreakers circuitBreakers = new CircuitBreakers();
+  private final HostLimits hostLimits = new HostLimits();
+  private final EndpointProfiles endpointProfiles = new EndpointProfiles();
+  private final AuthCaches authCaches = new AuthCaches();
+  private final OAuthTokens oAuthTokens = new OAuthTokens(
+    this::postTokenRequest,
+    runnable -> getBatchExecutor().execute(runnable)
+  );
+  private volatile RetryPolicy retryPolicy = new RetryPolicy(
+    RetryPolicy.DEFAULT_MAX_RETRIES,
+    RetryPolicy.DEFAULT_BASE_DELAY_MILLIS,
+    RetryPolicy.DEFAULT_MAX_DELAY_MILLIS
+  );
+  private final SslContextCache sslContextCache = new SslContextCache(
+    new SslContextCache.ReplacementListener() {
+
+      @Override
+      public void contextReplaced(SSLContext oldContext) {
+        _logger.info("Client certificate changed, retiring its pooled clients");
+        httpClientPool.retireClients(oldContext);
+        http2ClientPool.retireClients(oldContext);
+        endpointProfiles.retire(oldContext);
+      }
+    }
+  );
+  private ExecutorService batchExecutor;
+  private OutboundSpool outboundSpool;
+
+  @Override
+  public void initializeEntity() throws Exception {
+    super.initializeEntity();
+    httpClientPool.setLimits(
+      getIntegerConfigurationSetting(
+        "ConnectionPool",
+        "maxTotal",
+        HttpClientPool.DEFAULT_MAX_TOTAL
+      ),
+      getIntegerConfigurationSetting(
+        "ConnectionPool",
+        "maxPerRoute",
+        HttpClientPool.DEFAULT_MAX_PER_ROUTE
+      )
+    );
+    httpClientPool.setConnectionSettings(
+      getIntegerConfigurationSetting(
+        "ConnectionPool",
+        "idleTimeout",
+        HttpClientPool.DEFAULT_IDLE_TIMEOUT_MILLIS / 1000,
+        0
+      ) *
+      1000L,
+      getIntegerConfigurationSetting(
+        "ConnectionPool",
+        "keepAlive",
+        HttpClientPool.DEFAULT_KEEP_ALIVE_MILLIS / 1000
+      ) *
+      1000L,
+      getIntegerConfigurationSetting(
+        "ConnectionPool",
+        "validateAfterInactivity",
+        HttpClientPool.DEFAULT_VALIDATE_AFTER_INACTIVITY_MILLIS
+      ),
+      getIntegerConfigurationSetting(
+        "ConnectionPool",
+        "evictionInterval",
+        HttpClientPool.DEFAULT_EVICTION_INTERVAL_MILLIS / 1000
+      ) *
+      1000L
+    );
+    responseCache.setLimits(
+      getIntegerConfigurationSetting(
+        "ResponseCache",
+        "maxSize",
+        ResponseCache.DEFAULT_MAX_SIZE
+      ),
+      getIntegerConfigurationSetting(
+        "ResponseCache",
+        "maxEntrySize",
+        ResponseCache.DEFAULT_MAX_ENTRY_SIZE
+      )
+    );
+    retryPolicy =
+      new RetryPolicy(
+        getIntegerConfigurationSetting(
+          "Resilience",
+          "maxRetries",
+          RetryPolicy.DEFAULT_MAX_RETRIES
+        ),
+        getIntegerConfigurationSetting(
+          "Resilience",
+          "retryBaseDelay",
+          RetryPolicy.DEFAULT_BASE_DELAY_MILLIS
+        ),
+        getIntegerConfigurationSetting(
+          "Resilience",
+          "retryMaxDelay",
+          RetryPolicy.DEFAULT_MAX_DELAY_MILLIS
+        )
+      );
+    circuitBreakers.setLimits(
+      getIntegerConfigurationSetting(
+        "Resilience",
+        "failureThreshold",
+        CircuitBreakers.DEFAULT_FAILURE_THRESHOLD
+      ),
+      getIntegerConfigurationSetting(
+        "Resilience",
+        "openDuration",
+        CircuitBreakers.DEFAULT_OPEN_SECONDS
+      )
+    );
+    hostLimits.setLimits(getHostLimits());
+    try {
+      // send what was queued before the restart
+      getOutboundSpool(false);
+    } catch (Exception ex) {
+      _logger.warn(
+        "Could not open the outbound spool, it opens on the next EnqueuePost: {}",
+        ex.getMessage()
+      );
+    }
+  }
+
+  /**
+   * Opens the outbound spool configured in the OutboundSpool table.
+   *
+   * @param create false to only open it if its directory already exists
+   * @return the spool, null if it does not exist and create is false
+   */
+  private synchronized OutboundSpool getOutboundSpool(boolean create)
+    throws Exception {
+    if (outboundSpool == null) {
+      String repository = getStringConfigurationSetting(
+        "OutboundSpool",
+        "repository",
+        "SystemRepository"
+      );
+      String directory = getStringConfigurationSetting(
+        "OutboundSpool",
+        "directory",
+        "spool"
+      );
+      File root = new File(
+        findFileRepository(repository).getRootPath(),
+        directory
+      );
+      if (!create && !root.isDirectory()) {
+        return null;
+      }
+      outboundSpool =
+        new OutboundSpool(root, this::sendSpooledBatch, getBatchExecutor());
+      outboundSpool.setLimits(
+        getIntegerConfigurationSetting(
+          "OutboundSpool",
+          "batchSize",
+          OutboundSpool.DEFAULT_BATCH_SIZE
+        ),
+        getIntegerConfigurationSetting(
+          "OutboundSpool",
+          "batchWindow",
+          OutboundSpool.DEFAULT_BATCH_WINDOW_MILLIS
+        ),
+        retryPolicy
+      );
+      outboundSpool.setMaxSize(
+        getIntegerConfigurationSetting(
+          "OutboundSpool",
+          "maxSize",
+          OutboundSpool.DEFAULT_MAX_SIZE_MB
+        ) *
+        1024L *
+        1024L
+      );
+    }
+    return outboundSpool;
+  }
+
+  private int sendSpooledBatch(
+    OutboundSpool.Destination destination,
+    String body
+  )
+    throws Exception {
+    // the credentials are read when the batch is sent, they are not spooled
+    String url = destination.getUrl();
+    JSONObject headers = destination.getHeaders();
+    CloseableHttpClient client;
+    EndpointProfiles.Profile profile = getEndpointProfile(
+      destination.getEndpointProfile()
+    );
+    if (profile != null) {
+      url = profile.resolveUrl(url);
+      headers = getProfileHeaders(profile, headers);
+      client = profile.getClient();
+    } else {
+      client =
+        getPooledHttpClient(
+          null,
+          null,
+          destination.isIgnoreSSLErrors(),
+          destination.getTimeout(),
+          false,
+          null,
+          null,
+          false,
+          null,
+          null,
+          null,
+          null,
+          null,
+          null
+        );
+    }
+    headers =
+      addBearerToken(headers, getOAuthClient(destination.getOAuthClient()));
+    HttpPost post = new HttpPost(url);
+    try {
+      HttpClientUtilities.addHeaders(post, headers);
+      post.setEntity(
+        new StringEntity(
+          body,
+          ContentType.create("application/json", RESTAPIConstants.getUTF8Charset())
+        )
+      );
+      HttpClientContext context = createContext();
+      if (profile != null) {
+        useAuthCache(client, context, url);
+      }
+      try (
+        CloseableHttpResponse response = executeRequest(
+          client,
+          post,
+          context,
+          "EnqueuePost"
+        )
+      ) {
+        EntityUtils.consumeQuietly(response.getEntity());
+        return response.getStatusLine().getStatusCode();
+      }
+    } finally {
+      post.reset();
+    }
+  }
+
+  private JSONObject postTokenRequest(
+    OAuthTokens.Client oauthClient,
+    List<NameValuePair> form
+  )
+    throws Exception {
+    CloseableHttpClient client = getPooledHttpClient(
+      null,
+      null,
+      oauthClient.isIgnoreSSLErrors(),
+      oauthClient.getTimeout(),
+      false,
+      null,
+      null,
+      false,
+      null,
+      null,
+      null,
+      null,
+      null,
+      null
+    );
+    HttpPost post = new HttpPost(oauthClient.getTokenUrl());
+    post.addHeader("Accept", "application/json");
+    if (!oauthClient.isCredentialsInBody()) {
+      // RFC 6749 2.3.1: the id and secret are form encoded before Basic encoding
+      String credentials =
+        URLEncoder.encode(oauthClient.getClientId(), "UTF-8") +
+        ":" +
+        URLEncoder.encode(
+          oauthClient.getClientSecret() != null
+            ? oauthClient.getClientSecret()
+            : "",
+          "UTF-8"
+        );
+      post.addHeader(
+        "Authorization",
+        "Basic " +
+        Base64
+          .getEncoder()
+          .encodeToString(credentials.getBytes(StandardCharsets.UTF_8))
+      );
+    }
+    post.setEntity(new UrlEncodedFormEntity(form, StandardCharsets.UTF_8));
+    try (
+      CloseableHttpResponse response = executeRequest(
+        client,
+        post,
+        createContext(),
+        "OAuthToken"
+      )
+    ) {
+      int statusCode = response.getStatusLine().getStatusCode();
+      String body = response.getEntity() != null
+        ? EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8)
+        : "";
+      if (statusCode < 200 || statusCode >= 300) {
+        throw new IOException(
+          "Token request of the OAuth client [" +
+          oauthClient.getName() +
+          "] failed with status " +
+          statusCode +
+          ": " +
+          body
+        );
+      }
+      return new JSONObject(body);
+    }
+  }
+
+  /**
+   * @return the OAuth client with the name, null if the name is empty
+   */
+  private OAuthTokens.Client getOAuthClient(String name) throws Exception {
+    if (StringUtilities.isNullOrEmpty(name)) {
+      return null;
+    }
+    InfoTable table = getConfigurationTable(OAuthTokens.TABLE);
+    if (table != null) {
+      for (ValueCollection row : table.getRows()) {
+        if (name.equals(row.getStringValue("name"))) {
+          return OAuthTokens.getClient(row);
+        }
+      }
+    }
+    throw new InvalidRequestException(
+      "OAuth client [" + name + "] does not exist",
+      RESTAPIConstants.StatusCode.STATUS_BAD_REQUEST
+    );
+  }
+
+  /**
+   * Merges the default headers of the profile into the headers of the call,
+   * with the bearer token of its OAuth client unless the call sets its own
+   * Authorization header. The headers of the call are not modified.
+   */
+  private JSONObject getProfileHeaders(
+    EndpointProfiles.Profile profile,
+    JSONObject headers
+  )
+    throws Exception {
+    return addBearerToken(
+      profile.mergeHeaders(headers),
+      getOAuthClient(profile.getOAuthClient())
+    );
+  }
+
+  /**
+   * @return a copy of the headers with the bearer token of the OAuth client,
+   * unless they have their own Authorization header, or the headers if there
+   * is no client
+   */
+  private JSONObject addBearerToken(
+    JSONObject headers,
+    OAuthTokens.Client oauthClient
+  )
+    throws Exception {
+    if (oauthClient == null) {
+      return headers;
+    }
+    JSONObject result = headers != null && headers.length() > 0
+      ? new JSONObject(headers, JSONObject.getNames(headers))
+      : new JSONObject();
+    if (!result.has("Authorization")) {
+      result.put(
+        "Authorization",
+        "Bearer " + oAuthTokens.getAccessToken(oauthClient, null)
+      );
+    }
+    return result;
+  }
+
+  /**
+   * Reads the rows of the HostLimits configuration table. Rows without a
+   * host are ignored.
+   */
+  private Map<String, HostLimits.Limit> getHostLimits() {
+    Map<String, HostLimits.Limit> limits = new HashMap<>();
+    try {
+      InfoTable table = getConfigurationTable("HostLimits");
+      if (table == null) {
+        return limits;
+      }
+      for (ValueCollection row : table.getRows()) {
+        String host = row.getStringValue("host");
+        if (StringUtilities.isBlank(host)) {
+          continue;
+        }
+        limits.put(
+          host,
+          new HostLimits.Limit(
+            getNumber(row, "requestsPerSecond"),
+            (int) getNumber(row, "burst"),
+            (int) getNumber(row, "maxConcurrent"),
+            (long) getNumber(row, "queueTimeout")
+          )
+        );
+      }
+    } catch (Exception ex) {
+      _logger.warn("Could not read the host limits: {}", ex.getMessage());
+    }
+    return limits;
+  }
+
+  private static double getNumber(ValueCollection row, String field) {
+    Object value = row.getValue(field);
+    return value instanceof Number ? ((Number) value).doubleValue() : 0;
+  }
+
+  @Override
+  public void cleanupEntity() throws Exception {
+    synchronized (this) {
+      // the spool sends its batches on the batch executor
+      if (outboundSpool != null) {
+        outboundSpool.close();
+        outboundSpool = null;
+      }
+      if (batchExecutor != null) {
+        batchExecutor.shutdownNow();
+        batchExecutor = null;
+      }
+    }
+    endpointProfiles.clear();
+    authCaches.clear();
+    oAuthTokens.clear();
+    httpClientPool.close();
+    http2ClientPool.close();
+    sslContextCache.clear();
+    responseCache.clear();
+    requestMetrics.clear();
+    circuitBreakers.clear();
+    super.cleanupEntity();
+  }
+
+  private int getIntegerConfigurationSetting(
+    String table,
+    String field,
+    int defaultValue
+  ) {
+    return getIntegerConfigurationSetting(table, field, defaultValue, 1);
+  }
+
+  /**
+   * @return the setting, or the default value if it is not set or below the
+   * minimum value
+   */
+  private int getIntegerConfigurationSetting(
+    String table,
+    String field,
+    int defaultValue,
+    int minValue
+  ) {
+    try {
+      Object value = getConfigurationSetting(table, field);
+      if (value instanceof Number && ((Number) value).intValue() >= minValue) {
+        return ((Number) value).intValue();
+      }
+    } catch (Exception ex) {
+      _logger.warn(
+        "Could not read configuration {}.{}: {}",
+        table,
+        field,
+        ex.getMessage()
+      );
+    }
+    return defaultValue;
+  }
+
+  private String getStringConfigurationSetting(
+    String table,
+    String field,
+    String defaultValue
+  ) {
+    try {
+      Object value = getConfigurationSetting(table, field);
+      if (value != null && !StringUtilities.isBlank(value.toString())) {
+        return value.toString();
+      }
+    } catch (Exception ex) {
+      _logger.warn(
+        "Could not read configuration {}.{}: {}",
+        table,
+        field,
+        ex.getMessage()
+      );
+    }
+    return defaultValue;
+  }
+
+  /**
+   * Creates the context of a call. The pooled clients are shared between
+   * callers, so each call gets its own cookie store, as when every call had
+   * its own client: cookies are kept across the redirects of the call but
+   * never sent with the requests of another call.
+   */
+  private static HttpClientContext createContext() {
+    HttpClientContext context = HttpClientContext.create();
+    context.setCookieStore(new BasicCookieStore());
+    return context;
+  }
+
+  /**
+   * Gives the context the long-lived auth cache of the client. The schemes
+   * negotiated by the previous requests of the client, such as Digest, are
+   * sent preemptively; hosts without one get preemptive Basic, like
+   * enablePremptiveAuthentication.
+   */
+  private void useAuthCache(
+    CloseableHttpClient client,
+    HttpClientContext context,
+    String rawURL
+  )
+    throws MalformedURLException {
+    URL url = new URL(rawURL);
+    context.setAuthCache(
+      authCaches.get(
+        client,
+        new HttpHost(url.getHost(), url.getPort(), url.getProtocol())
+      )
+    );
+  }
+
   public static void enablePremptiveAuthentication(
     HttpClientContext context,
     String rawURL
@@ -186,14 +1188,52 @@ public class ContentLoaderExtended extends Resource {
       description = "Include the response code in response",
       baseType = "BOOLEAN",
       aspects = { "defaultValue:false" }
-    ) Boolean includeStatusCode
+    ) Boolean includeStatusCode,
+    @ThingworxServiceParameter(
+      name = "includeTimings",
+      description = "Include the duration of each phase of the request in response",
+      baseType = "BOOLEAN",
+      aspects = { "defaultValue:false" }
+    ) Boolean includeTimings,
+    @ThingworxServiceParameter(
+      name = "compressRequest",
+      description = "Compress the request body with gzip, the server must accept gzip encoded bodies",
+      baseType = "BOOLEAN",
+      aspects = { "defaultValue:false" }
+    ) Boolean compressRequest,
+    @ThingworxServiceParameter(
+      name = "useHttp2",
+      description = "Send https requests over a shared, multiplexed HTTP/2 connection, hosts that do not negotiate HTTP/2 fall back to HTTP/1.1. The request and response bodies are then buffered in memory and the credentials are only sent as preemptive basic authentication",
+      baseType = "BOOLEAN",
+      aspects = { "defaultValue:false" }
+    ) Boolean useHttp2,
+    @ThingworxServiceParameter(
+      name = "endpointProfile",
+      description = "Optional row of the EndpointProfiles configuration table. The url is then a path relative to its base url, and its connection settings, credentials and default headers replace the ones of the call",
+      baseType = "STRING"
+    ) String endpointProfile,
+    @ThingworxServiceParameter(
+      name = "queueTimeout",
+      description = "Optional time to wait, in milliseconds, when the host is at the limits of its HostLimits row, 0 to fail immediately. Overrides the queue timeout of the row",
+      baseType = "INTEGER"
+    ) Integer queueTimeout
   )
     throws Exception {
+    // the result echoes the headers of the call, not the ones of the profile
+    JSONObject callHeaders = headers;
+    EndpointProfiles.Profile profile = getEndpointProfile(endpointProfile);
+    if (profile != null) {
+      url = profile.resolveUrl(url);
+      headers = getProfileHeaders(profile, headers);
+      username = profile.getUsername();
+      password = profile.getPassword();
+    }
     JSONObject json;
     HttpPatch patch = new HttpPatch(url);
 
-    try (
-      CloseableHttpClient client = HttpUtilities.createHttpClient(
+    CloseableHttpClient client = profile != null
+      ? profile.getClient()
+      : getPooledHttpClient(
         username,
         password,
         ignoreSSLErrors,
@@ -204,9 +1244,13 @@ public class ContentLoaderExtended extends Resource {
         useProxy,
         proxyHost,
         proxyPort,
-        proxyScheme
-      )
-    ) {
+        proxyScheme,
+        null,
+        null,
+        null
+      );
+
+    try {
       String cookieResult;
       if (headers != null) {
         if (headers.length() == 0) {
@@ -224,41 +1268,63 @@ public class ContentLoaderExtended extends Resource {
       patch.addHeader("Accept", "application/json");
       if (content != null) {
         patch.setEntity(
-          new StringEntity(
-            content,
-            ContentType.create(
-              "application/json",
-              RESTAPIConstants.getUTF8Charset()
+          compressIfRequested(
+            compressRequest,
+            new StringEntity(
+              content,
+              ContentType.create(
+                "application/json",
+                RESTAPIConstants.getUTF8Charset()
+              )
             )
           )
         );
       }
 
-      HttpClientContext context = HttpClientContext.create();
-      enablePremptiveAuthentication(context, url);
+      HttpClientContext context = createContext();
+      useAuthCache(client, context, url);
+      HostLimits.setQueueTimeout(context, queueTimeout);
+      startTimings(includeTimings, context);
+      bindHttp2Client(
+        profile,
+        useHttp2,
+        context,
+        username,
+        password,
+        ignoreSSLErrors,
+        timeout,
+        useNTLM,
+        useProxy,
+        null,
+        null,
+        null
+      );
 
-      try (CloseableHttpResponse response = client.execute(patch, context)) {
+      try (
+        CloseableHttpResponse response = executeRequest(
+          client,
+          patch,
+          context,
+          "PatchJSON"
+        )
+      ) {
         if (
           response.getStatusLine().getStatusCode() ==
           RESTAPIConstants.StatusCode.STATUS_NO_CONTENT.httpCode()
         ) {
           json = new JSONObject();
         } else {
-          cookieResult =
-            IOUtils.toString(
-              response.getEntity().getContent(),
-              StandardCharsets.UTF_8.name()
-            );
-          json = JSONUtilities.readJSON(cookieResult);
+          json = JsonStreamReader.readJSON(response.getEntity());
         }
 
-        if (headers != null) {
-          json.put("headers", headers);
+        if (callHeaders != null) {
+          json.put("headers", callHeaders);
         } else {
           json.put("headers", "");
         }
-        addResponseStatus(includeStatusCode, json, response);
+        addResponseStatus(includeStatusCode, json, response.getStatusLine());
       }
+      addTimings(includeTimings, json, context);
     } finally {
       try {
         patch.reset();
@@ -374,27 +1440,45 @@ public class ContentLoaderExtended extends Resource {
       description = "Password of the p12 file",
       baseType = "STRING",
       aspects = { "defaultvalue:changeit" }
-    ) String certFilePassword
+    ) String certFilePassword,
+    @ThingworxServiceParameter(
+      name = "useCache",
+      description = "Serve the response from the response cache when the server allows it",
+      baseType = "BOOLEAN",
+      aspects = { "defaultValue:false" }
+    ) Boolean useCache,
+    @ThingworxServiceParameter(
+      name = "useHttp2",
+      description = "Send https requests over a shared, multiplexed HTTP/2 connection, hosts that do not negotiate HTTP/2 fall back to HTTP/1.1. The request and response bodies are then buffered in memory and the credentials are only sent as preemptive basic authentication",
+      baseType = "BOOLEAN",
+      aspects = { "defaultValue:false" }
+    ) Boolean useHttp2,
+    @ThingworxServiceParameter(
+      name = "endpointProfile",
+      description = "Optional row of the EndpointProfiles configuration table. The url is then a path relative to its base url, and its connection settings, credentials and default headers replace the ones of the call",
+      baseType = "STRING"
+    ) String endpointProfile,
+    @ThingworxServiceParameter(
+      name = "queueTimeout",
+      description = "Optional time to wait, in milliseconds, when the host is at the limits of its HostLimits row, 0 to fail immediately. Overrides the queue timeout of the row",
+      baseType = "INTEGER"
+    ) Integer queueTimeout
   )
     throws Exception {
+    EndpointProfiles.Profile profile = getEndpointProfile(endpointProfile);
+    if (profile != null) {
+      url = profile.resolveUrl(url);
+      headers = getProfileHeaders(profile, headers);
+      username = profile.getUsername();
+      password = profile.getPassword();
+      fileRepository = profile.getCertRepository();
+      certFilePath = profile.getCertFilePath();
+    }
     String result;
     HttpGet httpGet = new HttpGet(url);
-    ByteArrayInputStream stream = null;
-
-    // look if the certFile parth and the repository is enabled. If yes, then attempt to load the cert
-    if (
-      !StringUtilities.isNullOrEmpty(fileRepository) &&
-      !StringUtilities.isNullOrEmpty(certFilePath)
-    ) {
-      FileRepositoryThing fileRepo = (FileRepositoryThing) EntityUtilities.findEntity(
-        fileRepository,
-        RelationshipTypes.ThingworxRelationshipTypes.Thing
-      );
-      stream = new ByteArrayInputStream(fileRepo.LoadBinary(certFilePath));
-    }
-
-    try (
-      CloseableHttpClient client = createHttpClient(
+    CloseableHttpClient client = profile != null
+      ? profile.getClient()
+      : getPooledHttpClient(
         username,
         password,
         ignoreSSLErrors,
@@ -406,10 +1490,12 @@ public class ContentLoaderExtended extends Resource {
         proxyHost,
         proxyPort,
         proxyScheme,
-        stream,
+        fileRepository,
+        certFilePath,
         certFilePassword
-      )
-    ) {
+      );
+
+    try {
       if (headers != null) {
         if (headers.length() == 0) {
           _logger.error("Error constructing headers JSONObject");
@@ -422,21 +1508,51 @@ public class ContentLoaderExtended extends Resource {
         }
       }
 
-      HttpClientContext context = HttpClientContext.create();
-      enablePremptiveAuthentication(context, url);
+      HttpClientContext context = createContext();
+      useAuthCache(client, context, url);
+      HostLimits.setQueueTimeout(context, queueTimeout);
+      bindHttp2Client(
+        profile,
+        useHttp2,
+        context,
+        username,
+        password,
+        ignoreSSLErrors,
+        timeout,
+        useNTLM,
+        useProxy,
+        fileRepository,
+        certFilePath,
+        certFilePassword
+      );
 
-      try (CloseableHttpResponse response = client.execute(httpGet, context)) {
-        if (
-          response.getStatusLine().getStatusCode() ==
-          RESTAPIConstants.StatusCode.STATUS_NO_CONTENT.httpCode()
+      if (useCache != null && useCache) {
+        ResponseCache.Entry entry = executeCachedGet(
+          client,
+          httpGet,
+          context,
+          getCacheKey(client, url, headers),
+          "GetString"
+        );
+        result =
+          StringUtilities.decode(entry.getBody(), entry.getContentType());
+      } else {
+        try (
+          CloseableHttpResponse response = executeRequest(
+            client,
+            httpGet,
+            context,
+            "GetString"
+          )
         ) {
-          result = "";
-        } else {
-          result =
-            IOUtils.toString(
-              response.getEntity().getContent(),
-              StandardCharsets.UTF_8.name()
-            );
+          if (
+            response.getStatusLine().getStatusCode() ==
+            RESTAPIConstants.StatusCode.STATUS_NO_CONTENT.httpCode()
+          ) {
+            result = "";
+          } else {
+            result = StringUtilities.readFromEntity(response.getEntity());
+          }
         }
       }
     } finally {
@@ -566,28 +1682,39 @@ public class ContentLoaderExtended extends Resource {
       description = "Path in the result file repository",
       baseType = "STRING",
       aspects = { "defaultvalue:result.data" }
-    ) String resultFilePath
+    ) String resultFilePath,
+    @ThingworxServiceParameter(
+      name = "useCache",
+      description = "Serve the response from the response cache when the server allows it",
+      baseType = "BOOLEAN",
+      aspects = { "defaultValue:false" }
+    ) Boolean useCache,
+    @ThingworxServiceParameter(
+      name = "endpointProfile",
+      description = "Optional row of the EndpointProfiles configuration table. The url is then a path relative to its base url, and its connection settings, credentials and default headers replace the ones of the call",
+      baseType = "STRING"
+    ) String endpointProfile,
+    @ThingworxServiceParameter(
+      name = "queueTimeout",
+      description = "Optional time to wait, in milliseconds, when the host is at the limits of its HostLimits row, 0 to fail immediately. Overrides the queue timeout of the row",
+      baseType = "INTEGER"
+    ) Integer queueTimeout
   )
     throws Exception {
+    EndpointProfiles.Profile profile = getEndpointProfile(endpointProfile);
+    if (profile != null) {
+      url = profile.resolveUrl(url);
+      headers = getProfileHeaders(profile, headers);
+      username = profile.getUsername();
+      password = profile.getPassword();
+      fileRepository = profile.getCertRepository();
+      certFilePath = profile.getCertFilePath();
+    }
     byte[] result = new byte[0];
     HttpGet httpGet = new HttpGet(url);
-    ByteArrayInputStream stream = null;
-
-    // look if the certFile parth and the repository is enabled. If yes, then attempt to load the cert
-    if (
-      !StringUtilities.isNullOrEmpty(fileRepository) &&
-      !StringUtilities.isNullOrEmpty(certFilePath)
-    ) {
-      FileRepositoryThing fileRepo = (FileRepositoryThing) EntityUtilities.findEntity(
-        fileRepository,
-        RelationshipTypes.ThingworxRelationshipTypes.Thing
-      );
-      stream = new ByteArrayInputStream(fileRepo.LoadBinary(certFilePath));
-      _logger.info("Read certificate from file");
-    }
-
-    try (
-      CloseableHttpClient client = createHttpClient(
+    CloseableHttpClient client = profile != null
+      ? profile.getClient()
+      : getPooledHttpClient(
         username,
         password,
         ignoreSSLErrors,
@@ -599,10 +1726,12 @@ public class ContentLoaderExtended extends Resource {
         proxyHost,
         proxyPort,
         proxyScheme,
-        stream,
+        fileRepository,
+        certFilePath,
         certFilePassword
-      )
-    ) {
+      );
+
+    try {
       if (headers != null) {
         if (headers.length() == 0) {
           _logger.error("Error constructing headers JSONObject");
@@ -615,25 +1744,45 @@ public class ContentLoaderExtended extends Resource {
         }
       }
 
-      HttpClientContext context = HttpClientContext.create();
-      enablePremptiveAuthentication(context, url);
+      HttpClientContext context = createContext();
+      useAuthCache(client, context, url);
+      HostLimits.setQueueTimeout(context, queueTimeout);
 
-      try (CloseableHttpResponse response = client.execute(httpGet, context)) {
-        if (
-          response.getStatusLine().getStatusCode() ==
-          RESTAPIConstants.StatusCode.STATUS_NO_CONTENT.httpCode()
-        ) {} else {
-          result =
-            StreamUtilities.readStreamToByteArray(
-              response.getEntity().getContent()
-            );
+      if (useCache != null && useCache) {
+        result =
+          executeCachedGet(
+              client,
+              httpGet,
+              context,
+              getCacheKey(client, url, headers),
+              "GetBlob"
+            )
+            .getBody();
+      } else {
+        try (
+          CloseableHttpResponse response = executeRequest(
+            client,
+            httpGet,
+            context,
+            "GetBlob"
+          )
+        ) {
+          if (
+            response.getStatusLine().getStatusCode() ==
+            RESTAPIConstants.StatusCode.STATUS_NO_CONTENT.httpCode()
+          ) {} else {
+            result =
+              StreamUtilities.readStreamToByteArray(
+                response.getEntity().getContent()
+              );
+          }
         }
-        _logger.info(
-          "Read executed GET request and read " +
-          result.length +
-          " out of the stream"
-        );
       }
+      _logger.info(
+        "Read executed GET request and read " +
+        result.length +
+        " out of the stream"
+      );
       if (
         !StringUtilities.isNullOrEmpty(resultFilePath) &&
         !StringUtilities.isNullOrEmpty(resultFileRepository)
@@ -660,16 +1809,17 @@ public class ContentLoaderExtended extends Resource {
   }
 
   @ThingworxServiceDefinition(
-    name = "GetJSON",
-    description = "Get json content from a URL",
-    category = "JSON"
+    name = "DownloadToRepository",
+    description = "Stream content using GET from a server into a file repository, without holding it in memory",
+    category = "BLOB"
   )
   @ThingworxServiceResult(
     name = "result",
-    description = "Loaded content as text content",
-    baseType = "JSON"
+    description = "Size, duration and content type of the download",
+    baseType = "INFOTABLE",
+    aspects = { "dataShape:DownloadResult_DS" }
   )
-  public JSONObject GetJSON(
+  public InfoTable DownloadToRepository(
     @ThingworxServiceParameter(
       name = "url",
       description = "URL to load",
@@ -695,12 +1845,6 @@ public class ContentLoaderExtended extends Resource {
       description = "Ignore SSL Certificate Errors",
       baseType = "BOOLEAN"
     ) Boolean ignoreSSLErrors,
-    @ThingworxServiceParameter(
-      name = "withCookies",
-      description = "Include cookies in response",
-      baseType = "BOOLEAN",
-      aspects = { "defaultValue:false" }
-    ) Boolean withCookies,
     @ThingworxServiceParameter(
       name = "timeout",
       description = "Optional timeout in seconds",
@@ -750,113 +1894,365 @@ public class ContentLoaderExtended extends Resource {
       aspects = { "defaultValue:http" }
     ) String proxyScheme,
     @ThingworxServiceParameter(
-      name = "includeStatusCode",
-      description = "Include the response code in response",
+      name = "fileRepository",
+      description = "FileRepository where the client keys are",
+      baseType = "THINGNAME",
+      aspects = { "thingTemplate:FileRepository" }
+    ) String fileRepository,
+    @ThingworxServiceParameter(
+      name = "certFilePath",
+      description = "Path to the p12 cert file",
+      baseType = "STRING",
+      aspects = { "defaultvalue:cert.p12" }
+    ) String certFilePath,
+    @ThingworxServiceParameter(
+      name = "certFilePassword",
+      description = "Password of the p12 file",
+      baseType = "STRING",
+      aspects = { "defaultvalue:changeit" }
+    ) String certFilePassword,
+    @ThingworxServiceParameter(
+      name = "resultFileRepository",
+      description = "File repository where to store the result",
+      baseType = "THINGNAME",
+      aspects = { "thingTemplate:FileRepository" }
+    ) String resultFileRepository,
+    @ThingworxServiceParameter(
+      name = "resultFilePath",
+      description = "Path in the result file repository",
+      baseType = "STRING",
+      aspects = { "defaultvalue:result.data" }
+    ) String resultFilePath,
+    @ThingworxServiceParameter(
+      name = "resume",
+      description = "Continue a previous interrupted download of the same url into the same file with a range request",
       baseType = "BOOLEAN",
       aspects = { "defaultValue:false" }
-    ) Boolean includeStatusCode
+    ) Boolean resume,
+    @ThingworxServiceParameter(
+      name = "endpointProfile",
+      description = "Optional row of the EndpointProfiles configuration table. The url is then a path relative to its base url, and its connection settings, credentials and default headers replace the ones of the call",
+      baseType = "STRING"
+    ) String endpointProfile
   )
     throws Exception {
-    CloseableHttpClient client = createHttpClient(
-      username,
-      password,
-      ignoreSSLErrors,
-      timeout,
-      useNTLM,
-      workstation,
-      domain,
-      useProxy,
-      proxyHost,
-      proxyPort,
-      proxyScheme,
-      null,
-      null
+    if (
+      StringUtilities.isNullOrEmpty(resultFileRepository) ||
+      StringUtilities.isNullOrEmpty(resultFilePath)
+    ) {
+      throw new InvalidRequestException(
+        "Result file repository and path must be set",
+        RESTAPIConstants.StatusCode.STATUS_BAD_REQUEST
+      );
+    }
+    FileRepositoryThing resultFileRepo = findFileRepository(
+      resultFileRepository
     );
-    HttpGet get = new HttpGet(url);
-    JSONObject json = null;
+    EndpointProfiles.Profile profile = getEndpointProfile(endpointProfile);
+    if (profile != null) {
+      url = profile.resolveUrl(url);
+      headers = getProfileHeaders(profile, headers);
+    }
+
+    CloseableHttpClient client = profile != null
+      ? profile.getClient()
+      : getPooledHttpClient(
+        username,
+        password,
+        ignoreSSLErrors,
+        timeout,
+        useNTLM,
+        workstation,
+        domain,
+        useProxy,
+        proxyHost,
+        proxyPort,
+        proxyScheme,
+        fileRepository,
+        certFilePath,
+        certFilePassword
+      );
+    HttpGet httpGet = new HttpGet(url);
+    long startTime = System.nanoTime();
+    ValueCollection vc;
 
     try {
-      String cookieResult;
-      if (headers != null) {
-        Iterator iHeaders = headers.keys();
+      HttpClientUtilities.addHeaders(httpGet, headers);
+      HttpClientContext context = createContext();
+      useAuthCache(client, context, url);
 
-        while (iHeaders.hasNext()) {
-          String headerName = (String) iHeaders.next();
-          cookieResult = headers.get(headerName).toString();
-          get.addHeader(headerName, cookieResult);
-        }
+      if (resume != null && resume) {
+        vc =
+          downloadResumable(
+            client,
+            httpGet,
+            context,
+            resultFileRepo,
+            resultFilePath
+          );
+      } else {
+        vc = download(client, httpGet, context, resultFileRepo, resultFilePath);
+      }
+    } finally {
+      try {
+        httpGet.reset();
+      } catch (Exception ex) {
+        _logger.info(
+          "DownloadToRepository ERROR, exception caught resetting httpGet: {}",
+          ex.getMessage()
+        );
       }
+    }
 
-      get.addHeader("Accept", "application/json");
-      HttpClientContext context = HttpClientContext.create();
-      context.setCookieStore(new BasicCookieStore());
+    _logger.info(
+      "Streamed {} bytes from {} into {}",
+      vc.getValue("bytesWritten"),
+      url,
+      resultFilePath
+    );
 
-      enablePremptiveAuthentication(context, url);
+    vc.put(
+      "duration",
+      new NumberPrimitive((System.nanoTime() - startTime) / 1000000.0D)
+    );
+    InfoTable result = createInfoTable("DownloadResult_DS");
+    result.addRow(vc);
+    return result;
+  }
 
-      try (CloseableHttpResponse response = client.execute(get, context)) {
-        if (
-          response.getStatusLine().getStatusCode() ==
-          RESTAPIConstants.StatusCode.STATUS_NO_CONTENT.httpCode()
+  /**
+   * Downloads into the file, replacing its content with the response body.
+   * Error responses are not written, the file is then left untouched.
+   *
+   * @return the bytesWritten, resumedFrom, contentType, statusCode and
+   * segments
+   */
+  private ValueCollection download(
+    CloseableHttpClient client,
+    HttpGet httpGet,
+    HttpClientContext context,
+    FileRepositoryThing repository,
+    String path
+  )
+    throws Exception {
+    long bytesWritten = 0;
+    String contentType = "";
+    int statusCode;
+    try (
+      CloseableHttpResponse response = executeRequest(
+        client,
+        httpGet,
+        context,
+        "DownloadToRepository"
+      )
+    ) {
+      statusCode = response.getStatusLine().getStatusCode();
+      HttpEntity entity = response.getEntity();
+      if (entity != null && entity.getContentType() != null) {
+        contentType = entity.getContentType().getValue();
+      }
+      if (statusCode < 200 || statusCode >= 300) {
+        EntityUtils.consume(entity);
+      } else {
+        try (
+          FileOutputStream outputStream = repository.openFileForWrite(
+            path,
+            FileRepositoryThing.FileMode.WRITE
+          )
         ) {
-          json = new JSONObject();
-        } else {
-          cookieResult =
-            StringUtilities.readFromStream(
-              response.getEntity().getContent(),
-              true
-            );
-          json = JSONUtilities.readJSON(cookieResult);
+          if (entity != null) {
+            try (InputStream inputStream = entity.getContent()) {
+              bytesWritten =
+                StreamTransfer.copy(inputStream, outputStream.getChannel(), 0);
+            }
+          }
         }
+      }
+    }
 
-        if (withCookies) {
-          cookieResult = cookiesToString(context.getCookieStore().getCookies());
-          json.put("_cookies", cookieResult);
-        }
+    ValueCollection vc = new ValueCollection();
+    vc.put("bytesWritten", new LongPrimitive(bytesWritten));
+    vc.put("resumedFrom", new LongPrimitive(0));
+    vc.put("contentType", new StringPrimitive(contentType));
+    vc.put("statusCode", new IntegerPrimitive(statusCode));
+    vc.put("segments", new IntegerPrimitive(1));
+    return vc;
+  }
+
+  /**
+   * Downloads into the file, continuing from the end of the partial file
+   * left by a previous attempt when its state file is still valid. Only
+   * successful responses are written; the state file is updated with the
+   * progress even if the transfer fails, and removed once it completes.
+   *
+   * @return the bytesWritten, resumedFrom, contentType, statusCode and
+   * segments
+   */
+  private ValueCollection downloadResumable(
+    CloseableHttpClient client,
+    HttpGet httpGet,
+    HttpClientContext context,
+    FileRepositoryThing repository,
+    String path
+  )
+    throws Exception {
+    String url = httpGet.getURI().toString();
+    String statePath = path + DownloadState.SUFFIX;
+    DownloadState state = loadDownloadState(repository, path, url);
+    // the offsets must count the stored bytes, not the decoded ones
+    httpGet.setHeader("Accept-Encoding", "identity");
+    if (state != null) {
+      httpGet.setHeader("Range", "bytes=" + state.getOffset() + "-");
+      httpGet.setHeader("If-Range", state.getValidator());
+    }
+
+    long bytesWritten = 0;
+    long resumedFrom = 0;
+    String contentType = "";
+    int statusCode;
+    try (
+      CloseableHttpResponse response = executeRequest(
+        client,
+        httpGet,
+        context,
+        "DownloadToRepository"
+      )
+    ) {
+      statusCode = response.getStatusLine().getStatusCode();
+      HttpEntity entity = response.getEntity();
+      if (entity != null && entity.getContentType() != null) {
+        contentType = entity.getContentType().getValue();
+      }
+
+      if (
+        state != null &&
+        statusCode ==
+        RESTAPIConstants.StatusCode.STATUS_PARTIAL_CONTENT.httpCode() &&
+        DownloadState.getRangeStart(response) == state.getOffset()
+      ) {
+        resumedFrom = state.getOffset();
+      } else if (
+        statusCode == RESTAPIConstants.StatusCode.STATUS_SUCCESS.httpCode()
+      ) {
+        // first attempt, or the resource changed since the last one
+        String validator = DownloadState.getValidator(response);
+        state =
+          validator != null
+            ? new DownloadState(
+              url,
+              validator,
+              DownloadState.getTotalLength(response),
+              0
+            )
+            : null;
+      } else {
+        // nothing to write, the partial file and its state are kept
+        EntityUtils.consume(entity);
+        state = null;
+        entity = null;
+      }
 
-        if (headers != null) {
-          json.put("headers", headers);
+      if (entity != null) {
+        if (state != null) {
+          repository.SaveJSON(statePath, state.toJSON());
         } else {
-          json.put("headers", "");
+          repository.DeleteFile(statePath);
+        }
+        try (
+          FileOutputStream outputStream = repository.openFileForWrite(
+            path,
+            resumedFrom > 0
+              ? FileRepositoryThing.FileMode.APPEND
+              : FileRepositoryThing.FileMode.WRITE
+          );
+          InputStream inputStream = entity.getContent()
+        ) {
+          // the channel writes at the end of the partial file in APPEND mode
+          bytesWritten =
+            StreamTransfer.append(inputStream, outputStream.getChannel());
+        } finally {
+          if (state != null) {
+            state.setOffset(getRepositoryFileLength(repository, path));
+            if (state.isComplete()) {
+              repository.DeleteFile(statePath);
+            } else {
+              repository.SaveJSON(statePath, state.toJSON());
+            }
+          }
         }
-        addResponseStatus(includeStatusCode, json, response);
-      }
-    } finally {
-      try {
-        get.reset();
-      } catch (Exception ex) {
-        _logger.info(
-          "LoadJSON ERROR, exception caught resetting HttpGet: {}",
-          ex.getMessage()
-        );
       }
+    }
 
-      client.close();
+    ValueCollection vc = new ValueCollection();
+    vc.put("bytesWritten", new LongPrimitive(bytesWritten));
+    vc.put("resumedFrom", new LongPrimitive(resumedFrom));
+    vc.put("contentType", new StringPrimitive(contentType));
+    vc.put("statusCode", new IntegerPrimitive(statusCode));
+    vc.put("segments", new IntegerPrimitive(1));
+    return vc;
+  }
+
+  /**
+   * @return the saved state of the download of the url into the path, with
+   * the current length of the partial file as offset, or null if there is no
+   * valid partial download to continue
+   */
+  private static DownloadState loadDownloadState(
+    FileRepositoryThing repository,
+    String path,
+    String url
+  ) {
+    String statePath = path + DownloadState.SUFFIX;
+    if (!new File(repository.getRootPath(), statePath).isFile()) {
+      return null;
+    }
+    try {
+      DownloadState state = DownloadState.fromJSON(
+        repository.LoadJSON(statePath)
+      );
+      if (state == null || !state.getUrl().equals(url)) {
+        return null;
+      }
+      // the file is written in order, everything in it was received
+      state.setOffset(getRepositoryFileLength(repository, path));
+      if (state.getOffset() == 0 || state.isComplete()) {
+        return null;
+      }
+      return state;
+    } catch (Exception ex) {
+      _logger.warn(
+        "Ignoring the download state {}: {}",
+        statePath,
+        ex.getMessage()
+      );
+      return null;
     }
+  }
 
-    return json;
+  private static long getRepositoryFileLength(
+    FileRepositoryThing repository,
+    String path
+  ) {
+    return new File(repository.getRootPath(), path).length();
   }
 
   @ThingworxServiceDefinition(
-    name = "PostJSON",
-    description = "Load JSON content from a URL via HTTP POST",
-    category = "JSON"
+    name = "DownloadSegmented",
+    description = "Download a large file into a file repository as byte ranges fetched in parallel, if the server supports ranges",
+    category = "BLOB"
   )
   @ThingworxServiceResult(
     name = "result",
-    description = "Loaded content as JSON Object",
-    baseType = "JSON"
+    description = "Size, duration and content type of the download",
+    baseType = "INFOTABLE",
+    aspects = { "dataShape:DownloadResult_DS" }
   )
-  public JSONObject PostJSON(
+  public InfoTable DownloadSegmented(
     @ThingworxServiceParameter(
       name = "url",
       description = "URL to load",
       baseType = "STRING"
     ) String url,
-    @ThingworxServiceParameter(
-      name = "content",
-      description = "Posted content as JSON object",
-      baseType = "JSON"
-    ) JSONObject content,
     @ThingworxServiceParameter(
       name = "username",
       description = "Optional user name credential",
@@ -877,12 +2273,6 @@ public class ContentLoaderExtended extends Resource {
       description = "Ignore SSL Certificate Errors",
       baseType = "BOOLEAN"
     ) Boolean ignoreSSLErrors,
-    @ThingworxServiceParameter(
-      name = "withCookies",
-      description = "Include cookies in response",
-      baseType = "BOOLEAN",
-      aspects = { "defaultValue:false" }
-    ) Boolean withCookies,
     @ThingworxServiceParameter(
       name = "timeout",
       description = "Optional timeout in seconds",
@@ -932,17 +2322,84 @@ public class ContentLoaderExtended extends Resource {
       aspects = { "defaultValue:http" }
     ) String proxyScheme,
     @ThingworxServiceParameter(
-      name = "includeStatusCode",
-      description = "Include the response code in response",
-      baseType = "BOOLEAN",
-      aspects = { "defaultValue:false" }
-    ) Boolean includeStatusCode
+      name = "fileRepository",
+      description = "FileRepository where the client keys are",
+      baseType = "THINGNAME",
+      aspects = { "thingTemplate:FileRepository" }
+    ) String fileRepository,
+    @ThingworxServiceParameter(
+      name = "certFilePath",
+      description = "Path to the p12 cert file",
+      baseType = "STRING",
+      aspects = { "defaultvalue:cert.p12" }
+    ) String certFilePath,
+    @ThingworxServiceParameter(
+      name = "certFilePassword",
+      description = "Password of the p12 file",
+      baseType = "STRING",
+      aspects = { "defaultvalue:changeit" }
+    ) String certFilePassword,
+    @ThingworxServiceParameter(
+      name = "resultFileRepository",
+      description = "File repository where to store the result",
+      baseType = "THINGNAME",
+      aspects = { "thingTemplate:FileRepository" }
+    ) String resultFileRepository,
+    @ThingworxServiceParameter(
+      name = "resultFilePath",
+      description = "Path in the result file repository",
+      baseType = "STRING",
+      aspects = { "defaultvalue:result.data" }
+    ) String resultFilePath,
+    @ThingworxServiceParameter(
+      name = "segments",
+      description = "Number of ranges downloaded in parallel, at most 16",
+      baseType = "INTEGER",
+      aspects = { "defaultValue:4" }
+    ) Integer segments,
+    @ThingworxServiceParameter(
+      name = "minSegmentSize",
+      description = "Minimum size of a range in bytes, smaller files use fewer segments",
+      baseType = "INTEGER",
+      aspects = { "defaultValue:1048576" }
+    ) Integer minSegmentSize,
+    @ThingworxServiceParameter(
+      name = "endpointProfile",
+      description = "Optional row of the EndpointProfiles configuration table. The url is then a path relative to its base url, and its connection settings, credentials and default headers replace the ones of the call",
+      baseType = "STRING"
+    ) String endpointProfile
   )
     throws Exception {
-    JSONObject json = null;
-
-    try (
-      CloseableHttpClient client = createHttpClient(
+    if (
+      StringUtilities.isNullOrEmpty(resultFileRepository) ||
+      StringUtilities.isNullOrEmpty(resultFilePath)
+    ) {
+      throw new InvalidRequestException(
+        "Result file repository and path must be set",
+        RESTAPIConstants.StatusCode.STATUS_BAD_REQUEST
+      );
+    }
+    if (
+      (segments != null && segments < 1) ||
+      (minSegmentSize != null && minSegmentSize < 1)
+    ) {
+      throw new InvalidRequestException(
+        "Segments and minimum segment size must be positive",
+        RESTAPIConstants.StatusCode.STATUS_BAD_REQUEST
+      );
+    }
+    FileRepositoryThing resultFileRepo = findFileRepository(
+      resultFileRepository
+    );
+    EndpointProfiles.Profile profile = getEndpointProfile(endpointProfile);
+    if (profile != null) {
+      url = profile.resolveUrl(url);
+      headers = getProfileHeaders(profile, headers);
+    }
+
+    CloseableHttpClient client = profile != null
+      ? profile.getClient()
+      : getPooledHttpClient(
         username,
         password,
         ignoreSSLErrors,
@@ -954,107 +2411,274 @@ public class ContentLoaderExtended extends Resource {
         proxyHost,
         proxyPort,
         proxyScheme,
-        null,
-        null
+        fileRepository,
+        certFilePath,
+        certFilePassword
+      );
+    long startTime = System.nanoTime();
+
+    // the HEAD response tells if the server accepts ranges and how long the
+    // content is
+    long length = -1;
+    String validator = null;
+    String contentType = "";
+    HttpHead httpHead = new HttpHead(url);
+    HttpClientUtilities.addHeaders(httpHead, headers);
+    httpHead.setHeader("Accept-Encoding", "identity");
+    HttpClientContext headContext = createContext();
+    useAuthCache(client, headContext, url);
+    try (
+      CloseableHttpResponse response = executeRequest(
+        client,
+        httpHead,
+        headContext,
+        "DownloadSegmented"
       )
     ) {
-      HttpPost post = new HttpPost(url);
-      String cookieResult;
-      if (headers != null) {
-        Iterator iHeaders = headers.keys();
-
-        while (iHeaders.hasNext()) {
-          String headerName = (String) iHeaders.next();
-          cookieResult = headers.get(headerName).toString();
-          post.addHeader(headerName, cookieResult);
+      Header acceptRanges = response.getFirstHeader("Accept-Ranges");
+      Header contentLength = response.getFirstHeader("Content-Length");
+      Header contentEncoding = response.getFirstHeader("Content-Encoding");
+      if (
+        response.getStatusLine().getStatusCode() ==
+        RESTAPIConstants.StatusCode.STATUS_SUCCESS.httpCode() &&
+        acceptRanges != null &&
+        acceptRanges.getValue().trim().equalsIgnoreCase("bytes") &&
+        contentLength != null &&
+        (
+          contentEncoding == null ||
+          contentEncoding.getValue().trim().equalsIgnoreCase("identity")
+        )
+      ) {
+        try {
+          length = Long.parseLong(contentLength.getValue().trim());
+        } catch (NumberFormatException ex) {
+          length = -1;
         }
+        // without a validator the segments could come from different
+        // versions of the resource
+        validator = DownloadState.getValidator(response);
       }
+      Header type = response.getFirstHeader("Content-Type");
+      if (type != null) {
+        contentType = type.getValue();
+      }
+    } finally {
+      httpHead.reset();
+    }
 
-      post.addHeader("Accept", "application/json");
-      if (content != null) {
-        post.setEntity(
-          new StringEntity(
-            JSONUtilities.writeJSON(content),
-            ContentType.create(
-              "application/json",
-              RESTAPIConstants.getUTF8Charset()
-            )
-          )
-        );
+    long segmentSize = minSegmentSize != null
+      ? minSegmentSize
+      : DEFAULT_MIN_SEGMENT_SIZE;
+    int count = (int) Math.min(
+      Math.min(
+        segments != null ? segments : DEFAULT_DOWNLOAD_SEGMENTS,
+        MAX_DOWNLOAD_SEGMENTS
+      ),
+      length > 0 ? (length + segmentSize - 1) / segmentSize : 1
+    );
+
+    ValueCollection vc;
+    if (validator == null || count < 2) {
+      _logger.info(
+        "Server does not support segmented download of {}, using a single stream",
+        url
+      );
+      HttpGet httpGet = new HttpGet(url);
+      try {
+        HttpClientUtilities.addHeaders(httpGet, headers);
+        HttpClientContext context = createContext();
+        useAuthCache(client, context, url);
+        vc = download(client, httpGet, context, resultFileRepo, resultFilePath);
+      } finally {
+        httpGet.reset();
       }
+    } else {
+      long bytesWritten = downloadSegments(
+        client,
+        url,
+        headers,
+        validator,
+        length,
+        count,
+        resultFileRepo,
+        resultFilePath
+      );
+      vc = new ValueCollection();
+      vc.put("bytesWritten", new LongPrimitive(bytesWritten));
+      vc.put("resumedFrom", new LongPrimitive(0));
+      vc.put("contentType", new StringPrimitive(contentType));
+      vc.put(
+        "statusCode",
+        new IntegerPrimitive(
+          RESTAPIConstants.StatusCode.STATUS_SUCCESS.httpCode()
+        )
+      );
+      vc.put("segments", new IntegerPrimitive(count));
+    }
 
-      HttpClientContext context = HttpClientContext.create();
-      context.setCookieStore(new BasicCookieStore());
+    _logger.info(
+      "Downloaded {} bytes from {} into {} in {} segments",
+      vc.getValue("bytesWritten"),
+      url,
+      resultFilePath,
+      vc.getValue("segments")
+    );
 
-      enablePremptiveAuthentication(context, url);
+    vc.put(
+      "duration",
+      new NumberPrimitive((System.nanoTime() - startTime) / 1000000.0D)
+    );
+    InfoTable result = createInfoTable("DownloadResult_DS");
+    result.addRow(vc);
+    return result;
+  }
 
-      try (CloseableHttpResponse response = client.execute(post, context)) {
-        if (
-          response.getStatusLine().getStatusCode() ==
-          RESTAPIConstants.StatusCode.STATUS_NO_CONTENT.httpCode()
-        ) {
-          json = new JSONObject();
-        } else {
-          cookieResult =
-            StringUtilities.readFromStream(
-              response.getEntity().getContent(),
-              true
-            );
-          json = JSONUtilities.readJSON(cookieResult);
-        }
+  /**
+   * Splits the content in ranges of equal size, fetched in parallel over
+   * pooled connections and written at their offset in the file. If any range
+   * fails the others are aborted and the file is left incomplete.
+   *
+   * @return the number of bytes written
+   */
+  private long downloadSegments(
+    final CloseableHttpClient client,
+    final String url,
+    JSONObject headers,
+    final String validator,
+    long length,
+    int count,
+    FileRepositoryThing repository,
+    String path
+  )
+    throws Exception {
+    final List<HttpGet> requests = new ArrayList<>();
+    List<Future<Long>> results = new ArrayList<>();
+    long bytesWritten = 0;
+    try (
+      FileOutputStream outputStream = repository.openFileForWrite(
+        path,
+        FileRepositoryThing.FileMode.WRITE
+      )
+    ) {
+      final FileChannel channel = outputStream.getChannel();
+      for (int i = 0; i < count; i++) {
+        final long start = length * i / count;
+        final long end = length * (i + 1) / count - 1;
+        final HttpGet httpGet = new HttpGet(url);
+        HttpClientUtilities.addHeaders(httpGet, headers);
+        requests.add(httpGet);
+        results.add(
+          getBatchExecutor()
+            .submit(
+              () ->
+                downloadSegment(client, httpGet, validator, channel, start, end)
+            )
+        );
+      }
 
-        if (withCookies) {
-          cookieResult = cookiesToString(context.getCookieStore().getCookies());
-          json.put("_cookies", cookieResult);
+      try {
+        for (Future<Long> segment : results) {
+          bytesWritten += segment.get();
         }
-        addResponseStatus(includeStatusCode, json, response);
-        if (headers != null) {
-          json.put("headers", headers);
-        } else {
-          json.put("headers", "");
+      } catch (ExecutionException ex) {
+        // a blocked read does not react to interruption, abort the requests
+        for (HttpGet httpGet : requests) {
+          httpGet.abort();
+        }
+        if (ex.getCause() instanceof Exception) {
+          throw (Exception) ex.getCause();
+        }
+        throw ex;
+      } finally {
+        for (Future<Long> segment : results) {
+          segment.cancel(true);
         }
       }
     }
+    return bytesWritten;
+  }
 
-    return json;
+  private long downloadSegment(
+    CloseableHttpClient client,
+    HttpGet httpGet,
+    String validator,
+    FileChannel channel,
+    long start,
+    long end
+  )
+    throws Exception {
+    httpGet.setHeader("Accept-Encoding", "identity");
+    httpGet.setHeader("Range", "bytes=" + start + "-" + end);
+    httpGet.setHeader("If-Range", validator);
+    HttpClientContext context = createContext();
+    useAuthCache(client, context, httpGet.getURI().toString());
+
+    try (
+      CloseableHttpResponse response = executeRequest(
+        client,
+        httpGet,
+        context,
+        "DownloadSegmented"
+      )
+    ) {
+      int statusCode = response.getStatusLine().getStatusCode();
+      if (
+        statusCode !=
+        RESTAPIConstants.StatusCode.STATUS_PARTIAL_CONTENT.httpCode() ||
+        DownloadState.getRangeStart(response) != start
+      ) {
+        // closing the response without reading it drops the connection
+        throw new IOException(
+          "Range " +
+          start +
+          "-" +
+          end +
+          " of " +
+          httpGet.getURI() +
+          " returned status " +
+          statusCode +
+          ", the resource may have changed"
+        );
+      }
+      long written;
+      try (InputStream inputStream = response.getEntity().getContent()) {
+        written = StreamTransfer.copy(inputStream, channel, start);
+      }
+      if (written != end - start + 1) {
+        throw new IOException(
+          "Range " +
+          start +
+          "-" +
+          end +
+          " of " +
+          httpGet.getURI() +
+          " ended after " +
+          written +
+          " bytes"
+        );
+      }
+      return written;
+    } finally {
+      httpGet.reset();
+    }
   }
 
   @ThingworxServiceDefinition(
-    name = "PostMultipart",
-    description = "Multipart data upload from Thingworx to and external target via HTTP POST",
-    category = "Multipart"
+    name = "GetJSON",
+    description = "Get json content from a URL",
+    category = "JSON"
   )
   @ThingworxServiceResult(
     name = "result",
-    description = "Response as JSON Object",
+    description = "Loaded content as text content",
     baseType = "JSON"
   )
-  public JSONObject PostMultipart(
+  public JSONObject GetJSON(
     @ThingworxServiceParameter(
       name = "url",
       description = "URL to load",
       baseType = "STRING"
     ) String url,
-    @ThingworxServiceParameter(
-      name = "repository",
-      description = "Repository to get file from to upload",
-      baseType = "STRING"
-    ) String repository,
-    @ThingworxServiceParameter(
-      name = "pathOnRepository",
-      description = "Path on repository to file",
-      baseType = "STRING"
-    ) String pathOnRepository,
-    @ThingworxServiceParameter(
-      name = "partsToSend",
-      description = "Infotable where each field is a part to send",
-      baseType = "INFOTABLE"
-    ) InfoTable partsToSend,
-    @ThingworxServiceParameter(
-      name = "multipartFileName",
-      description = "Optional user name credential",
-      baseType = "STRING"
-    ) String multipartFileName,
     @ThingworxServiceParameter(
       name = "username",
       description = "Optional user name credential",
@@ -1075,6 +2699,12 @@ public class ContentLoaderExtended extends Resource {
       description = "Ignore SSL Certificate Errors",
       baseType = "BOOLEAN"
     ) Boolean ignoreSSLErrors,
+    @ThingworxServiceParameter(
+      name = "withCookies",
+      description = "Include cookies in response",
+      baseType = "BOOLEAN",
+      aspects = { "defaultValue:false" }
+    ) Boolean withCookies,
     @ThingworxServiceParameter(
       name = "timeout",
       description = "Optional timeout in seconds",
@@ -1128,29 +2758,57 @@ public class ContentLoaderExtended extends Resource {
       description = "Include the response code in response",
       baseType = "BOOLEAN",
       aspects = { "defaultValue:false" }
-    ) Boolean includeStatusCode
+    ) Boolean includeStatusCode,
+    @ThingworxServiceParameter(
+      name = "includeTimings",
+      description = "Include the duration of each phase of the request in response",
+      baseType = "BOOLEAN",
+      aspects = { "defaultValue:false" }
+    ) Boolean includeTimings,
+    @ThingworxServiceParameter(
+      name = "useCache",
+      description = "Serve the response from the response cache when the server allows it",
+      baseType = "BOOLEAN",
+      aspects = { "defaultValue:false" }
+    ) Boolean useCache,
+    @ThingworxServiceParameter(
+      name = "useHttp2",
+      description = "Send https requests over a shared, multiplexed HTTP/2 connection, hosts that do not negotiate HTTP/2 fall back to HTTP/1.1. The request and response bodies are then buffered in memory and the credentials are only sent as preemptive basic authentication. Not applied with withCookies",
+      baseType = "BOOLEAN",
+      aspects = { "defaultValue:false" }
+    ) Boolean useHttp2,
+    @ThingworxServiceParameter(
+      name = "coalesce",
+      description = "Share the response of an identical GET already in flight (same url, headers and connection settings) instead of sending another one. Not applied with withCookies",
+      baseType = "BOOLEAN",
+      aspects = { "defaultValue:false" }
+    ) Boolean coalesce,
+    @ThingworxServiceParameter(
+      name = "endpointProfile",
+      description = "Optional row of the EndpointProfiles configuration table. The url is then a path relative to its base url, and its connection settings, credentials and default headers replace the ones of the call",
+      baseType = "STRING"
+    ) String endpointProfile,
+    @ThingworxServiceParameter(
+      name = "queueTimeout",
+      description = "Optional time to wait, in milliseconds, when the host is at the limits of its HostLimits row, 0 to fail immediately. Overrides the queue timeout of the row",
+      baseType = "INTEGER"
+    ) Integer queueTimeout
   )
     throws Exception {
-    ValueCollection vc = new ValueCollection();
-    vc.put("repository", new StringPrimitive(repository));
-    vc.put("pathOnRepository", new StringPrimitive(pathOnRepository));
-    vc.put("multipartFileName", new StringPrimitive(multipartFileName));
-    DataShape dataShapeReference =
-      (
-        (DataShape) EntityUtilities.findEntity(
-          "MultipartFiles_DS",
-          RelationshipTypes.ThingworxRelationshipTypes.DataShape
-        )
-      );
-    InfoTable filesToSend = new InfoTable(dataShapeReference.getDataShape());
-    filesToSend.addRow(vc);
-    return this.PostMultipartMultipleFiles(
-        url,
-        partsToSend,
-        filesToSend,
+    // the result echoes the headers of the call, not the ones of the profile
+    JSONObject callHeaders = headers;
+    EndpointProfiles.Profile profile = getEndpointProfile(endpointProfile);
+    if (profile != null) {
+      url = profile.resolveUrl(url);
+      headers = getProfileHeaders(profile, headers);
+      username = profile.getUsername();
+      password = profile.getPassword();
+    }
+    CloseableHttpClient client = profile != null
+      ? profile.getClient()
+      : getPooledHttpClient(
         username,
         password,
-        headers,
         ignoreSSLErrors,
         timeout,
         useNTLM,
@@ -1160,36 +2818,142 @@ public class ContentLoaderExtended extends Resource {
         proxyHost,
         proxyPort,
         proxyScheme,
-        includeStatusCode
+        null,
+        null,
+        null
       );
+    HttpGet get = new HttpGet(url);
+    JSONObject json = null;
+
+    try {
+      String cookieResult;
+      if (headers != null) {
+        Iterator iHeaders = headers.keys();
+
+        while (iHeaders.hasNext()) {
+          String headerName = (String) iHeaders.next();
+          cookieResult = headers.get(headerName).toString();
+          get.addHeader(headerName, cookieResult);
+        }
+      }
+
+      get.addHeader("Accept", "application/json");
+      HttpClientContext context = createContext();
+
+      useAuthCache(client, context, url);
+      HostLimits.setQueueTimeout(context, queueTimeout);
+      startTimings(includeTimings, context);
+      // the HTTP/2 client does not manage cookies
+      if (withCookies == null || !withCookies) {
+        bindHttp2Client(
+          profile,
+          useHttp2,
+          context,
+          username,
+          password,
+          ignoreSSLErrors,
+          timeout,
+          useNTLM,
+          useProxy,
+          null,
+          null,
+          null
+        );
+      }
+
+      boolean cached = useCache != null && useCache;
+      // the cookies belong to the exchange of each caller
+      boolean coalesced =
+        coalesce != null && coalesce && (withCookies == null || !withCookies);
+      StatusLine statusLine;
+      if (cached || coalesced) {
+        ResponseCache.Entry entry = executeBufferedGet(
+          client,
+          get,
+          context,
+          getCacheKey(client, url, headers),
+          cached,
+          coalesced,
+          "GetJSON"
+        );
+        statusLine = entry.getStatusLine();
+        if (
+          statusLine.getStatusCode() ==
+          RESTAPIConstants.StatusCode.STATUS_NO_CONTENT.httpCode()
+        ) {
+          json = new JSONObject();
+        } else {
+          json =
+            JsonStreamReader.readJSON(entry.getBody(), entry.getContentType());
+        }
+      } else {
+        try (
+          CloseableHttpResponse response = executeRequest(
+            client,
+            get,
+            context,
+            "GetJSON"
+          )
+        ) {
+          statusLine = response.getStatusLine();
+          if (
+            statusLine.getStatusCode() ==
+            RESTAPIConstants.StatusCode.STATUS_NO_CONTENT.httpCode()
+          ) {
+            json = new JSONObject();
+          } else {
+            json = JsonStreamReader.readJSON(response.getEntity());
+          }
+        }
+      }
+
+      if (withCookies) {
+        cookieResult = cookiesToString(context.getCookieStore().getCookies());
+        json.put("_cookies", cookieResult);
+      }
+
+      if (callHeaders != null) {
+        json.put("headers", callHeaders);
+      } else {
+        json.put("headers", "");
+      }
+      addResponseStatus(includeStatusCode, json, statusLine);
+      addTimings(includeTimings, json, context);
+    } finally {
+      try {
+        get.reset();
+      } catch (Exception ex) {
+        _logger.info(
+          "LoadJSON ERROR, exception caught resetting HttpGet: {}",
+          ex.getMessage()
+        );
+      }
+    }
+
+    return json;
   }
 
   @ThingworxServiceDefinition(
-    name = "PostMultipartMultipleFiles",
-    description = "Multipart data upload from Thingworx to and external target via HTTP POST with multiple files",
-    category = "Multipart"
+    name = "PostJSON",
+    description = "Load JSON content from a URL via HTTP POST",
+    category = "JSON"
   )
   @ThingworxServiceResult(
     name = "result",
-    description = "Response as JSON Object",
+    description = "Loaded content as JSON Object",
     baseType = "JSON"
   )
-  public JSONObject PostMultipartMultipleFiles(
+  public JSONObject PostJSON(
     @ThingworxServiceParameter(
       name = "url",
       description = "URL to load",
       baseType = "STRING"
     ) String url,
     @ThingworxServiceParameter(
-      name = "partsToSend",
-      description = "Infotable where each row is a multipart part to send",
-      baseType = "INFOTABLE"
-    ) InfoTable partsToSend,
-    @ThingworxServiceParameter(
-      name = "filesToSend",
-      description = "Infotable where row field is a file that should be sent as part of the multipart request",
-      baseType = "INFOTABLE"
-    ) InfoTable filesToSend,
+      name = "content",
+      description = "Posted content as JSON object",
+      baseType = "JSON"
+    ) JSONObject content,
     @ThingworxServiceParameter(
       name = "username",
       description = "Optional user name credential",
@@ -1210,6 +2974,12 @@ public class ContentLoaderExtended extends Resource {
       description = "Ignore SSL Certificate Errors",
       baseType = "BOOLEAN"
     ) Boolean ignoreSSLErrors,
+    @ThingworxServiceParameter(
+      name = "withCookies",
+      description = "Include cookies in response",
+      baseType = "BOOLEAN",
+      aspects = { "defaultValue:false" }
+    ) Boolean withCookies,
     @ThingworxServiceParameter(
       name = "timeout",
       description = "Optional timeout in seconds",
@@ -1263,172 +3033,1666 @@ public class ContentLoaderExtended extends Resource {
       description = "Include the response code in response",
       baseType = "BOOLEAN",
       aspects = { "defaultValue:false" }
-    ) Boolean includeStatusCode
-  )
-    throws Exception {
-    FileRepositoryThing repoThing;
-    FileInputStream inputStream;
-
-    JSONObject result;
-    if (StringUtilities.isNullOrEmpty(url)) {
-      throw new InvalidRequestException(
-        "URL parameter cannot be blank",
-        RESTAPIConstants.StatusCode.STATUS_BAD_REQUEST
+    ) Boolean includeStatusCode,
+    @ThingworxServiceParameter(
+      name = "includeTimings",
+      description = "Include the duration of each phase of the request in response",
+      baseType = "BOOLEAN",
+      aspects = { "defaultValue:false" }
+    ) Boolean includeTimings,
+    @ThingworxServiceParameter(
+      name = "compressRequest",
+      description = "Compress the request body with gzip, the server must accept gzip encoded bodies",
+      baseType = "BOOLEAN",
+      aspects = { "defaultValue:false" }
+    ) Boolean compressRequest,
+    @ThingworxServiceParameter(
+      name = "useHttp2",
+      description = "Send https requests over a shared, multiplexed HTTP/2 connection, hosts that do not negotiate HTTP/2 fall back to HTTP/1.1. The request and response bodies are then buffered in memory and the credentials are only sent as preemptive basic authentication. Not applied with withCookies",
+      baseType = "BOOLEAN",
+      aspects = { "defaultValue:false" }
+    ) Boolean useHttp2,
+    @ThingworxServiceParameter(
+      name = "endpointProfile",
+      description = "Optional row of the EndpointProfiles configuration table. The url is then a path relative to its base url, and its connection settings, credentials and default headers replace the ones of the call",
+      baseType = "STRING"
+    ) String endpointProfile,
+    @ThingworxServiceParameter(
+      name = "queueTimeout",
+      description = "Optional time to wait, in milliseconds, when the host is at the limits of its HostLimits row, 0 to fail immediately. Overrides the queue timeout of the row",
+      baseType = "INTEGER"
+    ) Integer queueTimeout
+  )
+    throws Exception {
+    // the result echoes the headers of the call, not the ones of the profile
+    JSONObject callHeaders = headers;
+    EndpointProfiles.Profile profile = getEndpointProfile(endpointProfile);
+    if (profile != null) {
+      url = profile.resolveUrl(url);
+      headers = getProfileHeaders(profile, headers);
+      username = profile.getUsername();
+      password = profile.getPassword();
+    }
+    JSONObject json = null;
+
+    CloseableHttpClient client = profile != null
+      ? profile.getClient()
+      : getPooledHttpClient(
+        username,
+        password,
+        ignoreSSLErrors,
+        timeout,
+        useNTLM,
+        workstation,
+        domain,
+        useProxy,
+        proxyHost,
+        proxyPort,
+        proxyScheme,
+        null,
+        null,
+        null
+      );
+    HttpPost post = new HttpPost(url);
+    String cookieResult;
+    if (headers != null) {
+      Iterator iHeaders = headers.keys();
+
+      while (iHeaders.hasNext()) {
+        String headerName = (String) iHeaders.next();
+        cookieResult = headers.get(headerName).toString();
+        post.addHeader(headerName, cookieResult);
+      }
+    }
+
+    post.addHeader("Accept", "application/json");
+    if (content != null) {
+      post.setEntity(
+        compressIfRequested(
+          compressRequest,
+          new StringEntity(
+            JSONUtilities.writeJSON(content),
+            ContentType.create(
+              "application/json",
+              RESTAPIConstants.getUTF8Charset()
+            )
+          )
+        )
+      );
+    }
+
+    HttpClientContext context = createContext();
+
+    useAuthCache(client, context, url);
+    HostLimits.setQueueTimeout(context, queueTimeout);
+    startTimings(includeTimings, context);
+    // the HTTP/2 client does not manage cookies
+    if (withCookies == null || !withCookies) {
+      bindHttp2Client(
+        profile,
+        useHttp2,
+        context,
+        username,
+        password,
+        ignoreSSLErrors,
+        timeout,
+        useNTLM,
+        useProxy,
+        null,
+        null,
+        null
+      );
+    }
+
+    try (
+      CloseableHttpResponse response = executeRequest(
+        client,
+        post,
+        context,
+        "PostJSON"
+      )
+    ) {
+      if (
+        response.getStatusLine().getStatusCode() ==
+        RESTAPIConstants.StatusCode.STATUS_NO_CONTENT.httpCode()
+      ) {
+        json = new JSONObject();
+      } else {
+        json = JsonStreamReader.readJSON(response.getEntity());
+      }
+
+      if (withCookies) {
+        cookieResult = cookiesToString(context.getCookieStore().getCookies());
+        json.put("_cookies", cookieResult);
+      }
+      addResponseStatus(includeStatusCode, json, response.getStatusLine());
+      if (callHeaders != null) {
+        json.put("headers", callHeaders);
+      } else {
+        json.put("headers", "");
+      }
+    }
+    addTimings(includeTimings, json, context);
+
+    return json;
+  }
+
+  @ThingworxServiceDefinition(
+    name = "PostMultipart",
+    description = "Multipart data upload from Thingworx to and external target via HTTP POST",
+    category = "Multipart"
+  )
+  @ThingworxServiceResult(
+    name = "result",
+    description = "Response as JSON Object",
+    baseType = "JSON"
+  )
+  public JSONObject PostMultipart(
+    @ThingworxServiceParameter(
+      name = "url",
+      description = "URL to load",
+      baseType = "STRING"
+    ) String url,
+    @ThingworxServiceParameter(
+      name = "repository",
+      description = "Repository to get file from to upload",
+      baseType = "STRING"
+    ) String repository,
+    @ThingworxServiceParameter(
+      name = "pathOnRepository",
+      description = "Path on repository to file",
+      baseType = "STRING"
+    ) String pathOnRepository,
+    @ThingworxServiceParameter(
+      name = "partsToSend",
+      description = "Infotable where each field is a part to send",
+      baseType = "INFOTABLE"
+    ) InfoTable partsToSend,
+    @ThingworxServiceParameter(
+      name = "multipartFileName",
+      description = "Optional user name credential",
+      baseType = "STRING"
+    ) String multipartFileName,
+    @ThingworxServiceParameter(
+      name = "username",
+      description = "Optional user name credential",
+      baseType = "STRING"
+    ) String username,
+    @ThingworxServiceParameter(
+      name = "password",
+      description = "Optional password credential",
+      baseType = "STRING"
+    ) String password,
+    @ThingworxServiceParameter(
+      name = "headers",
+      description = "Optional HTTP headers",
+      baseType = "JSON"
+    ) JSONObject headers,
+    @ThingworxServiceParameter(
+      name = "ignoreSSLErrors",
+      description = "Ignore SSL Certificate Errors",
+      baseType = "BOOLEAN"
+    ) Boolean ignoreSSLErrors,
+    @ThingworxServiceParameter(
+      name = "timeout",
+      description = "Optional timeout in seconds",
+      baseType = "NUMBER",
+      aspects = { "defaultValue:60" }
+    ) Double timeout,
+    @ThingworxServiceParameter(
+      name = "useNTLM",
+      description = "Use NTLM Authentication",
+      baseType = "BOOLEAN",
+      aspects = { "defaultValue:false" }
+    ) Boolean useNTLM,
+    @ThingworxServiceParameter(
+      name = "workstation",
+      description = "Auth workstation",
+      baseType = "STRING",
+      aspects = { "defaultValue:" }
+    ) String workstation,
+    @ThingworxServiceParameter(
+      name = "domain",
+      description = "Auth domain",
+      baseType = "STRING",
+      aspects = { "defaultValue:" }
+    ) String domain,
+    @ThingworxServiceParameter(
+      name = "useProxy",
+      description = "Use Proxy server",
+      baseType = "BOOLEAN",
+      aspects = { "defaultValue:false" }
+    ) Boolean useProxy,
+    @ThingworxServiceParameter(
+      name = "proxyHost",
+      description = "Proxy host",
+      baseType = "STRING",
+      aspects = { "defaultValue:" }
+    ) String proxyHost,
+    @ThingworxServiceParameter(
+      name = "proxyPort",
+      description = "Proxy port",
+      baseType = "INTEGER",
+      aspects = { "defaultValue:8080" }
+    ) Integer proxyPort,
+    @ThingworxServiceParameter(
+      name = "proxyScheme",
+      description = "Proxy scheme",
+      baseType = "STRING",
+      aspects = { "defaultValue:http" }
+    ) String proxyScheme,
+    @ThingworxServiceParameter(
+      name = "includeStatusCode",
+      description = "Include the response code in response",
+      baseType = "BOOLEAN",
+      aspects = { "defaultValue:false" }
+    ) Boolean includeStatusCode,
+    @ThingworxServiceParameter(
+      name = "includeTimings",
+      description = "Include the duration of each phase of the request in response",
+      baseType = "BOOLEAN",
+      aspects = { "defaultValue:false" }
+    ) Boolean includeTimings,
+    @ThingworxServiceParameter(
+      name = "compressRequest",
+      description = "Compress the request body with gzip, the server must accept gzip encoded bodies",
+      baseType = "BOOLEAN",
+      aspects = { "defaultValue:false" }
+    ) Boolean compressRequest,
+    @ThingworxServiceParameter(
+      name = "endpointProfile",
+      description = "Optional row of the EndpointProfiles configuration table. The url is then a path relative to its base url, and its connection settings, credentials and default headers replace the ones of the call",
+      baseType = "STRING"
+    ) String endpointProfile
+  )
+    throws Exception {
+    ValueCollection vc = new ValueCollection();
+    vc.put("repository", new StringPrimitive(repository));
+    vc.put("pathOnRepository", new StringPrimitive(pathOnRepository));
+    vc.put("multipartFileName", new StringPrimitive(multipartFileName));
+    InfoTable filesToSend = createInfoTable("MultipartFiles_DS");
+    filesToSend.addRow(vc);
+    return this.PostMultipartMultipleFiles(
+        url,
+        partsToSend,
+        filesToSend,
+        username,
+        password,
+        headers,
+        ignoreSSLErrors,
+        timeout,
+        useNTLM,
+        workstation,
+        domain,
+        useProxy,
+        proxyHost,
+        proxyPort,
+        proxyScheme,
+        includeStatusCode,
+        includeTimings,
+        compressRequest,
+        endpointProfile
+      );
+  }
+
+  @ThingworxServiceDefinition(
+    name = "PostMultipartMultipleFiles",
+    description = "Multipart data upload from Thingworx to and external target via HTTP POST with multiple files",
+    category = "Multipart"
+  )
+  @ThingworxServiceResult(
+    name = "result",
+    description = "Response as JSON Object",
+    baseType = "JSON"
+  )
+  public JSONObject PostMultipartMultipleFiles(
+    @ThingworxServiceParameter(
+      name = "url",
+      description = "URL to load",
+      baseType = "STRING"
+    ) String url,
+    @ThingworxServiceParameter(
+      name = "partsToSend",
+      description = "Infotable where each row is a multipart part to send",
+      baseType = "INFOTABLE"
+    ) InfoTable partsToSend,
+    @ThingworxServiceParameter(
+      name = "filesToSend",
+      description = "Infotable where row field is a file that should be sent as part of the multipart request",
+      baseType = "INFOTABLE"
+    ) InfoTable filesToSend,
+    @ThingworxServiceParameter(
+      name = "username",
+      description = "Optional user name credential",
+      baseType = "STRING"
+    ) String username,
+    @ThingworxServiceParameter(
+      name = "password",
+      description = "Optional password credential",
+      baseType = "STRING"
+    ) String password,
+    @ThingworxServiceParameter(
+      name = "headers",
+      description = "Optional HTTP headers",
+      baseType = "JSON"
+    ) JSONObject headers,
+    @ThingworxServiceParameter(
+      name = "ignoreSSLErrors",
+      description = "Ignore SSL Certificate Errors",
+      baseType = "BOOLEAN"
+    ) Boolean ignoreSSLErrors,
+    @ThingworxServiceParameter(
+      name = "timeout",
+      description = "Optional timeout in seconds",
+      baseType = "NUMBER",
+      aspects = { "defaultValue:60" }
+    ) Double timeout,
+    @ThingworxServiceParameter(
+      name = "useNTLM",
+      description = "Use NTLM Authentication",
+      baseType = "BOOLEAN",
+      aspects = { "defaultValue:false" }
+    ) Boolean useNTLM,
+    @ThingworxServiceParameter(
+      name = "workstation",
+      description = "Auth workstation",
+      baseType = "STRING",
+      aspects = { "defaultValue:" }
+    ) String workstation,
+    @ThingworxServiceParameter(
+      name = "domain",
+      description = "Auth domain",
+      baseType = "STRING",
+      aspects = { "defaultValue:" }
+    ) String domain,
+    @ThingworxServiceParameter(
+      name = "useProxy",
+      description = "Use Proxy server",
+      baseType = "BOOLEAN",
+      aspects = { "defaultValue:false" }
+    ) Boolean useProxy,
+    @ThingworxServiceParameter(
+      name = "proxyHost",
+      description = "Proxy host",
+      baseType = "STRING",
+      aspects = { "defaultValue:" }
+    ) String proxyHost,
+    @ThingworxServiceParameter(
+      name = "proxyPort",
+      description = "Proxy port",
+      baseType = "INTEGER",
+      aspects = { "defaultValue:8080" }
+    ) Integer proxyPort,
+    @ThingworxServiceParameter(
+      name = "proxyScheme",
+      description = "Proxy scheme",
+      baseType = "STRING",
+      aspects = { "defaultValue:http" }
+    ) String proxyScheme,
+    @ThingworxServiceParameter(
+      name = "includeStatusCode",
+      description = "Include the response code in response",
+      baseType = "BOOLEAN",
+      aspects = { "defaultValue:false" }
+    ) Boolean includeStatusCode,
+    @ThingworxServiceParameter(
+      name = "includeTimings",
+      description = "Include the duration of each phase of the request in response",
+      baseType = "BOOLEAN",
+      aspects = { "defaultValue:false" }
+    ) Boolean includeTimings,
+    @ThingworxServiceParameter(
+      name = "compressRequest",
+      description = "Compress the request body with gzip, the server must accept gzip encoded bodies",
+      baseType = "BOOLEAN",
+      aspects = { "defaultValue:false" }
+    ) Boolean compressRequest,
+    @ThingworxServiceParameter(
+      name = "endpointProfile",
+      description = "Optional row of the EndpointProfiles configuration table. The url is then a path relative to its base url, and its connection settings, credentials and default headers replace the ones of the call",
+      baseType = "STRING"
+    ) String endpointProfile
+  )
+    throws Exception {
+    FileRepositoryThing repoThing;
+
+    JSONObject result;
+    EndpointProfiles.Profile profile = getEndpointProfile(endpointProfile);
+    if (profile != null) {
+      url = profile.resolveUrl(url);
+      headers = getProfileHeaders(profile, headers);
+    } else if (StringUtilities.isNullOrEmpty(url)) {
+      throw new InvalidRequestException(
+        "URL parameter cannot be blank",
+        RESTAPIConstants.StatusCode.STATUS_BAD_REQUEST
+      );
+    }
+
+    for (ValueCollection row : filesToSend.getRows()) {
+      if (
+        !ArgumentValidator.checkBothNotSetOrBothSet(
+          row.getStringValue("repository"),
+          row.getStringValue("pathOnRepository")
+        )
+      ) {
+        throw new InvalidRequestException(
+          "Invalid repository or path",
+          RESTAPIConstants.StatusCode.STATUS_BAD_REQUEST
+        );
+      }
+    }
+
+    if (partsToSend == null && filesToSend == null) {
+      throw new InvalidRequestException(
+        "Must have either filesToSend or partsToSend",
+        RESTAPIConstants.StatusCode.STATUS_BAD_REQUEST
+      );
+    }
+
+    MultipartEntityBuilder entityBuilder = MultipartEntityBuilder.create();
+    if (partsToSend != null) {
+      this.infoTableToMultipart(partsToSend, entityBuilder);
+    }
+
+    for (ValueCollection row : filesToSend.getRows()) {
+      String repository = row.getStringValue("repository");
+      String pathOnRepository = row.getStringValue("pathOnRepository");
+      String multipartFileName = row.getStringValue("multipartFileName");
+
+      if (
+        !StringUtilities.isNullOrEmpty(repository) &&
+        !StringUtilities.isNullOrEmpty(pathOnRepository)
+      ) {
+        String fileName = FilenameUtils.getName(pathOnRepository);
+        if (StringUtilities.isNullOrEmpty(fileName)) {
+          throw new InvalidRequestException(
+            "Filename could not be found in path: [" + pathOnRepository + "]",
+            RESTAPIConstants.StatusCode.STATUS_BAD_REQUEST
+          );
+        }
+
+        repoThing = (FileRepositoryThing) ThingUtilities.findThing(repository);
+        if (repoThing == null) {
+          throw new InvalidRequestException(
+            "File Repository [" + repository + "] does not exist",
+            RESTAPIConstants.StatusCode.STATUS_BAD_REQUEST
+          );
+        }
+
+        // checks that the file can be read, it is opened again when sent
+        try {
+          repoThing.openFileForRead(pathOnRepository).close();
+        } catch (Exception ex) {
+          throw new InvalidRequestException(
+            "File [" +
+            fileName +
+            "] in repository [" +
+            repository +
+            "] could not be opened for reading",
+            RESTAPIConstants.StatusCode.STATUS_BAD_REQUEST,
+            ex
+          );
+        }
+        String mimeType = URLConnection.guessContentTypeFromName(fileName);
+        ContentType contentType = mimeType != null
+          ? ContentType.create(mimeType)
+          : ContentType.APPLICATION_OCTET_STREAM;
+        entityBuilder.addPart(
+          multipartFileName,
+          new RepeatableStreamBody(
+            openRepositoryFile(repoThing, pathOnRepository),
+            contentType,
+            fileName
+          )
+        );
+      }
+    }
+
+    HttpEntity entity = HttpClientUtilities.buildStreamingEntity(entityBuilder);
+
+    CloseableHttpClient client = profile != null
+      ? profile.getClient()
+      : getPooledHttpClient(
+        username,
+        password,
+        ignoreSSLErrors,
+        timeout,
+        useNTLM,
+        workstation,
+        domain,
+        useProxy,
+        proxyHost,
+        proxyPort,
+        proxyScheme,
+        null,
+        null,
+        null
+      );
+    HttpPost post = new HttpPost(url);
+    String stringResult;
+    if (headers != null) {
+      Iterator iHeaders = headers.keys();
+
+      while (iHeaders.hasNext()) {
+        String headerName = (String) iHeaders.next();
+        stringResult = headers.get(headerName).toString();
+        post.addHeader(headerName, stringResult);
+      }
+    }
+
+    post.setEntity(compressIfRequested(compressRequest, entity));
+    HttpClientContext context = createContext();
+    startTimings(includeTimings, context);
+    CloseableHttpResponse response = executeRequest(
+      client,
+      post,
+      context,
+      "PostMultipartMultipleFiles"
+    );
+    Throwable exception = null;
+
+    try {
+      result = JsonStreamReader.readJSON(response.getEntity());
+      addResponseStatus(includeStatusCode, result, response.getStatusLine());
+      addTimings(includeTimings, result, context);
+    } catch (Throwable ex) {
+      exception = ex;
+      throw ex;
+    } finally {
+      if (response != null) {
+        if (exception != null) {
+          try {
+            response.close();
+          } catch (Throwable ex) {
+            exception.addSuppressed(ex);
+          }
+        } else {
+          response.close();
+        }
+      }
+    }
+    return result;
+  }
+
+  @ThingworxServiceDefinition(
+    name = "ExecuteBatch",
+    description = "Execute many HTTP requests concurrently with the same client settings",
+    category = "Batch"
+  )
+  @ThingworxServiceResult(
+    name = "result",
+    description = "One row per request, in the order of the requests",
+    baseType = "INFOTABLE",
+    aspects = { "dataShape:BatchResult_DS" }
+  )
+  public InfoTable ExecuteBatch(
+    @ThingworxServiceParameter(
+      name = "requests",
+      description = "Infotable where each row is a request to execute",
+      baseType = "INFOTABLE",
+      aspects = { "dataShape:BatchRequest_DS" }
+    ) InfoTable requests,
+    @ThingworxServiceParameter(
+      name = "maxParallelism",
+      description = "Maximum number of requests executed at the same time",
+      baseType = "INTEGER",
+      aspects = { "defaultValue:8" }
+    ) Integer maxParallelism,
+    @ThingworxServiceParameter(
+      name = "username",
+      description = "Optional user name credential",
+      baseType = "STRING"
+    ) String username,
+    @ThingworxServiceParameter(
+      name = "password",
+      description = "Optional password credential",
+      baseType = "STRING"
+    ) String password,
+    @ThingworxServiceParameter(
+      name = "ignoreSSLErrors",
+      description = "Ignore SSL Certificate Errors",
+      baseType = "BOOLEAN"
+    ) Boolean ignoreSSLErrors,
+    @ThingworxServiceParameter(
+      name = "timeout",
+      description = "Optional timeout in seconds",
+      baseType = "NUMBER",
+      aspects = { "defaultValue:60" }
+    ) Double timeout,
+    @ThingworxServiceParameter(
+      name = "useNTLM",
+      description = "Use NTLM Authentication",
+      baseType = "BOOLEAN",
+      aspects = { "defaultValue:false" }
+    ) Boolean useNTLM,
+    @ThingworxServiceParameter(
+      name = "workstation",
+      description = "Auth workstation",
+      baseType = "STRING",
+      aspects = { "defaultValue:" }
+    ) String workstation,
+    @ThingworxServiceParameter(
+      name = "domain",
+      description = "Auth domain",
+      baseType = "STRING",
+      aspects = { "defaultValue:" }
+    ) String domain,
+    @ThingworxServiceParameter(
+      name = "useProxy",
+      description = "Use Proxy server",
+      baseType = "BOOLEAN",
+      aspects = { "defaultValue:false" }
+    ) Boolean useProxy,
+    @ThingworxServiceParameter(
+      name = "proxyHost",
+      description = "Proxy host",
+      baseType = "STRING",
+      aspects = { "defaultValue:" }
+    ) String proxyHost,
+    @ThingworxServiceParameter(
+      name = "proxyPort",
+      description = "Proxy port",
+      baseType = "INTEGER",
+      aspects = { "defaultValue:8080" }
+    ) Integer proxyPort,
+    @ThingworxServiceParameter(
+      name = "proxyScheme",
+      description = "Proxy scheme",
+      baseType = "STRING",
+      aspects = { "defaultValue:http" }
+    ) String proxyScheme,
+    @ThingworxServiceParameter(
+      name = "endpointProfile",
+      description = "Optional row of the EndpointProfiles configuration table. The urls of the requests are then paths relative to its base url, and its connection settings, credentials and default headers replace the ones of the call",
+      baseType = "STRING"
+    ) String endpointProfile
+  )
+    throws Exception {
+    if (requests == null) {
+      throw new InvalidRequestException(
+        "Requests infotable cannot be empty",
+        RESTAPIConstants.StatusCode.STATUS_BAD_REQUEST
+      );
+    }
+
+    final EndpointProfiles.Profile profile = getEndpointProfile(
+      endpointProfile
+    );
+    final CloseableHttpClient client = profile != null
+      ? profile.getClient()
+      : getPooledHttpClient(
+        username,
+        password,
+        ignoreSSLErrors,
+        timeout,
+        useNTLM,
+        workstation,
+        domain,
+        useProxy,
+        proxyHost,
+        proxyPort,
+        proxyScheme,
+        null,
+        null,
+        null
+      );
+    final ValueCollectionList rows = requests.getRows();
+    final ValueCollection[] results = new ValueCollection[rows.size()];
+    final AtomicInteger nextRow = new AtomicInteger();
+    int parallelism = Math.min(
+      maxParallelism == null || maxParallelism < 1
+        ? DEFAULT_BATCH_PARALLELISM
+        : maxParallelism,
+      getIntegerConfigurationSetting(
+        "Batch",
+        "maxParallelism",
+        DEFAULT_MAX_BATCH_PARALLELISM
+      )
+    );
+
+    // each worker picks the next pending request until all are done
+    List<Future<?>> workers = new ArrayList<>();
+    for (int i = 0; i < Math.min(parallelism, results.length); i++) {
+      workers.add(
+        getBatchExecutor()
+          .submit(
+            () -> {
+              int index;
+              while ((index = nextRow.getAndIncrement()) < results.length) {
+                results[index] =
+                  executeBatchRequest(client, profile, index, rows.get(index));
+              }
+            }
+          )
+      );
+    }
+
+    try {
+      for (Future<?> worker : workers) {
+        worker.get();
+      }
+    } finally {
+      for (Future<?> worker : workers) {
+        worker.cancel(true);
+      }
+    }
+
+    InfoTable result = createInfoTable("BatchResult_DS");
+    for (ValueCollection vc : results) {
+      result.addRow(vc);
+    }
+    return result;
+  }
+
+  /**
+   * Executes one row of a batch. Failures are reported in the error field of
+   * the result instead of failing the whole batch.
+   *
+   * @param profile the endpoint profile of the batch, or null
+   */
+  private ValueCollection executeBatchRequest(
+    CloseableHttpClient client,
+    EndpointProfiles.Profile profile,
+    int index,
+    ValueCollection row
+  ) {
+    ValueCollection vc = new ValueCollection();
+    String url = row.getStringValue("url");
+    String method = row.getStringValue("method");
+    String body = row.getStringValue("body");
+    vc.put("index", new IntegerPrimitive(index));
+    vc.put("url", new StringPrimitive(url));
+    long startTime = System.nanoTime();
+
+    try {
+      Object rowHeaders = row.getValue("headers");
+      JSONObject headers = rowHeaders instanceof JSONObject
+        ? (JSONObject) rowHeaders
+        : null;
+      if (profile != null) {
+        url = profile.resolveUrl(url);
+        headers = getProfileHeaders(profile, headers);
+      }
+      RequestBuilder requestBuilder = RequestBuilder
+        .create(
+          StringUtilities.isNullOrEmpty(method) ? "GET" : method.toUpperCase()
+        )
+        .setUri(url);
+      if (!StringUtilities.isNullOrEmpty(body)) {
+        requestBuilder.setEntity(
+          new StringEntity(
+            body,
+            ContentType.create(
+              "application/json",
+              RESTAPIConstants.getUTF8Charset()
+            )
+          )
+        );
+      }
+      HttpUriRequest request = requestBuilder.build();
+      HttpClientUtilities.addHeaders(request, headers);
+
+      HttpClientContext context = createContext();
+      useAuthCache(client, context, url);
+
+      try (
+        CloseableHttpResponse response = executeRequest(
+          client,
+          request,
+          context,
+          "ExecuteBatch"
+        )
+      ) {
+        vc.put(
+          "statusCode",
+          new IntegerPrimitive(response.getStatusLine().getStatusCode())
+        );
+        vc.put(
+          "body",
+          new StringPrimitive(
+            StringUtilities.readFromEntity(response.getEntity())
+          )
+        );
+      }
+    } catch (Exception ex) {
+      _logger.warn("ExecuteBatch request to {} failed: {}", url, ex.getMessage());
+      vc.put("error", new StringPrimitive(String.valueOf(ex.getMessage())));
+    }
+
+    vc.put(
+      "duration",
+      new NumberPrimitive((System.nanoTime() - startTime) / 1000000.0D)
+    );
+    return vc;
+  }
+
+  /**
+   * @return the executor shared by the batches, the download segments and
+   * the token refreshes. Its threads are limited by the Batch configuration
+   * table; tasks wait in its queue when they are all busy, and idle threads
+   * stop after a minute.
+   */
+  private ExecutorService getBatchExecutor() {
+    synchronized (this) {
+      if (batchExecutor == null) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        int maxThreads = getIntegerConfigurationSetting(
+          "Batch",
+          "maxThreads",
+          DEFAULT_MAX_BATCH_THREADS
+        );
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+          maxThreads,
+          maxThreads,
+          BATCH_THREAD_KEEP_ALIVE_SECONDS,
+          TimeUnit.SECONDS,
+          new LinkedBlockingQueue<>(),
+          runnable -> {
+            Thread thread = new Thread(
+              runnable,
+              "ContentLoaderExtended-batch-" + threadCount.incrementAndGet()
+            );
+            thread.setDaemon(true);
+            return thread;
+          }
+        );
+        executor.allowCoreThreadTimeOut(true);
+        batchExecutor = executor;
+      }
+      return batchExecutor;
+    }
+  }
+
+  @ThingworxServiceDefinition(
+    name = "GetResponseCacheStatistics",
+    description = "Get the counters of the response cache",
+    category = "Cache"
+  )
+  @ThingworxServiceResult(
+    name = "result",
+    description = "Response cache counters",
+    baseType = "INFOTABLE",
+    aspects = { "dataShape:ResponseCacheStatistics_DS" }
+  )
+  public InfoTable GetResponseCacheStatistics() {
+    ValueCollection vc = new ValueCollection();
+    vc.put("hits", new LongPrimitive(responseCache.getHits()));
+    vc.put("misses", new LongPrimitive(responseCache.getMisses()));
+    vc.put("revalidations", new LongPrimitive(responseCache.getRevalidations()));
+    vc.put("evictions", new LongPrimitive(responseCache.getEvictions()));
+    vc.put("entries", new IntegerPrimitive(responseCache.getEntryCount()));
+    vc.put("size", new LongPrimitive(responseCache.getSize()));
+    vc.put("coalesced", new LongPrimitive(inFlightGets.getCoalesced()));
+    InfoTable result = createInfoTable("ResponseCacheStatistics_DS");
+    result.addRow(vc);
+    return result;
+  }
+
+  @ThingworxServiceDefinition(
+    name = "ClearResponseCache",
+    description = "Remove all the entries of the response cache",
+    category = "Cache"
+  )
+  @ThingworxServiceResult(
+    name = "result",
+    description = "",
+    baseType = "NOTHING"
+  )
+  public void ClearResponseCache() {
+    responseCache.clear();
+  }
+
+  @ThingworxServiceDefinition(
+    name = "GetMetrics",
+    description = "Get the request metrics per host and service, with the connection pool usage of each host",
+    category = "Metrics"
+  )
+  @ThingworxServiceResult(
+    name = "result",
+    description = "One row per host and service",
+    baseType = "INFOTABLE",
+    aspects = { "dataShape:RequestMetrics_DS" }
+  )
+  public InfoTable GetMetrics() {
+    InfoTable result = createInfoTable("RequestMetrics_DS");
+    Map<String, PoolStats> poolStats = httpClientPool.getHostStats();
+    for (String host : requestMetrics.getHosts()) {
+      PoolStats pool = poolStats.get(host);
+      HttpClientPool.ConnectionStats connections = httpClientPool.getConnectionStats(
+        host
+      );
+      Map<String, RequestMetrics.Stats> services = requestMetrics.getServices(
+        host
+      );
+      for (String service : services.keySet()) {
+        RequestMetrics.Stats stats = services.get(service);
+        ValueCollection vc = new ValueCollection();
+        vc.put("host", new StringPrimitive(host));
+        vc.put("service", new StringPrimitive(service));
+        vc.put("requests", new LongPrimitive(stats.getRequests()));
+        vc.put("errors", new LongPrimitive(stats.getErrors()));
+        vc.put("timeouts", new LongPrimitive(stats.getTimeouts()));
+        vc.put("retries", new LongPrimitive(stats.getRetries()));
+        vc.put("bytesIn", new LongPrimitive(stats.getBytesIn()));
+        vc.put("bytesOut", new LongPrimitive(stats.getBytesOut()));
+        vc.put("meanLatency", new NumberPrimitive(stats.getMeanMillis()));
+        vc.put(
+          "p50Latency",
+          new NumberPrimitive(stats.getPercentileMillis(0.5D))
+        );
+        vc.put(
+          "p90Latency",
+          new NumberPrimitive(stats.getPercentileMillis(0.9D))
+        );
+        vc.put(
+          "p99Latency",
+          new NumberPrimitive(stats.getPercentileMillis(0.99D))
+        );
+        vc.put("maxLatency", new NumberPrimitive(stats.getMaxMillis()));
+        vc.put(
+          "leasedConnections",
+          new IntegerPrimitive(pool != null ? pool.getLeased() : 0)
+        );
+        vc.put(
+          "availableConnections",
+          new IntegerPrimitive(pool != null ? pool.getAvailable() : 0)
+        );
+        vc.put(
+          "pendingConnections",
+          new IntegerPrimitive(pool != null ? pool.getPending() : 0)
+        );
+        vc.put(
+          "evictedConnections",
+          new LongPrimitive(connections.getEvicted())
+        );
+        vc.put(
+          "connectionRetries",
+          new LongPrimitive(connections.getRetries())
+        );
+        result.addRow(vc);
+      }
+    }
+    return result;
+  }
+
+  @ThingworxServiceDefinition(
+    name = "GetCircuitBreakerStates",
+    description = "Get the circuit breaker state of every host that received requests",
+    category = "Resilience"
+  )
+  @ThingworxServiceResult(
+    name = "result",
+    description = "One row per host",
+    baseType = "INFOTABLE",
+    aspects = { "dataShape:CircuitBreakerState_DS" }
+  )
+  public InfoTable GetCircuitBreakerStates() {
+    InfoTable result = createInfoTable("CircuitBreakerState_DS");
+    for (CircuitBreakers.Breaker breaker : circuitBreakers
+      .getBreakers()
+      .values()) {
+      ValueCollection vc = new ValueCollection();
+      vc.put("host", new StringPrimitive(breaker.getHost()));
+      vc.put("state", new StringPrimitive(breaker.getState().name()));
+      vc.put(
+        "consecutiveFailures",
+        new IntegerPrimitive(breaker.getConsecutiveFailures())
+      );
+      vc.put("failures", new LongPrimitive(breaker.getFailures()));
+      vc.put("rejected", new LongPrimitive(breaker.getRejected()));
+      vc.put(
+        "retryAfter",
+        new NumberPrimitive(breaker.getRemainingOpenMillis() / 1000D)
+      );
+      result.addRow(vc);
+    }
+    return result;
+  }
+
+  @ThingworxServiceDefinition(
+    name = "ResetCircuitBreakers",
+    description = "Close the circuit breaker of a host, so its requests are sent again immediately",
+    category = "Resilience"
+  )
+  @ThingworxServiceResult(
+    name = "result",
+    description = "",
+    baseType = "NOTHING"
+  )
+  public void ResetCircuitBreakers(
+    @ThingworxServiceParameter(
+      name = "host",
+      description = "Host and port as returned by GetCircuitBreakerStates, empty for all the hosts",
+      baseType = "STRING"
+    ) String host
+  ) {
+    circuitBreakers.reset(host);
+  }
+
+  @ThingworxServiceDefinition(
+    name = "EnqueuePost",
+    description = "Queue json content to be posted to a URL in the background. The queue is stored on disk and survives a restart; queued contents to the same URL and headers are posted in order, in batches as a JSON array. Credentials come from an endpoint profile or an OAuth client, they are never stored with the queue",
+    category = "Spool"
+  )
+  @ThingworxServiceResult(
+    name = "result",
+    description = "",
+    baseType = "NOTHING"
+  )
+  public void EnqueuePost(
+    @ThingworxServiceParameter(
+      name = "url",
+      description = "URL to post to",
+      baseType = "STRING"
+    ) String url,
+    @ThingworxServiceParameter(
+      name = "content",
+      description = "Posted content as JSON object",
+      baseType = "JSON"
+    ) JSONObject content,
+    @ThingworxServiceParameter(
+      name = "headers",
+      description = "Optional HTTP headers, stored with the queued content. Authorization, Proxy-Authorization and Cookie are refused",
+      baseType = "JSON"
+    ) JSONObject headers,
+    @ThingworxServiceParameter(
+      name = "ignoreSSLErrors",
+      description = "Ignore SSL Certificate Errors",
+      baseType = "BOOLEAN"
+    ) Boolean ignoreSSLErrors,
+    @ThingworxServiceParameter(
+      name = "timeout",
+      description = "Optional timeout in seconds",
+      baseType = "NUMBER",
+      aspects = { "defaultValue:60" }
+    ) Double timeout,
+    @ThingworxServiceParameter(
+      name = "endpointProfile",
+      description = "Optional row of the EndpointProfiles configuration table. The url is then a path relative to its base url, and its connection settings, credentials and default headers are used when the content is sent",
+      baseType = "STRING"
+    ) String endpointProfile,
+    @ThingworxServiceParameter(
+      name = "oauthClient",
+      description = "Optional row of the OAuthClients configuration table whose bearer token is sent with the content",
+      baseType = "STRING"
+    ) String oauthClient
+  )
+    throws Exception {
+    if (
+      (
+        StringUtilities.isNullOrEmpty(url) &&
+        StringUtilities.isNullOrEmpty(endpointProfile)
+      ) ||
+      content == null
+    ) {
+      throw new InvalidRequestException(
+        "Url and content must be set",
+        RESTAPIConstants.StatusCode.STATUS_BAD_REQUEST
+      );
+    }
+    String credentialHeader = OutboundSpool.findCredentialHeader(headers);
+    if (credentialHeader != null) {
+      throw new InvalidRequestException(
+        "The " +
+        credentialHeader +
+        " header cannot be queued, set the credentials in an endpoint profile or an OAuth client",
+        RESTAPIConstants.StatusCode.STATUS_BAD_REQUEST
+      );
+    }
+    // fails now if they do not exist, rather than when the content is sent
+    getEndpointProfile(endpointProfile);
+    getOAuthClient(oauthClient);
+    getOutboundSpool(true)
+      .enqueue(
+        new OutboundSpool.Destination(
+          url != null ? url : "",
+          headers != null && headers.length() > 0 ? headers : null,
+          StringUtilities.isNullOrEmpty(endpointProfile) ? null : endpointProfile,
+          StringUtilities.isNullOrEmpty(oauthClient) ? null : oauthClient,
+          ignoreSSLErrors != null && ignoreSSLErrors,
+          timeout != null ? timeout : 60.0D
+        ),
+        JSONUtilities.writeJSON(content)
+      );
+  }
+
+  @ThingworxServiceDefinition(
+    name = "GetSpoolStatistics",
+    description = "Get the queue depth and lag of every destination of EnqueuePost",
+    category = "Spool"
+  )
+  @ThingworxServiceResult(
+    name = "result",
+    description = "One row per destination",
+    baseType = "INFOTABLE",
+    aspects = { "dataShape:SpoolStatistics_DS" }
+  )
+  public InfoTable GetSpoolStatistics() throws Exception {
+    InfoTable result = createInfoTable("SpoolStatistics_DS");
+    OutboundSpool spool = getOutboundSpool(false);
+    if (spool == null) {
+      return result;
+    }
+    for (OutboundSpool.DestinationQueue queue : spool.getQueues()) {
+      ValueCollection vc = new ValueCollection();
+      vc.put("url", new StringPrimitive(queue.getDestination().getUrl()));
+      vc.put("depth", new IntegerPrimitive(queue.getDepth()));
+      vc.put("lag", new NumberPrimitive(queue.getLagMillis() / 1000D));
+      vc.put("sent", new LongPrimitive(queue.getSent()));
+      vc.put("dropped", new LongPrimitive(queue.getDropped()));
+      vc.put("failures", new LongPrimitive(queue.getFailures()));
+      result.addRow(vc);
+    }
+    return result;
+  }
+
+  @ThingworxServiceDefinition(
+    name = "GetOAuthToken",
+    description = "Get an access token of a client of the OAuthClients table. Tokens are cached and refreshed before they expire",
+    category = "OAuth"
+  )
+  @ThingworxServiceResult(
+    name = "result",
+    description = "Access token, to send as \"Authorization: Bearer <token>\"",
+    baseType = "STRING"
+  )
+  public String GetOAuthToken(
+    @ThingworxServiceParameter(
+      name = "oauthClient",
+      description = "Row of the OAuthClients configuration table",
+      baseType = "STRING"
+    ) String oauthClient,
+    @ThingworxServiceParameter(
+      name = "scope",
+      description = "Optional scopes to request instead of the ones of the client",
+      baseType = "STRING"
+    ) String scope
+  )
+    throws Exception {
+    OAuthTokens.Client client = getOAuthClient(oauthClient);
+    if (client == null) {
+      throw new InvalidRequestException(
+        "OAuth client must be set",
+        RESTAPIConstants.StatusCode.STATUS_BAD_REQUEST
       );
     }
+    return oAuthTokens.getAccessToken(client, scope);
+  }
+
+  private void infoTableToMultipart(
+    InfoTable infoTable,
+    MultipartEntityBuilder builder
+  ) {
+    List<String> fieldNames = infoTable.getDataShape().getFields().getNames();
+    String[] values = new String[fieldNames.size()];
+    for (ValueCollection rowToSend : infoTable.getRows()) {
+      for (int i = 0; i < values.length; i++) {
+        values[i] = rowToSend.getStringValue(fieldNames.get(i));
+      }
+      HttpClientUtilities.addTextParts(builder, fieldNames, values);
+    }
+  }
+
+  /**
+   * Executes the request and records it in the metrics of its host, under
+   * the given service name. The latency is the time until the response
+   * headers are received, including the retries; the body bytes are counted
+   * as they are read. Requests bound to an HTTP/2 client go through it when
+   * the host allows.
+   *
+   * Each attempt first waits for the rate and concurrency limits of the
+   * host, and holds its concurrency slot until the response is closed.
+   * Requests to a host whose circuit breaker is open fail immediately.
+   * Idempotent requests are retried according to the retry policy.
+   */
+  private CloseableHttpResponse executeRequest(
+    CloseableHttpClient client,
+    HttpUriRequest request,
+    HttpContext context,
+    String service
+  )
+    throws IOException {
+    HttpHost host = URIUtils.extractHost(request.getURI());
+    RequestMetrics.Stats stats = requestMetrics.get(host, service);
+    CircuitBreakers.Breaker breaker = circuitBreakers.get(host);
+    RetryPolicy retries = retryPolicy;
+    stats.recordRequest(request);
+    RequestTimings timings = RequestTimings.get(context);
+    RequestTimings.setCurrent(timings);
+    long startTime = System.nanoTime();
+    try {
+      for (int attempt = 0;; attempt++) {
+        CloseableHttpResponse response = null;
+        IOException failure = null;
+        HostLimits.Permit permit = hostLimits.acquire(
+          host,
+          HostLimits.getQueueTimeout(context)
+        );
+        try {
+          breaker.acquire();
+          try {
+            response = Http2ClientPool.execute(request, context);
+            if (response == null) {
+              response = client.execute(request, context);
+            }
+          } catch (IOException ex) {
+            breaker.recordFailure();
+            failure = ex;
+          } catch (RuntimeException ex) {
+            breaker.recordFailure();
+            throw ex;
+          }
+        } finally {
+          if (response == null) {
+            permit.close();
+          }
+        }
+        if (response != null) {
+          // the slot is held while the body is read
+          response = permit.holdUntilClosed(response);
+        }
+
+        if (failure != null) {
+          if (!retries.canRetry(request, failure, attempt)) {
+            throw failure;
+          }
+          _logger.debug(
+            "{} {} failed, retrying: {}",
+            request.getMethod(),
+            host,
+            failure.toString()
+          );
+          stats.recordRetry();
+          retries.backOff(attempt);
+          continue;
+        }
+
+        int statusCode = response.getStatusLine().getStatusCode();
+        if (statusCode >= 500) {
+          breaker.recordFailure();
+        } else {
+          breaker.recordSuccess();
+        }
+        if (retries.canRetry(request, statusCode, attempt)) {
+          _logger.debug(
+            "{} {} returned {}, retrying",
+            request.getMethod(),
+            host,
+            statusCode
+          );
+          EntityUtils.consumeQuietly(response.getEntity());
+          response.close();
+          stats.recordRetry();
+          retries.backOff(attempt);
+          continue;
+        }
+
+        if (statusCode == 401) {
+          invalidateBearerToken(request);
+        }
+        stats.recordResponse(response, System.nanoTime() - startTime);
+        if (timings != null) {
+          timings.responseReceived(response);
+        }
+        return response;
+      }
+    } catch (IOException | RuntimeException ex) {
+      stats.recordFailure(ex, System.nanoTime() - startTime);
+      throw ex;
+    } finally {
+      RequestTimings.setCurrent(null);
+    }
+  }
 
-    for (ValueCollection row : filesToSend.getRows()) {
-      if (
-        !ArgumentValidator.checkBothNotSetOrBothSet(
-          row.getStringValue("repository"),
-          row.getStringValue("pathOnRepository")
-        )
-      ) {
-        throw new InvalidRequestException(
-          "Invalid repository or path",
-          RESTAPIConstants.StatusCode.STATUS_BAD_REQUEST
+  /**
+   * Expires the cached OAuth token refused by the server, so that the next
+   * calls request a new one.
+   */
+  private void invalidateBearerToken(HttpUriRequest request) {
+    Header authorization = request.getFirstHeader("Authorization");
+    if (
+      authorization != null &&
+      authorization.getValue().regionMatches(true, 0, "Bearer ", 0, 7)
+    ) {
+      oAuthTokens.invalidate(authorization.getValue().substring(7).trim());
+    }
+  }
+
+  /**
+   * Makes the requests executed with the context go through the HTTP/2
+   * client of the profile, or without a profile the one matching the
+   * settings. NTLM and proxied requests always use the HTTP/1.1 client.
+   */
+  private void bindHttp2Client(
+    EndpointProfiles.Profile profile,
+    Boolean useHttp2,
+    HttpContext context,
+    String username,
+    String password,
+    Boolean ignoreSSLErrors,
+    Double timeout,
+    Boolean useNTLM,
+    Boolean useProxy,
+    String certRepository,
+    String certFilePath,
+    String certPass
+  )
+    throws Exception {
+    if (profile != null) {
+      if (profile.getHttp2Client() != null) {
+        http2ClientPool.bind(
+          context,
+          profile.getHttp2Client(),
+          profile.getUsername(),
+          profile.getPassword()
         );
       }
+      return;
+    }
+    if (
+      useHttp2 == null ||
+      !useHttp2 ||
+      (useNTLM != null && useNTLM) ||
+      (useProxy != null && useProxy)
+    ) {
+      return;
     }
+    SSLContext sslContext = getSSLContext(
+      ignoreSSLErrors,
+      certRepository,
+      certFilePath,
+      certPass
+    );
+    http2ClientPool.bind(
+      context,
+      http2ClientPool.getClient(
+        new HttpClientPool.ClientKey(timeout, sslContext),
+        sslContext,
+        timeout
+      ),
+      username,
+      password
+    );
+  }
 
-    if (partsToSend == null && filesToSend == null) {
-      throw new InvalidRequestException(
-        "Must have either filesToSend or partsToSend",
-        RESTAPIConstants.StatusCode.STATUS_BAD_REQUEST
-      );
+  /**
+   * Wraps the entity so that it is gzip compressed while it is written, in
+   * chunks, without buffering the compressed body.
+   */
+  private static HttpEntity compressIfRequested(
+    Boolean compressRequest,
+    HttpEntity entity
+  ) {
+    if (compressRequest != null && compressRequest) {
+      return new GzipCompressingEntity(entity);
     }
+    return entity;
+  }
 
-    MultipartEntityBuilder entityBuilder = MultipartEntityBuilder.create();
-    if (partsToSend != null) {
-      this.infoTableToMultipart(partsToSend, entityBuilder);
+  private void startTimings(Boolean includeTimings, HttpContext context) {
+    if (includeTimings != null && includeTimings) {
+      RequestTimings.start(context);
     }
+  }
 
-    for (ValueCollection row : filesToSend.getRows()) {
-      String repository = row.getStringValue("repository");
-      String pathOnRepository = row.getStringValue("pathOnRepository");
-      String multipartFileName = row.getStringValue("multipartFileName");
+  /**
+   * Attaches the phase durations of the request, once its body is read.
+   * Phases that did not happen, like the connect on a reused connection or
+   * everything for a response served from the cache, are 0.
+   */
+  private void addTimings(
+    Boolean includeTimings,
+    JSONObject json,
+    HttpContext context
+  )
+    throws JSONException {
+    RequestTimings timings = RequestTimings.get(context);
+    if (includeTimings != null && includeTimings && timings != null) {
+      json.put("timings", timings.toJSON());
+    }
+  }
+
+  /**
+   * Executes a GET through the response cache. Fresh entries are served
+   * without a request, stale ones are revalidated with their validators.
+   */
+  private ResponseCache.Entry executeCachedGet(
+    CloseableHttpClient client,
+    HttpGet get,
+    HttpClientContext context,
+    String cacheKey,
+    String service
+  )
+    throws Exception {
+    ResponseCache.Entry cached = responseCache.get(cacheKey);
+    if (cached != null && cached.isFresh()) {
+      responseCache.recordHit();
+      return cached;
+    }
+
+    if (cached != null) {
+      if (cached.getETag() != null) {
+        get.setHeader("If-None-Match", cached.getETag());
+      }
+      if (cached.getLastModified() != null) {
+        get.setHeader("If-Modified-Since", cached.getLastModified());
+      }
+    }
 
+    try (
+      CloseableHttpResponse response = executeRequest(
+        client,
+        get,
+        context,
+        service
+      )
+    ) {
+      int statusCode = response.getStatusLine().getStatusCode();
       if (
-        !StringUtilities.isNullOrEmpty(repository) &&
-        !StringUtilities.isNullOrEmpty(repository)
+        cached != null &&
+        statusCode == RESTAPIConstants.StatusCode.STATUS_NOT_MODIFIED.httpCode()
       ) {
-        String fileName = FilenameUtils.getName(pathOnRepository);
-        if (StringUtilities.isNullOrEmpty(fileName)) {
-          throw new InvalidRequestException(
-            "Filename could not be found in path: [" + pathOnRepository + "]",
-            RESTAPIConstants.StatusCode.STATUS_BAD_REQUEST
-          );
-        }
-
-        repoThing = (FileRepositoryThing) ThingUtilities.findThing(repository);
-        if (repoThing == null) {
-          throw new InvalidRequestException(
-            "File Repository [" + repository + "] does not exist",
-            RESTAPIConstants.StatusCode.STATUS_BAD_REQUEST
-          );
-        }
+        EntityUtils.consume(response.getEntity());
+        responseCache.revalidated(cached, response);
+        responseCache.recordHit();
+        return cached;
+      }
 
-        try {
-          inputStream = repoThing.openFileForRead(pathOnRepository);
-          String mimeType = URLConnection.guessContentTypeFromName(fileName);
-          ContentType contentType = mimeType != null
-            ? ContentType.create(mimeType)
-            : ContentType.APPLICATION_OCTET_STREAM;
-          entityBuilder.addBinaryBody(
-            multipartFileName,
-            inputStream,
-            contentType,
-            fileName
-          );
-        } catch (Exception ex) {
-          throw new InvalidRequestException(
-            "File [" +
-            fileName +
-            "] in repository [" +
-            repository +
-            "] could not be opened for reading",
-            RESTAPIConstants.StatusCode.STATUS_BAD_REQUEST
-          );
-        }
+      responseCache.recordMiss();
+      HttpEntity entity = response.getEntity();
+      byte[] body = entity != null
+        ? EntityUtils.toByteArray(entity)
+        : new byte[0];
+      ResponseCache.Entry entry = null;
+      if (statusCode == RESTAPIConstants.StatusCode.STATUS_SUCCESS.httpCode()) {
+        entry = responseCache.put(cacheKey, response, body);
+      } else {
+        responseCache.remove(cacheKey);
       }
+      return entry != null ? entry : ResponseCache.uncached(response, body);
     }
+  }
 
-    HttpEntity entity = entityBuilder.build();
-
+  /**
+   * Executes a GET and buffers its response, through the response cache if
+   * cached is set. If coalesced is set, identical GETs share one request:
+   * the callers arriving while it is in flight wait for its response instead
+   * of sending their own. The response is immutable, each caller parses its
+   * own copy of the body.
+   */
+  private ResponseCache.Entry executeBufferedGet(
+    CloseableHttpClient client,
+    HttpGet get,
+    HttpClientContext context,
+    String key,
+    boolean cached,
+    boolean coalesced,
+    String service
+  )
+    throws Exception {
+    if (coalesced) {
+      return inFlightGets.execute(
+        key,
+        () -> executeBufferedGet(client, get, context, key, cached, false, service)
+      );
+    }
+    if (cached) {
+      return executeCachedGet(client, get, context, key, service);
+    }
     try (
-      CloseableHttpClient client = createHttpClient(
-        username,
-        password,
-        ignoreSSLErrors,
-        timeout,
-        useNTLM,
-        workstation,
-        domain,
-        useProxy,
-        proxyHost,
-        proxyPort,
-        proxyScheme,
-        null,
-        null
+      CloseableHttpResponse response = executeRequest(
+        client,
+        get,
+        context,
+        service
       )
     ) {
-      HttpPost post = new HttpPost(url);
-      String stringResult;
-      if (headers != null) {
-        Iterator iHeaders = headers.keys();
+      HttpEntity entity = response.getEntity();
+      return ResponseCache.uncached(
+        response,
+        entity != null ? EntityUtils.toByteArray(entity) : new byte[0]
+      );
+    }
+  }
 
-        while (iHeaders.hasNext()) {
-          String headerName = (String) iHeaders.next();
-          stringResult = headers.get(headerName).toString();
-          post.addHeader(headerName, stringResult);
-        }
+  /**
+   * Builds the response cache and coalescing key. The client is part of the
+   * key: a pooled client is only shared by calls with the same credentials,
+   * NTLM identity, TLS settings and client certificate, and proxy, so
+   * responses are never shared between identities or served to a call that
+   * validates TLS when they were fetched over an unverified connection.
+   */
+  private String getCacheKey(
+    CloseableHttpClient client,
+    String url,
+    JSONObject headers
+  )
+    throws JSONException {
+    StringBuilder key = new StringBuilder(url);
+    if (headers != null && headers.length() > 0) {
+      String[] names = JSONObject.getNames(headers);
+      Arrays.sort(names);
+      for (String name : names) {
+        key.append('\n').append(name).append(':').append(headers.get(name));
       }
+    }
+    key.append('\n').append(httpClientPool.getClientId(client));
+    return key.toString();
+  }
+
+  private InfoTable createInfoTable(String dataShapeName) {
+    DataShape dataShapeReference = (DataShape) EntityUtilities.findEntity(
+      dataShapeName,
+      RelationshipTypes.ThingworxRelationshipTypes.DataShape
+    );
+    return new InfoTable(dataShapeReference.getDataShape());
+  }
 
-      post.setEntity(entity);
-      CloseableHttpResponse response = client.execute(post);
-      Throwable exception = null;
+  private static RepeatableStreamBody.StreamOpener openRepositoryFile(
+    final FileRepositoryThing repository,
+    final String path
+  ) {
+    return new RepeatableStreamBody.StreamOpener() {
 
-      try {
-        stringResult =
-          StringUtilities.readFromStream(
-            response.getEntity().getContent(),
-            true
+      @Override
+      public InputStream open() throws IOException {
+        try {
+          return repository.openFileForRead(path);
+        } catch (IOException ex) {
+          throw ex;
+        } catch (Exception ex) {
+          throw new IOException(
+            "Could not open [" + path + "] for reading",
+            ex
           );
-        result = JSONUtilities.readJSON(stringResult);
-        addResponseStatus(includeStatusCode, result, response);
-      } catch (Throwable ex) {
-        exception = ex;
-        throw ex;
-      } finally {
-        if (response != null) {
-          if (exception != null) {
-            try {
-              response.close();
-            } catch (Throwable ex) {
-              exception.addSuppressed(ex);
-            }
-          } else {
-            response.close();
-          }
+        }
+      }
+    };
+  }
+
+  private FileRepositoryThing findFileRepository(String repository)
+    throws InvalidRequestException {
+    FileRepositoryThing repoThing = (FileRepositoryThing) ThingUtilities.findThing(
+      repository
+    );
+    if (repoThing == null) {
+      throw new InvalidRequestException(
+        "File Repository [" + repository + "] does not exist",
+        RESTAPIConstants.StatusCode.STATUS_BAD_REQUEST
+      );
+    }
+    return repoThing;
+  }
+
+  /**
+   * @return the compiled endpoint profile with the name, null if the name is
+   * empty
+   */
+  private EndpointProfiles.Profile getEndpointProfile(String name)
+    throws Exception {
+    if (StringUtilities.isNullOrEmpty(name)) {
+      return null;
+    }
+    InfoTable table = getConfigurationTable(EndpointProfiles.TABLE);
+    if (table != null) {
+      for (ValueCollection row : table.getRows()) {
+        if (name.equals(row.getStringValue("name"))) {
+          return endpointProfiles.get(row, this::compileEndpointProfile);
         }
       }
     }
-    return result;
+    throw new InvalidRequestException(
+      "Endpoint profile [" + name + "] does not exist",
+      RESTAPIConstants.StatusCode.STATUS_BAD_REQUEST
+    );
   }
 
-  private void infoTableToMultipart(
-    InfoTable infoTable,
-    MultipartEntityBuilder builder
-  ) {
-    for (ValueCollection rowToSend : infoTable.getRows()) {
-      for (String fieldName : infoTable.getDataShape().getFields().getNames()) {
-        builder.addTextBody(
-          fieldName,
-          rowToSend.getStringValue(fieldName),
-          ContentType.MULTIPART_FORM_DATA
+  private void compileEndpointProfile(EndpointProfiles.Profile profile)
+    throws Exception {
+    try {
+      new URL(profile.getBaseUrl());
+    } catch (MalformedURLException ex) {
+      throw new InvalidRequestException(
+        "Endpoint profile [" +
+        profile.getName() +
+        "] has an invalid base url: " +
+        ex.getMessage(),
+        RESTAPIConstants.StatusCode.STATUS_BAD_REQUEST
+      );
+    }
+    SSLContext sslContext = getSSLContext(
+      profile.isIgnoreSSLErrors(),
+      profile.getCertRepository(),
+      profile.getCertFilePath(),
+      profile.getCertFilePassword()
+    );
+    CloseableHttpClient client = getPooledHttpClient(
+      profile.getUsername(),
+      profile.getPassword(),
+      profile.isIgnoreSSLErrors(),
+      profile.getTimeout(),
+      profile.isUseNTLM(),
+      profile.getWorkstation(),
+      profile.getDomain(),
+      profile.isUseProxy(),
+      profile.getProxyHost(),
+      profile.getProxyPort(),
+      profile.getProxyScheme(),
+      profile.getCertRepository(),
+      profile.getCertFilePath(),
+      profile.getCertFilePassword()
+    );
+    CloseableHttpAsyncClient http2Client = null;
+    if (profile.isUseHttp2() && !profile.isUseNTLM() && !profile.isUseProxy()) {
+      http2Client =
+        http2ClientPool.getClient(
+          new HttpClientPool.ClientKey(profile.getTimeout(), sslContext),
+          sslContext,
+          profile.getTimeout()
         );
-      }
     }
+    profile.compiled(client, sslContext, http2Client);
+    _logger.info("Compiled endpoint profile {}", profile.getName());
   }
 
   public CloseableHttpClient createHttpClient(
@@ -1446,96 +4710,145 @@ public class ContentLoaderExtended extends Resource {
     InputStream certStream,
     String certPass
   ) {
-    try {
-      if (timeout == null) {
-        timeout = 60.0D;
-      }
-
-      if (ignoreSSLErrors == null) {
-        ignoreSSLErrors = false;
-      }
-
-      if (proxyScheme == null) {
-        proxyScheme = "http";
-      }
-
-      int httpTimeout = timeout.intValue() * 1000;
-      HttpClientBuilder clientBuilder = HttpClientBuilder.create();
-      RequestConfig.Builder requestConfigBuilder = RequestConfig
-        .custom()
-        .setConnectTimeout(httpTimeout)
-        .setSocketTimeout(httpTimeout);
-      if (useProxy == null) {
-        useProxy = false;
-      }
+    return HttpClientUtilities.createHttpClient(
+      username,
+      password,
+      ignoreSSLErrors,
+      timeout,
+      useNTLM,
+      workstation,
+      domain,
+      useProxy,
+      proxyHost,
+      proxyPort,
+      proxyScheme,
+      certStream,
+      certPass
+    );
+  }
 
-      if (
-        useProxy && StringUtilities.isNonEmpty(proxyHost) && proxyPort != null
-      ) {
-        HttpHost proxy = new HttpHost(proxyHost, proxyPort, proxyScheme);
-        requestConfigBuilder.setProxy(proxy);
-      }
-
-      RequestConfig requestConfig = requestConfigBuilder.build();
-      clientBuilder.setDefaultRequestConfig(requestConfig);
-      if (ignoreSSLErrors) {
-        SSLContextBuilder sslContextBuilder = SSLContexts
-          .custom()
-          .loadTrustMaterial(null, new TrustSelfSignedStrategy());
-        if (certStream != null) {
-          // Client keystore
-          KeyStore cks = KeyStore.getInstance("PKCS12");
-          cks.load(certStream, certPass.toCharArray());
-          sslContextBuilder.loadKeyMaterial(cks, certPass.toCharArray());
-        }
-        SSLContext sslContext = sslContextBuilder.build();
-        SSLConnectionSocketFactory sslConnectionFactory = new SSLConnectionSocketFactory(
-          sslContext,
-          NoopHostnameVerifier.INSTANCE
-        );
-        clientBuilder.setSSLSocketFactory(sslConnectionFactory);
-      }
+  /**
+   * Returns a client from the connection pool of this resource. The client is
+   * shared between calls with the same configuration and must not be closed.
+   */
+  public CloseableHttpClient getPooledHttpClient(
+    final String username,
+    final String password,
+    final Boolean ignoreSSLErrors,
+    final Double timeout,
+    final Boolean useNTLM,
+    final String workstation,
+    final String domain,
+    final Boolean useProxy,
+    final String proxyHost,
+    final Integer proxyPort,
+    final String proxyScheme,
+    final String certRepository,
+    final String certFilePath,
+    final String certPass
+  )
+    throws Exception {
+    final SSLContext sslContext = getSSLContext(
+      ignoreSSLErrors,
+      certRepository,
+      certFilePath,
+      certPass
+    );
+    HttpClientPool.ClientKey key = new HttpClientPool.ClientKey(
+      username,
+      StringUtilities.fingerprint(password),
+      timeout,
+      useNTLM,
+      workstation,
+      domain,
+      useProxy,
+      proxyHost,
+      proxyPort,
+      proxyScheme,
+      sslContext
+    );
 
-      if (username != null && password != null) {
-        CredentialsProvider credsProvider = new BasicCredentialsProvider();
-        if (useNTLM != null && useNTLM) {
-          if (workstation == null) {
-            workstation = "";
-          }
+    return httpClientPool.getClient(
+      key,
+      new HttpClientPool.ClientFactory() {
 
-          if (domain == null) {
-            domain = "";
+        @Override
+        public SSLConnectionSocketFactory createSSLSocketFactory() {
+          if (sslContext == null) {
+            return null;
           }
-
-          credsProvider.setCredentials(
-            AuthScope.ANY,
-            new NTCredentials(username, password, workstation, domain)
-          );
-        } else {
-          credsProvider.setCredentials(
-            AuthScope.ANY,
-            new UsernamePasswordCredentials(username, password)
+          return new SSLConnectionSocketFactory(
+            sslContext,
+            NoopHostnameVerifier.INSTANCE
           );
         }
 
-        clientBuilder.setDefaultCredentialsProvider(credsProvider);
+        @Override
+        public HttpClientBuilder createClientBuilder() {
+          return HttpClientUtilities.createHttpClientBuilder(
+            username,
+            password,
+            timeout,
+            useNTLM,
+            workstation,
+            domain,
+            useProxy,
+            proxyHost,
+            proxyPort,
+            proxyScheme
+          )
+            .addInterceptorFirst(
+              new ConnectionAffinity(key, useNTLM != null && useNTLM)
+            );
+        }
       }
+    );
+  }
 
-      return clientBuilder.build();
-    } catch (Exception ex) {
-      throw new RuntimeException(ex);
+  /**
+   * Returns the cached SSL context for the given settings, or null when the
+   * default platform trust settings apply. The client certificate is only
+   * used if both the repository and the path are set.
+   */
+  private SSLContext getSSLContext(
+    Boolean ignoreSSLErrors,
+    String fileRepository,
+    String certFilePath,
+    String certPass
+  )
+    throws Exception {
+    if (ignoreSSLErrors == null || !ignoreSSLErrors) {
+      return null;
+    }
+
+    // look if the certFile parth and the repository is enabled. If yes, then attempt to load the cert
+    if (
+      StringUtilities.isNullOrEmpty(fileRepository) ||
+      StringUtilities.isNullOrEmpty(certFilePath)
+    ) {
+      return sslContextCache.getTrustSelfSignedContext();
     }
+
+    FileRepositoryThing fileRepo = (FileRepositoryThing) EntityUtilities.findEntity(
+      fileRepository,
+      RelationshipTypes.ThingworxRelationshipTypes.Thing
+    );
+    return sslContextCache.getSSLContext(
+      fileRepository,
+      fileRepo,
+      certFilePath,
+      certPass
+    );
   }
 
   private void addResponseStatus(
     Boolean includeRespStatus,
     JSONObject json,
-    CloseableHttpResponse response
+    StatusLine statusLine
   )
     throws JSONException {
     if (includeRespStatus != null && includeRespStatus) {
       JSONObject status = new JSONObject();
-      StatusLine statusLine = response.getStatusLine();
       status.put("protocolVersion", statusLine.getProtocolVersion());
       status.put("statusCode", statusLine.getStatusCode());
       status.put("reasonPhrase", statusLine.getReasonPhrase());
@@ -1544,25 +4857,7 @@ public class ContentLoaderExtended extends Resource {
   }
 
   public String cookiesToString(List<Cookie> cookies) {
-    StringBuilder cookieResult = new StringBuilder();
-    if (cookies != null && cookies.size() > 0) {
-      boolean isFirst = true;
-      Iterator var3 = cookies.iterator();
-
-      while (var3.hasNext()) {
-        Cookie cookie = (Cookie) var3.next();
-        if (isFirst) {
-          isFirst = false;
-        } else {
-          cookieResult.append("; ");
-        }
-
-        cookieResult.append(cookie.getName());
-        cookieResult.append('=');
-        cookieResult.append(cookie.getValue());
-      }
-    }
-
-    return cookieResult.toString();
+    return HttpClientUtilities.cookiesToString(cookies);
   }
+
 }
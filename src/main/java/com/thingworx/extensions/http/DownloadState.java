@@ -0,0 +1,157 @@
+package com.thingworx.extensions.http;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Progress of a resumable download, saved next to the partial file so that
+ * an interrupted transfer can continue with a Range request. The validator
+ * is sent as If-Range: if the resource changed in the meantime the server
+ * answers with the whole new content instead of the missing range.
+ */
+public class DownloadState {
+  /**
+   * Appended to the path of the downloaded file to get the path of its state.
+   */
+  public static final String SUFFIX = ".download";
+
+  private final String url;
+  private final String validator;
+  private final long length;
+  private long offset;
+
+  public DownloadState(String url, String validator, long length, long offset) {
+    this.url = url;
+    this.validator = validator;
+    this.length = length;
+    this.offset = offset;
+  }
+
+  public String getUrl() {
+    return url;
+  }
+
+  public String getValidator() {
+    return validator;
+  }
+
+  /**
+   * @return the total length of the resource, or -1 if the server did not
+   * send it
+   */
+  public long getLength() {
+    return length;
+  }
+
+  public long getOffset() {
+    return offset;
+  }
+
+  public void setOffset(long offset) {
+    this.offset = offset;
+  }
+
+  public boolean isComplete() {
+    return length >= 0 && offset >= length;
+  }
+
+  public JSONObject toJSON() throws JSONException {
+    JSONObject json = new JSONObject();
+    json.put("url", url);
+    json.put("validator", validator);
+    json.put("length", length);
+    json.put("offset", offset);
+    return json;
+  }
+
+  /**
+   * @return the state saved in the JSON, or null if it is not a valid state
+   */
+  public static DownloadState fromJSON(JSONObject json) {
+    if (json == null) {
+      return null;
+    }
+    try {
+      return new DownloadState(
+        json.getString("url"),
+        json.getString("validator"),
+        json.getLong("length"),
+        json.getLong("offset")
+      );
+    } catch (JSONException ex) {
+      return null;
+    }
+  }
+
+  /**
+   * Returns the validator to send as If-Range: the entity tag if it is
+   * strong (weak ones are not allowed in If-Range), otherwise the last
+   * modification date.
+   *
+   * @return the validator, or null if the response has none
+   */
+  public static String getValidator(HttpResponse response) {
+    Header etag = response.getFirstHeader("ETag");
+    if (etag != null && !etag.getValue().trim().startsWith("W/")) {
+      return etag.getValue().trim();
+    }
+    Header lastModified = response.getFirstHeader("Last-Modified");
+    return lastModified != null ? lastModified.getValue().trim() : null;
+  }
+
+  /**
+   * @return the first byte position of a "Content-Range: bytes a-b/total"
+   * header, or -1 if there is none or it cannot be parsed
+   */
+  public static long getRangeStart(HttpResponse response) {
+    String range = getContentRange(response);
+    if (range == null) {
+      return -1;
+    }
+    int dash = range.indexOf('-');
+    if (dash < 0) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(range.substring(0, dash).trim());
+    } catch (NumberFormatException ex) {
+      return -1;
+    }
+  }
+
+  /**
+   * @return the total length from the Content-Range header of a partial
+   * response, or from the Content-Length of a complete one, -1 if unknown
+   */
+  public static long getTotalLength(HttpResponse response) {
+    String range = getContentRange(response);
+    if (range != null) {
+      int slash = range.indexOf('/');
+      if (slash >= 0) {
+        try {
+          return Long.parseLong(range.substring(slash + 1).trim());
+        } catch (NumberFormatException ex) {
+          return -1;
+        }
+      }
+      return -1;
+    }
+    return response.getEntity() != null
+      ? response.getEntity().getContentLength()
+      : -1;
+  }
+
+  private static String getContentRange(HttpResponse response) {
+    Header header = response.getFirstHeader("Content-Range");
+    if (header == null) {
+      return null;
+    }
+    String value = header.getValue().trim();
+    if (!value.regionMatches(true, 0, "bytes ", 0, 6)) {
+      return null;
+    }
+    return value.substring(6);
+  }
+}
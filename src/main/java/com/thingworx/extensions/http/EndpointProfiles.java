@@ -0,0 +1,326 @@
+package com.thingworx.extensions.http;
+
+import com.thingworx.common.RESTAPIConstants;
+import com.thingworx.common.exceptions.InvalidRequestException;
+import com.thingworx.types.collections.ValueCollection;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.net.ssl.SSLContext;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Named connection settings, one per row of the EndpointProfiles
+ * configuration table. A profile is compiled once into its clients, SSL
+ * context and default headers, and compiled again only when its row changes.
+ */
+public class EndpointProfiles {
+  public static final String TABLE = "EndpointProfiles";
+
+  private static final String[] FIELDS = {
+    "name",
+    "baseUrl",
+    "username",
+    "password",
+    "headers",
+    "ignoreSSLErrors",
+    "timeout",
+    "useNTLM",
+    "workstation",
+    "domain",
+    "useProxy",
+    "proxyHost",
+    "proxyPort",
+    "proxyScheme",
+    "certRepository",
+    "certFilePath",
+    "certFilePassword",
+    "useHttp2",
+    "oauthClient"
+  };
+
+  private final ConcurrentMap<String, Profile> profiles = new ConcurrentHashMap<>();
+
+  /**
+   * Creates the clients of a new or changed profile.
+   */
+  public interface Compiler {
+    void compile(Profile profile) throws Exception;
+  }
+
+  public static final class Profile {
+    private final String name;
+    private final String baseUrl;
+    private final String username;
+    private final String password;
+    private final JSONObject headers;
+    private final boolean ignoreSSLErrors;
+    private final double timeout;
+    private final boolean useNTLM;
+    private final String workstation;
+    private final String domain;
+    private final boolean useProxy;
+    private final String proxyHost;
+    private final int proxyPort;
+    private final String proxyScheme;
+    private final String certRepository;
+    private final String certFilePath;
+    private final String certFilePassword;
+    private final boolean useHttp2;
+    private final String oauthClient;
+    private final String fingerprint;
+
+    private volatile CloseableHttpClient client;
+    private volatile SSLContext sslContext;
+    private volatile CloseableHttpAsyncClient http2Client;
+
+    private Profile(ValueCollection row, String fingerprint)
+      throws InvalidRequestException {
+      this.name = row.getStringValue("name");
+      this.baseUrl = getString(row, "baseUrl");
+      this.username = getString(row, "username");
+      this.password = getString(row, "password");
+      this.ignoreSSLErrors = getBoolean(row, "ignoreSSLErrors");
+      this.timeout = getNumber(row, "timeout", 60);
+      this.useNTLM = getBoolean(row, "useNTLM");
+      this.workstation = getString(row, "workstation");
+      this.domain = getString(row, "domain");
+      this.useProxy = getBoolean(row, "useProxy");
+      this.proxyHost = getString(row, "proxyHost");
+      this.proxyPort = (int) getNumber(row, "proxyPort", 8080);
+      this.proxyScheme =
+        getString(row, "proxyScheme") != null
+          ? getString(row, "proxyScheme")
+          : "http";
+      this.certRepository = getString(row, "certRepository");
+      this.certFilePath = getString(row, "certFilePath");
+      this.certFilePassword = getString(row, "certFilePassword");
+      this.useHttp2 = getBoolean(row, "useHttp2");
+      this.oauthClient = getString(row, "oauthClient");
+      this.fingerprint = fingerprint;
+
+      String headers = getString(row, "headers");
+      try {
+        this.headers =
+          StringUtilities.isBlank(headers) ? null : new JSONObject(headers);
+      } catch (JSONException ex) {
+        throw new InvalidRequestException(
+          "Endpoint profile [" + name + "] headers are not a JSON object",
+          RESTAPIConstants.StatusCode.STATUS_BAD_REQUEST
+        );
+      }
+      if (StringUtilities.isBlank(baseUrl)) {
+        throw new InvalidRequestException(
+          "Endpoint profile [" + name + "] has no base url",
+          RESTAPIConstants.StatusCode.STATUS_BAD_REQUEST
+        );
+      }
+    }
+
+    /**
+     * Sets the clients created by the compiler.
+     */
+    public void compiled(
+      CloseableHttpClient client,
+      SSLContext sslContext,
+      CloseableHttpAsyncClient http2Client
+    ) {
+      this.client = client;
+      this.sslContext = sslContext;
+      this.http2Client = http2Client;
+    }
+
+    /**
+     * Appends the path to the base url. Absolute urls are refused, the
+     * credentials of the profile must not be sent to another server.
+     */
+    public String resolveUrl(String path) throws InvalidRequestException {
+      if (StringUtilities.isNullOrEmpty(path)) {
+        return baseUrl;
+      }
+      if (path.contains("://")) {
+        throw new InvalidRequestException(
+          "The url must be a path relative to the base url of the endpoint profile [" +
+          name +
+          "]",
+          RESTAPIConstants.StatusCode.STATUS_BAD_REQUEST
+        );
+      }
+      boolean baseSlash = baseUrl.endsWith("/");
+      boolean pathSlash = path.startsWith("/");
+      if (baseSlash && pathSlash) {
+        return baseUrl + path.substring(1);
+      }
+      if (baseSlash || pathSlash || path.startsWith("?")) {
+        return baseUrl + path;
+      }
+      return baseUrl + "/" + path;
+    }
+
+    /**
+     * @return the default headers of the profile overridden by the given
+     * ones, null if there are none
+     */
+    public JSONObject mergeHeaders(JSONObject callHeaders)
+      throws JSONException {
+      if (headers == null) {
+        return callHeaders;
+      }
+      JSONObject merged = new JSONObject(headers, JSONObject.getNames(headers));
+      if (callHeaders != null) {
+        Iterator<?> names = callHeaders.keys();
+        while (names.hasNext()) {
+          String headerName = (String) names.next();
+          merged.put(headerName, callHeaders.get(headerName));
+        }
+      }
+      return merged;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public String getBaseUrl() {
+      return baseUrl;
+    }
+
+    public String getUsername() {
+      return username;
+    }
+
+    public String getPassword() {
+      return password;
+    }
+
+    public boolean isIgnoreSSLErrors() {
+      return ignoreSSLErrors;
+    }
+
+    public double getTimeout() {
+      return timeout;
+    }
+
+    public boolean isUseNTLM() {
+      return useNTLM;
+    }
+
+    public String getWorkstation() {
+      return workstation;
+    }
+
+    public String getDomain() {
+      return domain;
+    }
+
+    public boolean isUseProxy() {
+      return useProxy;
+    }
+
+    public String getProxyHost() {
+      return proxyHost;
+    }
+
+    public int getProxyPort() {
+      return proxyPort;
+    }
+
+    public String getProxyScheme() {
+      return proxyScheme;
+    }
+
+    public String getCertRepository() {
+      return certRepository;
+    }
+
+    public String getCertFilePath() {
+      return certFilePath;
+    }
+
+    public String getCertFilePassword() {
+      return certFilePassword;
+    }
+
+    public boolean isUseHttp2() {
+      return useHttp2;
+    }
+
+    /**
+     * @return the name of the OAuth client whose token is sent, null if none
+     */
+    public String getOAuthClient() {
+      return oauthClient;
+    }
+
+    public CloseableHttpClient getClient() {
+      return client;
+    }
+
+    /**
+     * @return the HTTP/2 client, null if the profile does not use HTTP/2
+     */
+    public CloseableHttpAsyncClient getHttp2Client() {
+      return http2Client;
+    }
+  }
+
+  /**
+   * Returns the compiled profile of the row, compiling it first if the row
+   * is new or changed since it was last compiled.
+   */
+  public Profile get(ValueCollection row, Compiler compiler) throws Exception {
+    String name = row.getStringValue("name");
+    StringBuilder values = new StringBuilder();
+    for (String field : FIELDS) {
+      values.append(row.getValue(field)).append('\n');
+    }
+    String fingerprint = StringUtilities.fingerprint(values.toString());
+
+    Profile profile = profiles.get(name);
+    if (profile != null && profile.fingerprint.equals(fingerprint)) {
+      return profile;
+    }
+    profile = new Profile(row, fingerprint);
+    compiler.compile(profile);
+    profiles.put(name, profile);
+    return profile;
+  }
+
+  /**
+   * Forgets the profiles using the SSL context, their clients are closed.
+   * They are compiled again on their next use.
+   */
+  public void retire(SSLContext sslContext) {
+    profiles.values().removeIf(profile -> profile.sslContext == sslContext);
+  }
+
+  public void clear() {
+    profiles.clear();
+  }
+
+  private static String getString(ValueCollection row, String field) {
+    Object value = row.getValue(field);
+    return value != null && !StringUtilities.isBlank(value.toString())
+      ? value.toString()
+      : null;
+  }
+
+  private static boolean getBoolean(ValueCollection row, String field) {
+    Object value = row.getValue(field);
+    return value instanceof Boolean && (Boolean) value;
+  }
+
+  private static double getNumber(
+    ValueCollection row,
+    String field,
+    double defaultValue
+  ) {
+    Object value = row.getValue(field);
+    return value instanceof Number && ((Number) value).doubleValue() > 0
+      ? ((Number) value).doubleValue()
+      : defaultValue;
+  }
+}
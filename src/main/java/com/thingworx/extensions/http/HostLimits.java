@@ -0,0 +1,447 @@
+package com.thingworx.extensions.http;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.http.Header;
+import org.apache.http.HeaderIterator;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.StatusLine;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Rate and concurrency limits per target host. The rate is enforced with a
+ * token bucket, the concurrency with a fair semaphore (a bulkhead). A request
+ * over the limits either waits up to the queue timeout of its host, or of the
+ * call when it sets one, or, when the timeout is 0, is rejected immediately.
+ */
+public class HostLimits {
+  /**
+   * Host name of the limits applied to the hosts without their own limits.
+   */
+  public static final String ANY_HOST = "*";
+
+  /**
+   * Context attribute overriding the queue timeout of the host for the
+   * requests executed with the context, in milliseconds.
+   */
+  public static final String QUEUE_TIMEOUT_ATTRIBUTE = "com.thingworx.extensions.http.queueTimeout";
+
+  private static final Permit NO_PERMIT = new Permit(null);
+
+  private volatile Map<String, Limit> limits = Collections.emptyMap();
+  private final ConcurrentMap<String, Limiter> limiters = new ConcurrentHashMap<>();
+
+  /**
+   * Configured limits of a host. A rate or concurrency of 0 means unlimited.
+   */
+  public static final class Limit {
+    private final double requestsPerSecond;
+    private final int burst;
+    private final int maxConcurrent;
+    private final long queueTimeoutMillis;
+
+    public Limit(
+      double requestsPerSecond,
+      int burst,
+      int maxConcurrent,
+      long queueTimeoutMillis
+    ) {
+      this.requestsPerSecond = Math.max(0, requestsPerSecond);
+      this.burst = Math.max(1, burst);
+      this.maxConcurrent = Math.max(0, maxConcurrent);
+      this.queueTimeoutMillis = Math.max(0, queueTimeoutMillis);
+    }
+  }
+
+  /**
+   * Thrown when a request is over the limits of its host and cannot wait.
+   */
+  public static final class RejectedException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private RejectedException(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * Holds a concurrency slot until closed.
+   */
+  public static final class Permit implements AutoCloseable {
+    private final Semaphore semaphore;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    private Permit(Semaphore semaphore) {
+      this.semaphore = semaphore;
+    }
+
+    /**
+     * Keeps the slot until the response is closed, so that a request counts
+     * against the limit while its body is read.
+     *
+     * @return the response, closing the permit when it is closed
+     */
+    public CloseableHttpResponse holdUntilClosed(CloseableHttpResponse response) {
+      if (semaphore == null) {
+        return response;
+      }
+      return new PermitResponse(response, this);
+    }
+
+    @Override
+    public void close() {
+      if (semaphore != null && released.compareAndSet(false, true)) {
+        semaphore.release();
+      }
+    }
+  }
+
+  /**
+   * Response releasing the permit of its request when it is closed.
+   */
+  private static final class PermitResponse implements CloseableHttpResponse {
+    private final CloseableHttpResponse response;
+    private final Permit permit;
+
+    private PermitResponse(CloseableHttpResponse response, Permit permit) {
+      this.response = response;
+      this.permit = permit;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        response.close();
+      } finally {
+        permit.close();
+      }
+    }
+
+    @Override
+    public StatusLine getStatusLine() {
+      return response.getStatusLine();
+    }
+
+    @Override
+    public void setStatusLine(StatusLine statusline) {
+      response.setStatusLine(statusline);
+    }
+
+    @Override
+    public void setStatusLine(ProtocolVersion ver, int code) {
+      response.setStatusLine(ver, code);
+    }
+
+    @Override
+    public void setStatusLine(ProtocolVersion ver, int code, String reason) {
+      response.setStatusLine(ver, code, reason);
+    }
+
+    @Override
+    public void setStatusCode(int code) {
+      response.setStatusCode(code);
+    }
+
+    @Override
+    public void setReasonPhrase(String reason) {
+      response.setReasonPhrase(reason);
+    }
+
+    @Override
+    public HttpEntity getEntity() {
+      return response.getEntity();
+    }
+
+    @Override
+    public void setEntity(HttpEntity entity) {
+      response.setEntity(entity);
+    }
+
+    @Override
+    public Locale getLocale() {
+      return response.getLocale();
+    }
+
+    @Override
+    public void setLocale(Locale loc) {
+      response.setLocale(loc);
+    }
+
+    @Override
+    public ProtocolVersion getProtocolVersion() {
+      return response.getProtocolVersion();
+    }
+
+    @Override
+    public boolean containsHeader(String name) {
+      return response.containsHeader(name);
+    }
+
+    @Override
+    public Header[] getHeaders(String name) {
+      return response.getHeaders(name);
+    }
+
+    @Override
+    public Header getFirstHeader(String name) {
+      return response.getFirstHeader(name);
+    }
+
+    @Override
+    public Header getLastHeader(String name) {
+      return response.getLastHeader(name);
+    }
+
+    @Override
+    public Header[] getAllHeaders() {
+      return response.getAllHeaders();
+    }
+
+    @Override
+    public void addHeader(Header header) {
+      response.addHeader(header);
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+      response.addHeader(name, value);
+    }
+
+    @Override
+    public void setHeader(Header header) {
+      response.setHeader(header);
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+      response.setHeader(name, value);
+    }
+
+    @Override
+    public void setHeaders(Header[] headers) {
+      response.setHeaders(headers);
+    }
+
+    @Override
+    public void removeHeader(Header header) {
+      response.removeHeader(header);
+    }
+
+    @Override
+    public void removeHeaders(String name) {
+      response.removeHeaders(name);
+    }
+
+    @Override
+    public HeaderIterator headerIterator() {
+      return response.headerIterator();
+    }
+
+    @Override
+    public HeaderIterator headerIterator(String name) {
+      return response.headerIterator(name);
+    }
+
+    @Deprecated
+    @Override
+    public org.apache.http.params.HttpParams getParams() {
+      return response.getParams();
+    }
+
+    @Deprecated
+    @Override
+    public void setParams(org.apache.http.params.HttpParams params) {
+      response.setParams(params);
+    }
+  }
+
+  private static final class Limiter {
+    private final Limit limit;
+    private final Semaphore semaphore;
+    private double tokens;
+    private long refilledAt = System.nanoTime();
+
+    private Limiter(Limit limit) {
+      this.limit = limit;
+      this.semaphore =
+        limit.maxConcurrent > 0 ? new Semaphore(limit.maxConcurrent, true) : null;
+      this.tokens = limit.burst;
+    }
+
+    /**
+     * Takes a token, possibly in advance: the returned wait is how long the
+     * caller must sleep before the token it took becomes available.
+     *
+     * @return the wait in nanoseconds, or -1 if the token could not be taken
+     * within the given maximum wait
+     */
+    private synchronized long reserve(long maxWaitNanos) {
+      long now = System.nanoTime();
+      tokens =
+        Math.min(
+          limit.burst,
+          tokens + (now - refilledAt) * limit.requestsPerSecond / 1e9
+        );
+      refilledAt = now;
+      long wait = tokens >= 1
+        ? 0
+        : (long) Math.ceil((1 - tokens) * 1e9 / limit.requestsPerSecond);
+      if (wait > maxWaitNanos) {
+        return -1;
+      }
+      tokens -= 1;
+      return wait;
+    }
+  }
+
+  /**
+   * Replaces the limits. Hosts are matched by "host:port", then by host
+   * name, then by ANY_HOST.
+   */
+  public void setLimits(Map<String, Limit> limits) {
+    Map<String, Limit> copy = new HashMap<>();
+    for (Map.Entry<String, Limit> entry : limits.entrySet()) {
+      copy.put(entry.getKey().trim().toLowerCase(), entry.getValue());
+    }
+    this.limits = copy;
+    limiters.clear();
+  }
+
+  /**
+   * Sets the queue timeout of the requests executed with the context.
+   *
+   * @param queueTimeoutMillis the timeout, 0 to reject the requests over the
+   * limits immediately, or null to use the timeout of the host
+   */
+  public static void setQueueTimeout(
+    HttpContext context,
+    Integer queueTimeoutMillis
+  ) {
+    if (queueTimeoutMillis == null) {
+      context.removeAttribute(QUEUE_TIMEOUT_ATTRIBUTE);
+    } else {
+      context.setAttribute(
+        QUEUE_TIMEOUT_ATTRIBUTE,
+        Math.max(0L, queueTimeoutMillis.longValue())
+      );
+    }
+  }
+
+  /**
+   * @return the queue timeout set on the context, or null
+   */
+  public static Long getQueueTimeout(HttpContext context) {
+    Object value = context != null
+      ? context.getAttribute(QUEUE_TIMEOUT_ATTRIBUTE)
+      : null;
+    return value instanceof Long ? (Long) value : null;
+  }
+
+  /**
+   * Waits until the request is allowed by the limits of its host, up to the
+   * queue timeout of the host.
+   *
+   * @see #acquire(HttpHost, Long)
+   */
+  public Permit acquire(HttpHost host) throws IOException {
+    return acquire(host, null);
+  }
+
+  /**
+   * Waits until the request is allowed by the limits of its host. The
+   * returned permit must be closed once the response is consumed.
+   *
+   * @param queueTimeoutMillis how long to wait, or null for the queue
+   * timeout of the host
+   * @throws RejectedException if the limits are still exceeded after the
+   * queue timeout
+   */
+  public Permit acquire(HttpHost host, Long queueTimeoutMillis)
+    throws IOException {
+    Map<String, Limit> current = limits;
+    if (current.isEmpty()) {
+      return NO_PERMIT;
+    }
+    String hostKey = RequestMetrics.getHostKey(host);
+    Limit limit = current.get(hostKey);
+    if (limit == null && host != null) {
+      limit = current.get(host.getHostName().toLowerCase());
+    }
+    if (limit == null) {
+      limit = current.get(ANY_HOST);
+    }
+    if (limit == null) {
+      return NO_PERMIT;
+    }
+    final Limit hostLimit = limit;
+    Limiter limiter = limiters.computeIfAbsent(
+      hostKey,
+      k -> new Limiter(hostLimit)
+    );
+
+    long deadline =
+      System.nanoTime() +
+      TimeUnit.MILLISECONDS.toNanos(
+        queueTimeoutMillis != null
+          ? Math.max(0, queueTimeoutMillis)
+          : limit.queueTimeoutMillis
+      );
+    try {
+      Permit permit = NO_PERMIT;
+      if (limiter.semaphore != null) {
+        if (
+          !limiter.semaphore.tryAcquire(
+            deadline - System.nanoTime(),
+            TimeUnit.NANOSECONDS
+          )
+        ) {
+          throw new RejectedException(
+            "Too many concurrent requests to " +
+            hostKey +
+            ", the limit is " +
+            limit.maxConcurrent
+          );
+        }
+        permit = new Permit(limiter.semaphore);
+      }
+      if (limit.requestsPerSecond > 0) {
+        long wait = limiter.reserve(Math.max(0, deadline - System.nanoTime()));
+        if (wait < 0) {
+          permit.close();
+          throw new RejectedException(
+            "Rate limit of " +
+            limit.requestsPerSecond +
+            " requests per second exceeded for " +
+            hostKey
+          );
+        }
+        if (wait > 0) {
+          try {
+            TimeUnit.NANOSECONDS.sleep(wait);
+          } catch (InterruptedException ex) {
+            permit.close();
+            throw ex;
+          }
+        }
+      }
+      return permit;
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(
+        "Interrupted while waiting for the limits of " + hostKey
+      );
+    }
+  }
+}
@@ -0,0 +1,441 @@
+package com.thingworx.extensions.http;
+
+import com.thingworx.logging.LogUtilities;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import javax.net.ssl.SSLContext;
+import org.apache.commons.io.IOUtils;
+import org.apache.hc.client5.http.async.methods.SimpleHttpRequest;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.H2AsyncClientBuilder;
+import org.apache.hc.client5.http.ssl.ClientTlsStrategyBuilder;
+import org.apache.hc.client5.http.ssl.NoopHostnameVerifier;
+import org.apache.hc.core5.http.ConnectionClosedException;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http2.H2ConnectionException;
+import org.apache.hc.core5.http2.impl.nio.ProtocolNegotiationException;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.util.Timeout;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+
+/**
+ * Keeps one non-blocking HTTP/2 client per effective client configuration.
+ * Each client keeps a single connection per host and multiplexes the
+ * concurrent requests of all the callers over it.
+ *
+ * Requests are built with the httpclient 4 API used everywhere else and the
+ * response is returned the same way, with its body buffered. Hosts that turn
+ * out not to speak HTTP/2 are left to the HTTP/1.1 client for a while.
+ */
+public class Http2ClientPool implements Closeable {
+  private static final Logger _logger = LogUtilities
+    .getInstance()
+    .getApplicationLogger(Http2ClientPool.class);
+
+  /**
+   * Context attribute binding a request to a client of this pool.
+   */
+  public static final String CONTEXT_ATTRIBUTE = "com.thingworx.extensions.http.http2Client";
+
+  // connection specific headers, forbidden in HTTP/2 and set by the client
+  private static final String[] EXCLUDED_HEADERS = {
+    "Connection",
+    "Keep-Alive",
+    "Proxy-Connection",
+    "Transfer-Encoding",
+    "Upgrade",
+    "Host",
+    "Content-Length",
+    "Content-Type",
+    "Accept-Encoding"
+  };
+
+  /**
+   * How long a host that refused HTTP/2 is served over HTTP/1.1 before it is
+   * tried again.
+   */
+  private static final long HTTP1_VERDICT_MILLIS = 600000;
+
+  private static final ProtocolVersion HTTP_2 = new ProtocolVersion(
+    "HTTP",
+    2,
+    0
+  );
+
+  private final ConcurrentMap<HttpClientPool.ClientKey, CloseableHttpAsyncClient> clients = new ConcurrentHashMap<>();
+  private final Set<String> http2Hosts = ConcurrentHashMap.newKeySet();
+  private final ConcurrentMap<String, Long> http1Hosts = new ConcurrentHashMap<>();
+
+  private static final class Binding {
+    private final Http2ClientPool pool;
+    private final CloseableHttpAsyncClient client;
+    private final String username;
+    private final String password;
+
+    private Binding(
+      Http2ClientPool pool,
+      CloseableHttpAsyncClient client,
+      String username,
+      String password
+    ) {
+      this.pool = pool;
+      this.client = client;
+      this.username = username;
+      this.password = password;
+    }
+  }
+
+  /**
+   * Returns the shared client for the given key, creating and starting it if
+   * needed. The key must contain every other argument.
+   *
+   * @param sslContext the context for https, or null for the default one
+   * @param timeout the connect and response timeout, in seconds
+   */
+  public CloseableHttpAsyncClient getClient(
+    HttpClientPool.ClientKey key,
+    SSLContext sslContext,
+    Double timeout
+  ) {
+    CloseableHttpAsyncClient client = clients.get(key);
+    if (client != null) {
+      return client;
+    }
+
+    synchronized (clients) {
+      client = clients.get(key);
+      if (client == null) {
+        client = createClient(sslContext, timeout);
+        client.start();
+        clients.put(key, client);
+      }
+    }
+    return client;
+  }
+
+  private static CloseableHttpAsyncClient createClient(
+    SSLContext sslContext,
+    Double timeout
+  ) {
+    ClientTlsStrategyBuilder tlsStrategy = ClientTlsStrategyBuilder.create();
+    if (sslContext != null) {
+      tlsStrategy
+        .setSslContext(sslContext)
+        .setHostnameVerifier(NoopHostnameVerifier.INSTANCE);
+    }
+
+    Timeout httpTimeout = Timeout.ofSeconds(
+      timeout != null ? timeout.longValue() : 60
+    );
+    return H2AsyncClientBuilder
+      .create()
+      .setTlsStrategy(tlsStrategy.build())
+      .setDefaultRequestConfig(
+        RequestConfig
+          .custom()
+          .setConnectTimeout(httpTimeout)
+          .setResponseTimeout(httpTimeout)
+          .build()
+      )
+      .disableCookieManagement()
+      .disableAutomaticRetries()
+      .build();
+  }
+
+  /**
+   * Makes the requests executed with the context use the given client. Basic
+   * credentials, when given, are sent preemptively.
+   */
+  public void bind(
+    HttpContext context,
+    CloseableHttpAsyncClient client,
+    String username,
+    String password
+  ) {
+    context.setAttribute(
+      CONTEXT_ATTRIBUTE,
+      new Binding(this, client, username, password)
+    );
+  }
+
+  /**
+   * Executes the request with the client bound to the context and waits for
+   * the complete response.
+   *
+   * @return the response, or null if the request must be executed over
+   * HTTP/1.1 because no client is bound, the url is not https or the host
+   * did not negotiate HTTP/2
+   */
+  public static CloseableHttpResponse execute(
+    HttpUriRequest request,
+    HttpContext context
+  )
+    throws IOException {
+    Object attribute = context.getAttribute(CONTEXT_ATTRIBUTE);
+    if (
+      !(attribute instanceof Binding) ||
+      !"https".equalsIgnoreCase(request.getURI().getScheme())
+    ) {
+      return null;
+    }
+    Binding binding = (Binding) attribute;
+    String hostKey = RequestMetrics.getHostKey(
+      URIUtils.extractHost(request.getURI())
+    );
+    Long http1Until = binding.pool.http1Hosts.get(hostKey);
+    if (http1Until != null) {
+      if (System.currentTimeMillis() < http1Until) {
+        return null;
+      }
+      binding.pool.http1Hosts.remove(hostKey, http1Until);
+    }
+
+    SimpleHttpRequest asyncRequest = SimpleHttpRequest.create(
+      request.getMethod(),
+      request.getURI()
+    );
+    for (Header header : request.getAllHeaders()) {
+      if (!isExcluded(header.getName())) {
+        asyncRequest.addHeader(header.getName(), header.getValue());
+      }
+    }
+    asyncRequest.setHeader("Accept-Encoding", "gzip");
+    if (binding.username != null && binding.password != null) {
+      asyncRequest.setHeader(
+        "Authorization",
+        "Basic " +
+        Base64
+          .getEncoder()
+          .encodeToString(
+            (binding.username + ":" + binding.password).getBytes(
+                StandardCharsets.UTF_8
+              )
+          )
+      );
+    }
+
+    ByteArrayEntity body = null;
+    if (request instanceof HttpEntityEnclosingRequest) {
+      HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+      if (entity != null) {
+        body = buffer(entity);
+        // keeps the request replayable over HTTP/1.1
+        ((HttpEntityEnclosingRequest) request).setEntity(body);
+        if (body.getContentEncoding() != null) {
+          asyncRequest.setHeader(
+            "Content-Encoding",
+            body.getContentEncoding().getValue()
+          );
+        }
+        asyncRequest.setBody(
+          EntityUtils.toByteArray(body),
+          body.getContentType() != null
+            ? ContentType.parse(body.getContentType().getValue())
+            : ContentType.APPLICATION_OCTET_STREAM
+        );
+      }
+    }
+
+    Future<SimpleHttpResponse> future = binding.client.execute(
+      asyncRequest,
+      null
+    );
+    SimpleHttpResponse response;
+    try {
+      response = future.get();
+    } catch (InterruptedException ex) {
+      future.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Request interrupted");
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (isHttp2Refused(binding.pool, hostKey, cause)) {
+        _logger.info(
+          "Host {} did not negotiate HTTP/2, using HTTP/1.1: {}",
+          hostKey,
+          cause.toString()
+        );
+        binding.pool.http1Hosts.put(
+          hostKey,
+          System.currentTimeMillis() + HTTP1_VERDICT_MILLIS
+        );
+        // ALPN fails before the request is sent, other requests are only
+        // sent again if that is safe
+        if (
+          cause instanceof ProtocolNegotiationException ||
+          RetryPolicy.isIdempotent(request)
+        ) {
+          return null;
+        }
+      }
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      throw new IOException(cause);
+    }
+    binding.pool.http2Hosts.add(hostKey);
+    return toResponse(response);
+  }
+
+  /**
+   * Tells whether the failure shows that the host does not speak HTTP/2.
+   *
+   * A server choosing another protocol with ALPN fails the negotiation. A
+   * server without ALPN receives the HTTP/2 preface and answers it with an
+   * HTTP/1.1 error or by closing the connection, which is only taken as a
+   * refusal from a host that never answered over HTTP/2. Any other failure,
+   * TLS and certificate errors included, is the failure of the request.
+   */
+  private static boolean isHttp2Refused(
+    Http2ClientPool pool,
+    String hostKey,
+    Throwable cause
+  ) {
+    if (cause instanceof ProtocolNegotiationException) {
+      return true;
+    }
+    return (
+      (
+        cause instanceof H2ConnectionException ||
+        cause instanceof ConnectionClosedException
+      ) &&
+      !pool.http2Hosts.contains(hostKey)
+    );
+  }
+
+  private static ByteArrayEntity buffer(HttpEntity entity) throws IOException {
+    ByteArrayOutputStream content = new ByteArrayOutputStream();
+    entity.writeTo(content);
+    ByteArrayEntity buffered = new ByteArrayEntity(content.toByteArray());
+    buffered.setContentType(entity.getContentType());
+    buffered.setContentEncoding(entity.getContentEncoding());
+    return buffered;
+  }
+
+  private static boolean isExcluded(String headerName) {
+    for (String excluded : EXCLUDED_HEADERS) {
+      if (excluded.equalsIgnoreCase(headerName)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static CloseableHttpResponse toResponse(SimpleHttpResponse response)
+    throws IOException {
+    BufferedHttpResponse result = new BufferedHttpResponse(
+      new BasicStatusLine(
+        HTTP_2,
+        response.getCode(),
+        response.getReasonPhrase()
+      )
+    );
+
+    byte[] body = response.getBodyBytes();
+    boolean gzipped = false;
+    for (org.apache.hc.core5.http.Header header : response.getHeaders()) {
+      if ("Content-Encoding".equalsIgnoreCase(header.getName())) {
+        gzipped = "gzip".equalsIgnoreCase(header.getValue().trim());
+        if (gzipped) {
+          continue;
+        }
+      }
+      result.addHeader(header.getName(), header.getValue());
+    }
+
+    if (body != null) {
+      if (gzipped) {
+        try (
+          GZIPInputStream in = new GZIPInputStream(
+            new ByteArrayInputStream(body)
+          )
+        ) {
+          body = IOUtils.toByteArray(in);
+        }
+      }
+      ByteArrayEntity entity = new ByteArrayEntity(body);
+      if (response.getContentType() != null) {
+        entity.setContentType(response.getContentType().toString());
+      }
+      result.setEntity(entity);
+    }
+    return result;
+  }
+
+  /**
+   * Closes the clients whose key contains the given part (compared by
+   * identity). The running requests are allowed to complete.
+   */
+  public void retireClients(Object part) {
+    synchronized (clients) {
+      Iterator<Map.Entry<HttpClientPool.ClientKey, CloseableHttpAsyncClient>> entries = clients
+        .entrySet()
+        .iterator();
+      while (entries.hasNext()) {
+        Map.Entry<HttpClientPool.ClientKey, CloseableHttpAsyncClient> entry = entries.next();
+        if (entry.getKey().contains(part)) {
+          entry.getValue().close(CloseMode.GRACEFUL);
+          entries.remove();
+        }
+      }
+    }
+  }
+
+  public int size() {
+    return clients.size();
+  }
+
+  @Override
+  public void close() {
+    synchronized (clients) {
+      for (CloseableHttpAsyncClient client : clients.values()) {
+        client.close(CloseMode.GRACEFUL);
+      }
+      clients.clear();
+    }
+    http2Hosts.clear();
+    http1Hosts.clear();
+  }
+
+  /**
+   * A response whose body is already in memory, so closing it is a no-op.
+   */
+  private static final class BufferedHttpResponse
+    extends BasicHttpResponse
+    implements CloseableHttpResponse {
+
+    private BufferedHttpResponse(BasicStatusLine statusLine) {
+      super(statusLine);
+    }
+
+    @Override
+    public void close() {}
+  }
+}
@@ -0,0 +1,566 @@
+package com.thingworx.extensions.http;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.http.HttpResponse;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Keeps one pooled http client per effective client configuration, so that
+ * connections (and their TLS sessions) are reused across service calls.
+ *
+ * Kept-alive connections can be closed by the server or a proxy while they
+ * wait in the pool. A background task closes the expired connections and the
+ * ones idle for too long, connections idle for some time are checked before
+ * being reused, and requests that fail on a connection closed in the
+ * meantime are sent again if they are idempotent.
+ */
+public class HttpClientPool implements Closeable {
+  public static final int DEFAULT_MAX_TOTAL = 200;
+  public static final int DEFAULT_MAX_PER_ROUTE = 20;
+  public static final int DEFAULT_IDLE_TIMEOUT_MILLIS = 30000;
+  public static final int DEFAULT_KEEP_ALIVE_MILLIS = 60000;
+  public static final int DEFAULT_VALIDATE_AFTER_INACTIVITY_MILLIS = 2000;
+  public static final int DEFAULT_EVICTION_INTERVAL_MILLIS = 5000;
+
+  /**
+   * Subtracted from the keep-alive timeout announced by a server, so that a
+   * connection is not reused just as the server closes it.
+   */
+  private static final long KEEP_ALIVE_MARGIN_MILLIS = 1000;
+  /**
+   * Keep-alive duration of the connections the server does not keep, the
+   * connection manager takes 0 or less as no limit.
+   */
+  private static final long MIN_KEEP_ALIVE_MILLIS = 1;
+  /**
+   * Number of times a request is sent again after its connection failed,
+   * the default of HttpClient.
+   */
+  private static final int CONNECTION_RETRIES = 3;
+
+  private final ConcurrentMap<ClientKey, PooledClient> clients = new ConcurrentHashMap<>();
+  private final List<PooledClient> retiredClients = new ArrayList<>();
+  private final Map<CloseableHttpClient, Long> clientIds = Collections.synchronizedMap(
+    new WeakHashMap<>()
+  );
+  private final AtomicLong nextClientId = new AtomicLong();
+  private final ConcurrentMap<String, ConnectionStats> hostConnectionStats = new ConcurrentHashMap<>();
+  private final ConnectionKeepAliveStrategy keepAliveStrategy = new KeepAliveStrategy();
+  private final DefaultHttpRequestRetryHandler retryHandler = new CountingRetryHandler();
+  private volatile int maxTotal = DEFAULT_MAX_TOTAL;
+  private volatile int maxPerRoute = DEFAULT_MAX_PER_ROUTE;
+  private volatile long idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+  private volatile long keepAliveMillis = DEFAULT_KEEP_ALIVE_MILLIS;
+  private volatile int validateAfterInactivityMillis = DEFAULT_VALIDATE_AFTER_INACTIVITY_MILLIS;
+  private long evictionIntervalMillis = DEFAULT_EVICTION_INTERVAL_MILLIS;
+  private ScheduledExecutorService evictor;
+  private ScheduledFuture<?> eviction;
+
+  /**
+   * Builds the parts of a client that depend on the caller's configuration.
+   * Only invoked when no client exists yet for the given key.
+   */
+  public interface ClientFactory {
+    /**
+     * @return the socket factory for https routes, or null for the default one
+     */
+    SSLConnectionSocketFactory createSSLSocketFactory() throws Exception;
+
+    HttpClientBuilder createClientBuilder() throws Exception;
+  }
+
+  /**
+   * Identifies a client configuration. Secrets should be passed as
+   * fingerprints, never in clear text.
+   */
+  public static final class ClientKey {
+    private final Object[] parts;
+    private final int hash;
+
+    public ClientKey(Object... parts) {
+      this.parts = parts;
+      this.hash = Arrays.hashCode(parts);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof ClientKey)) {
+        return false;
+      }
+      return Arrays.equals(parts, ((ClientKey) o).parts);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    boolean contains(Object part) {
+      for (Object p : parts) {
+        if (p == part) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  private static final class PooledClient {
+    private final CloseableHttpClient client;
+    private final PoolingHttpClientConnectionManager connectionManager;
+
+    private PooledClient(
+      CloseableHttpClient client,
+      PoolingHttpClientConnectionManager connectionManager
+    ) {
+      this.client = client;
+      this.connectionManager = connectionManager;
+    }
+  }
+
+  /**
+   * Counters of the connections to a host.
+   */
+  public static final class ConnectionStats {
+    private final LongAdder evicted = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+
+    /**
+     * @return the number of idle or expired connections closed by the
+     * evictor
+     */
+    public long getEvicted() {
+      return evicted.sum();
+    }
+
+    /**
+     * @return the number of requests sent again because their connection
+     * failed, usually a kept-alive connection closed by the other side
+     */
+    public long getRetries() {
+      return retries.sum();
+    }
+  }
+
+  /**
+   * Keeps the connections alive for the duration announced by the server in
+   * its Keep-Alive header, or for the default duration if it announces none.
+   */
+  private final class KeepAliveStrategy implements ConnectionKeepAliveStrategy {
+
+    @Override
+    public long getKeepAliveDuration(
+      HttpResponse response,
+      HttpContext context
+    ) {
+      long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(
+        response,
+        context
+      );
+      if (duration < 0) {
+        return keepAliveMillis;
+      }
+      if (duration == 0) {
+        // "timeout=0": the server closes the connection at once, while a
+        // duration of 0 would keep it forever
+        return MIN_KEEP_ALIVE_MILLIS;
+      }
+      return duration > 2 * KEEP_ALIVE_MARGIN_MILLIS
+        ? duration - KEEP_ALIVE_MARGIN_MILLIS
+        : Math.max(MIN_KEEP_ALIVE_MILLIS, duration / 2);
+    }
+  }
+
+  /**
+   * The retry handler of HttpClient, counting the retries per host.
+   */
+  private final class CountingRetryHandler
+    extends DefaultHttpRequestRetryHandler {
+
+    private CountingRetryHandler() {
+      super(CONNECTION_RETRIES, false);
+    }
+
+    @Override
+    public boolean retryRequest(
+      IOException exception,
+      int executionCount,
+      HttpContext context
+    ) {
+      boolean retry = super.retryRequest(exception, executionCount, context);
+      if (
+        retry &&
+        (
+          exception instanceof NoHttpResponseException ||
+          (
+            exception instanceof SocketException &&
+            !(exception instanceof ConnectException)
+          )
+        )
+      ) {
+        getConnectionStats(
+          RequestMetrics.getHostKey(
+            HttpClientContext.adapt(context).getTargetHost()
+          )
+        )
+          .retries.increment();
+      }
+      return retry;
+    }
+  }
+
+  /**
+   * Returns the shared client for the given key, creating it if needed. The
+   * returned client is owned by the pool and must not be closed by callers.
+   */
+  public CloseableHttpClient getClient(ClientKey key, ClientFactory factory)
+    throws Exception {
+    PooledClient pooled = clients.get(key);
+    if (pooled != null) {
+      return pooled.client;
+    }
+
+    synchronized (clients) {
+      pooled = clients.get(key);
+      if (pooled == null) {
+        pooled = createPooledClient(factory);
+        clients.put(key, pooled);
+        startEvictor();
+      }
+      if (!retiredClients.isEmpty()) {
+        closeIdleRetiredClients();
+      }
+    }
+    return pooled.client;
+  }
+
+  private PooledClient createPooledClient(ClientFactory factory)
+    throws Exception {
+    SSLConnectionSocketFactory sslSocketFactory = factory.createSSLSocketFactory();
+    if (sslSocketFactory == null) {
+      sslSocketFactory = SSLConnectionSocketFactory.getSocketFactory();
+    }
+    Registry<ConnectionSocketFactory> registry = RegistryBuilder
+      .<ConnectionSocketFactory>create()
+      .register("http", RequestTimings.createPlainSocketFactory())
+      .register(
+        "https",
+        RequestTimings.createLayeredSocketFactory(sslSocketFactory)
+      )
+      .build();
+
+    PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(
+      registry,
+      RequestTimings.createDnsResolver()
+    );
+    connectionManager.setMaxTotal(maxTotal);
+    connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+    connectionManager.setValidateAfterInactivity(validateAfterInactivityMillis);
+
+    CloseableHttpClient client = factory
+      .createClientBuilder()
+      .setConnectionManager(connectionManager)
+      .setRequestExecutor(new RequestTimings.TimingRequestExecutor())
+      .setKeepAliveStrategy(keepAliveStrategy)
+      .setRetryHandler(retryHandler)
+      .build();
+    clientIds.put(client, nextClientId.incrementAndGet());
+    return new PooledClient(client, connectionManager);
+  }
+
+  /**
+   * Updates the connection limits, including the ones of already created
+   * pools.
+   */
+  public void setLimits(int maxTotal, int maxPerRoute) {
+    if (maxTotal <= 0 || maxPerRoute <= 0) {
+      throw new IllegalArgumentException(
+        "Connection pool limits must be positive"
+      );
+    }
+    this.maxTotal = maxTotal;
+    this.maxPerRoute = maxPerRoute;
+    for (PooledClient pooled : clients.values()) {
+      pooled.connectionManager.setMaxTotal(maxTotal);
+      pooled.connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+    }
+  }
+
+  /**
+   * Updates the settings of the idle connections, including the ones of
+   * already created pools.
+   *
+   * @param idleTimeoutMillis connections idle for longer are closed, 0 to
+   * keep them until they expire
+   * @param keepAliveMillis how long connections are kept alive when the
+   * server does not say
+   * @param validateAfterInactivityMillis connections idle for longer are
+   * checked before being reused
+   * @param evictionIntervalMillis interval of the eviction of the idle and
+   * expired connections
+   */
+  public void setConnectionSettings(
+    long idleTimeoutMillis,
+    long keepAliveMillis,
+    int validateAfterInactivityMillis,
+    long evictionIntervalMillis
+  ) {
+    if (
+      idleTimeoutMillis < 0 ||
+      keepAliveMillis <= 0 ||
+      validateAfterInactivityMillis <= 0 ||
+      evictionIntervalMillis <= 0
+    ) {
+      throw new IllegalArgumentException("Invalid connection settings");
+    }
+    this.idleTimeoutMillis = idleTimeoutMillis;
+    this.keepAliveMillis = keepAliveMillis;
+    this.validateAfterInactivityMillis = validateAfterInactivityMillis;
+    for (PooledClient pooled : clients.values()) {
+      pooled.connectionManager.setValidateAfterInactivity(
+        validateAfterInactivityMillis
+      );
+    }
+    synchronized (clients) {
+      if (this.evictionIntervalMillis != evictionIntervalMillis) {
+        this.evictionIntervalMillis = evictionIntervalMillis;
+        if (eviction != null) {
+          eviction.cancel(false);
+          eviction = null;
+          startEvictor();
+        }
+      }
+    }
+  }
+
+  /**
+   * Starts the eviction of the idle connections, if it is not running.
+   * Called with the lock of the clients.
+   */
+  private void startEvictor() {
+    if (evictor == null) {
+      evictor =
+        Executors.newSingleThreadScheduledExecutor(
+          runnable -> {
+            Thread thread = new Thread(
+              runnable,
+              "ContentLoaderExtended-evictor"
+            );
+            thread.setDaemon(true);
+            return thread;
+          }
+        );
+    }
+    if (eviction == null) {
+      eviction =
+        evictor.scheduleWithFixedDelay(
+          this::evictConnections,
+          evictionIntervalMillis,
+          evictionIntervalMillis,
+          TimeUnit.MILLISECONDS
+        );
+    }
+  }
+
+  /**
+   * Closes the expired connections and the ones idle for longer than the
+   * idle timeout, counting them by host.
+   */
+  private void evictConnections() {
+    List<PooledClient> pooled;
+    synchronized (clients) {
+      pooled = new ArrayList<>(clients.values());
+      pooled.addAll(retiredClients);
+    }
+    long idleTimeout = idleTimeoutMillis;
+    for (PooledClient client : pooled) {
+      PoolingHttpClientConnectionManager connectionManager = client.connectionManager;
+      Map<HttpRoute, Integer> available = new HashMap<>();
+      for (HttpRoute route : connectionManager.getRoutes()) {
+        available.put(
+          route,
+          connectionManager.getStats(route).getAvailable()
+        );
+      }
+      connectionManager.closeExpiredConnections();
+      if (idleTimeout > 0) {
+        connectionManager.closeIdleConnections(
+          idleTimeout,
+          TimeUnit.MILLISECONDS
+        );
+      }
+      for (Map.Entry<HttpRoute, Integer> route : available.entrySet()) {
+        // connections released meanwhile can hide evicted ones
+        int evicted =
+          route.getValue() -
+          connectionManager.getStats(route.getKey()).getAvailable();
+        if (evicted > 0) {
+          getConnectionStats(
+            RequestMetrics.getHostKey(route.getKey().getTargetHost())
+          )
+            .evicted.add(evicted);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the connection counters of the host (see
+   * RequestMetrics.getHostKey), created on first use
+   */
+  public ConnectionStats getConnectionStats(String hostKey) {
+    ConnectionStats stats = hostConnectionStats.get(hostKey);
+    if (stats == null) {
+      stats = hostConnectionStats.computeIfAbsent(hostKey, k -> new ConnectionStats());
+    }
+    return stats;
+  }
+
+  /**
+   * Removes from the pool every client whose key contains the given part
+   * (compared by identity). Retired clients are closed once none of their
+   * connections are leased anymore, so in-flight requests can complete.
+   */
+  public void retireClients(Object part) {
+    synchronized (clients) {
+      Iterator<Map.Entry<ClientKey, PooledClient>> entries = clients
+        .entrySet()
+        .iterator();
+      while (entries.hasNext()) {
+        Map.Entry<ClientKey, PooledClient> entry = entries.next();
+        if (entry.getKey().contains(part)) {
+          retiredClients.add(entry.getValue());
+          entries.remove();
+        }
+      }
+      closeIdleRetiredClients();
+    }
+  }
+
+  private void closeIdleRetiredClients() {
+    Iterator<PooledClient> retired = retiredClients.iterator();
+    while (retired.hasNext()) {
+      PooledClient pooled = retired.next();
+      if (pooled.connectionManager.getTotalStats().getLeased() == 0) {
+        try {
+          pooled.client.close();
+        } catch (Exception ignored) {}
+        retired.remove();
+      }
+    }
+  }
+
+  /**
+   * @return the connection pool stats by target host (see
+   * RequestMetrics.getHostKey), summed over the clients using that host
+   */
+  public Map<String, PoolStats> getHostStats() {
+    Map<String, PoolStats> stats = new HashMap<>();
+    List<PooledClient> pooled;
+    synchronized (clients) {
+      pooled = new ArrayList<>(clients.values());
+      pooled.addAll(retiredClients);
+    }
+    for (PooledClient client : pooled) {
+      for (HttpRoute route : client.connectionManager.getRoutes()) {
+        String host = RequestMetrics.getHostKey(route.getTargetHost());
+        PoolStats routeStats = client.connectionManager.getStats(route);
+        PoolStats total = stats.get(host);
+        if (total != null) {
+          routeStats =
+            new PoolStats(
+              total.getLeased() + routeStats.getLeased(),
+              total.getPending() + routeStats.getPending(),
+              total.getAvailable() + routeStats.getAvailable(),
+              total.getMax() + routeStats.getMax()
+            );
+        }
+        stats.put(host, routeStats);
+      }
+    }
+    return stats;
+  }
+
+  /**
+   * Identifies a client created by the pool. Two calls get the same client,
+   * hence the same id, only if all the settings of its key are equal,
+   * including the SSL context; ids are never reused.
+   *
+   * @throws IllegalArgumentException if the client is not from this pool
+   */
+  public long getClientId(CloseableHttpClient client) {
+    Long id = clientIds.get(client);
+    if (id == null) {
+      throw new IllegalArgumentException("The client is not pooled");
+    }
+    return id;
+  }
+
+  public int size() {
+    return clients.size();
+  }
+
+  /**
+   * Closes every pooled client. The pool stays usable and will create new
+   * clients on demand.
+   */
+  @Override
+  public void close() {
+    synchronized (clients) {
+      if (evictor != null) {
+        evictor.shutdownNow();
+        evictor = null;
+        eviction = null;
+      }
+      hostConnectionStats.clear();
+      for (PooledClient pooled : clients.values()) {
+        try {
+          pooled.client.close();
+        } catch (Exception ignored) {}
+      }
+      clients.clear();
+      for (PooledClient pooled : retiredClients) {
+        try {
+          pooled.client.close();
+        } catch (Exception ignored) {}
+      }
+      retiredClients.clear();
+    }
+  }
+}
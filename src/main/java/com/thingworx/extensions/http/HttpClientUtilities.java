@@ -0,0 +1,239 @@
+package com.thingworx.extensions.http;
+
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.List;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.NTCredentials;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ssl.NoopHostnameVerifier;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.cookie.Cookie;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.entity.mime.MultipartEntityBuilder;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Client building and request helpers used by the services. They do not
+ * depend on the ThingWorx platform, so they can also run in benchmarks.
+ */
+public class HttpClientUtilities {
+
+  public static CloseableHttpClient createHttpClient(
+    String username,
+    String password,
+    Boolean ignoreSSLErrors,
+    Double timeout,
+    Boolean useNTLM,
+    String workstation,
+    String domain,
+    Boolean useProxy,
+    String proxyHost,
+    Integer proxyPort,
+    String proxyScheme,
+    InputStream certStream,
+    String certPass
+  ) {
+    try {
+      HttpClientBuilder clientBuilder = createHttpClientBuilder(
+        username,
+        password,
+        timeout,
+        useNTLM,
+        workstation,
+        domain,
+        useProxy,
+        proxyHost,
+        proxyPort,
+        proxyScheme
+      );
+      SSLConnectionSocketFactory sslConnectionFactory = createSSLSocketFactory(
+        ignoreSSLErrors,
+        certStream,
+        certPass
+      );
+      if (sslConnectionFactory != null) {
+        clientBuilder.setSSLSocketFactory(sslConnectionFactory);
+      }
+
+      return clientBuilder.build();
+    } catch (Exception ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  public static HttpClientBuilder createHttpClientBuilder(
+    String username,
+    String password,
+    Double timeout,
+    Boolean useNTLM,
+    String workstation,
+    String domain,
+    Boolean useProxy,
+    String proxyHost,
+    Integer proxyPort,
+    String proxyScheme
+  ) {
+    if (timeout == null) {
+      timeout = 60.0D;
+    }
+
+    if (proxyScheme == null) {
+      proxyScheme = "http";
+    }
+
+    int httpTimeout = timeout.intValue() * 1000;
+    HttpClientBuilder clientBuilder = HttpClientBuilder.create();
+    RequestConfig.Builder requestConfigBuilder = RequestConfig
+      .custom()
+      .setConnectTimeout(httpTimeout)
+      .setSocketTimeout(httpTimeout);
+    if (useProxy == null) {
+      useProxy = false;
+    }
+
+    if (
+      useProxy && StringUtilities.isNonEmpty(proxyHost) && proxyPort != null
+    ) {
+      HttpHost proxy = new HttpHost(proxyHost, proxyPort, proxyScheme);
+      requestConfigBuilder.setProxy(proxy);
+    }
+
+    RequestConfig requestConfig = requestConfigBuilder.build();
+    clientBuilder.setDefaultRequestConfig(requestConfig);
+
+    if (username != null && password != null) {
+      CredentialsProvider credsProvider = new BasicCredentialsProvider();
+      if (useNTLM != null && useNTLM) {
+        if (workstation == null) {
+          workstation = "";
+        }
+
+        if (domain == null) {
+          domain = "";
+        }
+
+        credsProvider.setCredentials(
+          AuthScope.ANY,
+          new NTCredentials(username, password, workstation, domain)
+        );
+      } else {
+        credsProvider.setCredentials(
+          AuthScope.ANY,
+          new UsernamePasswordCredentials(username, password)
+        );
+      }
+
+      clientBuilder.setDefaultCredentialsProvider(credsProvider);
+    }
+
+    return clientBuilder;
+  }
+
+  /**
+   * @return the socket factory to use for https, or null when the default
+   * platform trust settings apply
+   */
+  public static SSLConnectionSocketFactory createSSLSocketFactory(
+    Boolean ignoreSSLErrors,
+    InputStream certStream,
+    String certPass
+  )
+    throws Exception {
+    if (ignoreSSLErrors == null || !ignoreSSLErrors) {
+      return null;
+    }
+
+    return new SSLConnectionSocketFactory(
+      SslContextCache.createSSLContext(certStream, certPass),
+      NoopHostnameVerifier.INSTANCE
+    );
+  }
+
+  public static void addHeaders(HttpRequest request, JSONObject headers)
+    throws JSONException {
+    if (headers != null) {
+      Iterator iHeaders = headers.keys();
+
+      while (iHeaders.hasNext()) {
+        String headerName = (String) iHeaders.next();
+        request.addHeader(headerName, headers.get(headerName).toString());
+      }
+    }
+  }
+
+  /**
+   * Adds one text part per field, the values being in the order of the names.
+   */
+  public static void addTextParts(
+    MultipartEntityBuilder builder,
+    List<String> fieldNames,
+    String[] values
+  ) {
+    for (int i = 0; i < values.length; i++) {
+      builder.addTextBody(
+        fieldNames.get(i),
+        values[i],
+        ContentType.MULTIPART_FORM_DATA
+      );
+    }
+  }
+
+  /**
+   * Builds the multipart entity as a chunked stream. The entity is
+   * repeatable as long as every part is, which is the case of text parts
+   * and RepeatableStreamBody.
+   */
+  public static HttpEntity buildStreamingEntity(MultipartEntityBuilder builder) {
+    return new HttpEntityWrapper(builder.build()) {
+
+      @Override
+      public boolean isRepeatable() {
+        return true;
+      }
+
+      @Override
+      public boolean isChunked() {
+        return true;
+      }
+
+      @Override
+      public long getContentLength() {
+        return -1;
+      }
+    };
+  }
+
+  public static String cookiesToString(List<Cookie> cookies) {
+    StringBuilder cookieResult = new StringBuilder();
+    if (cookies != null && cookies.size() > 0) {
+      boolean isFirst = true;
+      Iterator var3 = cookies.iterator();
+
+      while (var3.hasNext()) {
+        Cookie cookie = (Cookie) var3.next();
+        if (isFirst) {
+          isFirst = false;
+        } else {
+          cookieResult.append("; ");
+        }
+
+        cookieResult.append(cookie.getName());
+        cookieResult.append('=');
+        cookieResult.append(cookie.getValue());
+      }
+    }
+
+    return cookieResult.toString();
+  }
+}
@@ -0,0 +1,120 @@
+package com.thingworx.extensions.http;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.thingworx.common.utils.JSONUtilities;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import org.apache.http.HttpEntity;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Builds org.json objects directly from a response stream with the Jackson
+ * streaming parser, without materializing the body as a String first.
+ */
+public class JsonStreamReader {
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+  /**
+   * Parses the entity content, which is always closed. A top level array is
+   * wrapped the same way as JSONUtilities.wrapJSONArray, and an empty body
+   * gives an empty object.
+   */
+  public static JSONObject readJSON(HttpEntity entity)
+    throws IOException, JSONException {
+    if (entity == null) {
+      return new JSONObject();
+    }
+    return readJSON(
+      entity.getContent(),
+      StringUtilities.getCharset(entity.getContentType())
+    );
+  }
+
+  public static JSONObject readJSON(byte[] body, String contentType)
+    throws IOException, JSONException {
+    return readJSON(
+      new ByteArrayInputStream(body),
+      StringUtilities.getCharset(contentType)
+    );
+  }
+
+  private static JSONObject readJSON(InputStream stream, Charset charset)
+    throws IOException, JSONException {
+    // Jackson detects the UTF encodings by itself, other charsets need a reader
+    try (
+      JsonParser parser = charset.name().startsWith("UTF-")
+        ? JSON_FACTORY.createParser(stream)
+        : JSON_FACTORY.createParser(new InputStreamReader(stream, charset))
+    ) {
+      JsonToken token = parser.nextToken();
+      if (token == null) {
+        return new JSONObject();
+      } else if (token == JsonToken.START_OBJECT) {
+        return readObject(parser);
+      } else if (token == JsonToken.START_ARRAY) {
+        return JSONUtilities.wrapJSONArray(readArray(parser));
+      }
+      throw new JsonParseException(
+        "Expected a JSON object or array",
+        parser.getCurrentLocation()
+      );
+    } finally {
+      stream.close();
+    }
+  }
+
+  private static JSONObject readObject(JsonParser parser)
+    throws IOException, JSONException {
+    JSONObject object = new JSONObject();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String name = parser.getCurrentName();
+      object.put(name, readValue(parser, parser.nextToken()));
+    }
+    return object;
+  }
+
+  private static JSONArray readArray(JsonParser parser)
+    throws IOException, JSONException {
+    JSONArray array = new JSONArray();
+    JsonToken token;
+    while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+      array.put(readValue(parser, token));
+    }
+    return array;
+  }
+
+  private static Object readValue(JsonParser parser, JsonToken token)
+    throws IOException, JSONException {
+    switch (token) {
+      case START_OBJECT:
+        return readObject(parser);
+      case START_ARRAY:
+        return readArray(parser);
+      case VALUE_STRING:
+        return parser.getText();
+      case VALUE_NUMBER_INT:
+        return parser.getNumberValue();
+      case VALUE_NUMBER_FLOAT:
+        return parser.getDoubleValue();
+      case VALUE_TRUE:
+        return Boolean.TRUE;
+      case VALUE_FALSE:
+        return Boolean.FALSE;
+      case VALUE_NULL:
+        return JSONObject.NULL;
+      default:
+        throw new JsonParseException(
+          "Unexpected token " + token,
+          parser.getCurrentLocation()
+        );
+    }
+  }
+}
@@ -0,0 +1,22 @@
+package com.thingworx.extensions.http;
+
+import com.thingworx.logging.LogUtilities;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Application loggers of the classes that are also used outside the
+ * platform, by the unit tests. LogUtilities is only set up once the platform
+ * started, those classes then log through slf4j directly.
+ */
+final class Loggers {
+  private Loggers() {}
+
+  static Logger getLogger(Class<?> type) {
+    LogUtilities logUtilities = LogUtilities.getInstance();
+    if (logUtilities != null) {
+      return logUtilities.getApplicationLogger(type);
+    }
+    return LoggerFactory.getLogger(type);
+  }
+}
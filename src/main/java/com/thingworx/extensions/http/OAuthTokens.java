@@ -0,0 +1,354 @@
+package com.thingworx.extensions.http;
+
+import com.thingworx.common.RESTAPIConstants;
+import com.thingworx.common.exceptions.InvalidRequestException;
+import com.thingworx.types.collections.ValueCollection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import org.apache.http.NameValuePair;
+import org.apache.http.message.BasicNameValuePair;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+
+/**
+ * OAuth2 access tokens of the clients of the OAuthClients configuration
+ * table, cached per client and scope.
+ *
+ * A token is requested with the client credentials grant, or with the
+ * refresh token grant when the client has a refresh token (configured, or
+ * returned by the previous token response). A token past its refresh time is
+ * still returned while it is valid, and a new one is requested in the
+ * background, so callers only wait for the first token and for expired ones.
+ * Concurrent requests for the same token are made once.
+ */
+public class OAuthTokens {
+  public static final String TABLE = "OAuthClients";
+
+  /**
+   * Part of the lifetime of a token after which it is refreshed.
+   */
+  private static final double REFRESH_RATIO = 0.8;
+  /**
+   * Tokens are refreshed at least this long before they expire.
+   */
+  private static final long MIN_REFRESH_MARGIN_MILLIS = 30000;
+  /**
+   * Lifetime assumed for the tokens of responses without expires_in.
+   */
+  private static final long DEFAULT_LIFETIME_MILLIS = 3600000;
+
+  private static final String[] FIELDS = {
+    "name",
+    "tokenUrl",
+    "clientId",
+    "clientSecret",
+    "scope",
+    "refreshToken",
+    "credentialsInBody",
+    "ignoreSSLErrors",
+    "timeout"
+  };
+
+  private static final Logger _logger = Loggers.getLogger(OAuthTokens.class);
+
+  private final Transport transport;
+  private final Executor executor;
+  private final ConcurrentMap<String, Token> tokens = new ConcurrentHashMap<>();
+  private final SingleFlight<Token> refreshes = new SingleFlight<>();
+  private final Set<String> backgroundRefreshes = ConcurrentHashMap.newKeySet();
+
+  /**
+   * Sends the token requests.
+   */
+  public interface Transport {
+    /**
+     * Posts the form to the token url of the client.
+     *
+     * @return the token response
+     * @throws Exception if the server does not answer with a 2xx status
+     */
+    JSONObject post(Client client, List<NameValuePair> form) throws Exception;
+  }
+
+  public static final class Client {
+    private final String name;
+    private final String tokenUrl;
+    private final String clientId;
+    private final String clientSecret;
+    private final String scope;
+    private final String refreshToken;
+    private final boolean credentialsInBody;
+    private final boolean ignoreSSLErrors;
+    private final double timeout;
+    private final String fingerprint;
+
+    private Client(ValueCollection row) throws InvalidRequestException {
+      this.name = row.getStringValue("name");
+      this.tokenUrl = getString(row, "tokenUrl");
+      this.clientId = getString(row, "clientId");
+      this.clientSecret = getString(row, "clientSecret");
+      this.scope = getString(row, "scope");
+      this.refreshToken = getString(row, "refreshToken");
+      Object credentialsInBody = row.getValue("credentialsInBody");
+      this.credentialsInBody =
+        credentialsInBody instanceof Boolean && (Boolean) credentialsInBody;
+      Object ignoreSSLErrors = row.getValue("ignoreSSLErrors");
+      this.ignoreSSLErrors =
+        ignoreSSLErrors instanceof Boolean && (Boolean) ignoreSSLErrors;
+      Object timeout = row.getValue("timeout");
+      this.timeout =
+        timeout instanceof Number && ((Number) timeout).doubleValue() > 0
+          ? ((Number) timeout).doubleValue()
+          : 60;
+
+      StringBuilder values = new StringBuilder();
+      for (String field : FIELDS) {
+        values.append(row.getValue(field)).append('\n');
+      }
+      this.fingerprint = StringUtilities.fingerprint(values.toString());
+
+      if (tokenUrl == null || clientId == null) {
+        throw new InvalidRequestException(
+          "OAuth client [" + name + "] needs a token url and a client id",
+          RESTAPIConstants.StatusCode.STATUS_BAD_REQUEST
+        );
+      }
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public String getTokenUrl() {
+      return tokenUrl;
+    }
+
+    public String getClientId() {
+      return clientId;
+    }
+
+    public String getClientSecret() {
+      return clientSecret;
+    }
+
+    /**
+     * @return true to send the client id and secret as form parameters
+     * instead of Basic authentication
+     */
+    public boolean isCredentialsInBody() {
+      return credentialsInBody;
+    }
+
+    public boolean isIgnoreSSLErrors() {
+      return ignoreSSLErrors;
+    }
+
+    public double getTimeout() {
+      return timeout;
+    }
+  }
+
+  private static final class Token {
+    private final String accessToken;
+    private final String refreshToken;
+    private final long refreshAt;
+    private final long expiresAt;
+
+    private Token(
+      String accessToken,
+      String refreshToken,
+      long refreshAt,
+      long expiresAt
+    ) {
+      this.accessToken = accessToken;
+      this.refreshToken = refreshToken;
+      this.refreshAt = refreshAt;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  public OAuthTokens(Transport transport, Executor executor) {
+    this.transport = transport;
+    this.executor = executor;
+  }
+
+  /**
+   * @return the client of the row of the OAuthClients table
+   */
+  public static Client getClient(ValueCollection row)
+    throws InvalidRequestException {
+    return new Client(row);
+  }
+
+  /**
+   * Returns a valid access token of the client for the scope, requesting one
+   * if there is none.
+   *
+   * @param scope scope to request, null for the scope of the client
+   */
+  public String getAccessToken(Client client, String scope) throws Exception {
+    final String effectiveScope = StringUtilities.isBlank(scope)
+      ? client.scope
+      : scope;
+    final String key = client.fingerprint + '\n' + effectiveScope;
+    Token token = tokens.get(key);
+    long now = System.currentTimeMillis();
+    if (token != null && now < token.expiresAt) {
+      if (now >= token.refreshAt) {
+        refreshInBackground(key, client, effectiveScope);
+      }
+      return token.accessToken;
+    }
+    return refresh(key, client, effectiveScope).accessToken;
+  }
+
+  /**
+   * Expires the token, if it is still the cached one, so that the next call
+   * requests a new one. Used when a server refuses the token before it
+   * expires. Its refresh token is kept.
+   */
+  public void invalidate(String accessToken) {
+    tokens.replaceAll(
+      (key, token) ->
+        token.accessToken.equals(accessToken)
+          ? new Token(token.accessToken, token.refreshToken, 0, 0)
+          : token
+    );
+  }
+
+  public void clear() {
+    tokens.clear();
+  }
+
+  private void refreshInBackground(
+    final String key,
+    final Client client,
+    final String scope
+  ) {
+    if (!backgroundRefreshes.add(key)) {
+      return;
+    }
+    try {
+      executor.execute(
+        () -> {
+          try {
+            refresh(key, client, scope);
+          } catch (Exception ex) {
+            _logger.warn(
+              "Could not refresh the token of the OAuth client {}: {}",
+              client.name,
+              ex.getMessage()
+            );
+          } finally {
+            backgroundRefreshes.remove(key);
+          }
+        }
+      );
+    } catch (RuntimeException ex) {
+      backgroundRefreshes.remove(key);
+      throw ex;
+    }
+  }
+
+  private Token refresh(
+    final String key,
+    final Client client,
+    final String scope
+  )
+    throws Exception {
+    final Token previous = tokens.get(key);
+    return refreshes.execute(
+      key,
+      () -> {
+        // another refresh may have completed since the token was read
+        Token current = tokens.get(key);
+        long now = System.currentTimeMillis();
+        if (current != null && current != previous && now < current.refreshAt) {
+          return current;
+        }
+        String refreshToken = current != null && current.refreshToken != null
+          ? current.refreshToken
+          : client.refreshToken;
+        Token token;
+        try {
+          token = requestToken(client, scope, refreshToken);
+        } catch (Exception ex) {
+          if (refreshToken == null || client.clientSecret == null) {
+            throw ex;
+          }
+          // the refresh token was revoked or expired
+          _logger.debug(
+            "Refresh token of the OAuth client {} refused, using its credentials: {}",
+            client.name,
+            ex.getMessage()
+          );
+          token = requestToken(client, scope, null);
+        }
+        tokens.put(key, token);
+        return token;
+      }
+    );
+  }
+
+  private Token requestToken(
+    Client client,
+    String scope,
+    String refreshToken
+  )
+    throws Exception {
+    List<NameValuePair> form = new ArrayList<>();
+    if (refreshToken != null) {
+      form.add(new BasicNameValuePair("grant_type", "refresh_token"));
+      form.add(new BasicNameValuePair("refresh_token", refreshToken));
+    } else {
+      form.add(new BasicNameValuePair("grant_type", "client_credentials"));
+    }
+    if (scope != null) {
+      form.add(new BasicNameValuePair("scope", scope));
+    }
+    if (client.credentialsInBody) {
+      form.add(new BasicNameValuePair("client_id", client.clientId));
+      if (client.clientSecret != null) {
+        form.add(new BasicNameValuePair("client_secret", client.clientSecret));
+      }
+    }
+
+    long requestTime = System.currentTimeMillis();
+    JSONObject response = transport.post(client, form);
+    String accessToken = response.optString("access_token", null);
+    if (StringUtilities.isBlank(accessToken)) {
+      throw new InvalidRequestException(
+        "The token response of the OAuth client [" +
+        client.name +
+        "] has no access_token",
+        RESTAPIConstants.StatusCode.STATUS_BAD_REQUEST
+      );
+    }
+    long lifetime = response.has("expires_in")
+      ? response.optLong("expires_in", 0) * 1000
+      : DEFAULT_LIFETIME_MILLIS;
+    long margin = Math.max(
+      (long) (lifetime * (1 - REFRESH_RATIO)),
+      Math.min(MIN_REFRESH_MARGIN_MILLIS, lifetime / 2)
+    );
+    // servers only return a refresh token when it changes
+    String newRefreshToken = response.optString("refresh_token", refreshToken);
+    return new Token(
+      accessToken,
+      newRefreshToken,
+      requestTime + lifetime - margin,
+      requestTime + lifetime
+    );
+  }
+
+  private static String getString(ValueCollection row, String field) {
+    Object value = row.getValue(field);
+    return value != null && !StringUtilities.isBlank(value.toString())
+      ? value.toString()
+      : null;
+  }
+}
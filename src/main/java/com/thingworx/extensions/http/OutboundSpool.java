@@ -0,0 +1,774 @@
+package com.thingworx.extensions.http;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+
+/**
+ * Disk backed queue of POST requests sent in the background. Every
+ * destination (url, headers, endpoint profile, OAuth client and connection
+ * settings) has an append-only log of its queued bodies and a file with the
+ * offset of the first unsent one, so the queue survives a restart. The
+ * destinations never hold credentials, they name the profile or client that
+ * provides them when the batch is sent.
+ *
+ * A scheduler thread hands the due destinations to the executor: the bodies
+ * queued within the batch window, up to the batch size, are posted together
+ * as a JSON array. A destination has at most one batch in flight, so its
+ * bodies are sent in order, while a slow destination does not hold back the
+ * others. A failed batch is retried with the backoff of the retry policy and
+ * holds back the later bodies of its destination. Bodies rejected with a
+ * client error other than 408 or 429 are dropped, since sending them again
+ * cannot succeed. Bodies are refused once the logs reach the maximum size.
+ *
+ * Bodies are flushed to the operating system when queued but not forced to
+ * the disk: they survive a restart of the server, not a power loss. A batch
+ * can be sent twice if the server stops between sending it and saving the
+ * offset.
+ */
+public class OutboundSpool implements Closeable {
+  public static final int DEFAULT_BATCH_SIZE = 100;
+  public static final int DEFAULT_BATCH_WINDOW_MILLIS = 1000;
+  public static final int DEFAULT_MAX_SIZE_MB = 100;
+
+  /**
+   * Headers carrying credentials, which must not be stored in the spool.
+   */
+  private static final String[] CREDENTIAL_HEADERS = {
+    "Authorization",
+    "Proxy-Authorization",
+    "Cookie"
+  };
+
+  private static final Logger _logger = Loggers.getLogger(OutboundSpool.class);
+
+  private static final String DESTINATION_SUFFIX = ".json";
+  private static final String LOG_SUFFIX = ".log";
+  private static final String OFFSET_SUFFIX = ".offset";
+
+  private final File directory;
+  private final Sender sender;
+  private final Executor executor;
+  private final ConcurrentMap<String, DestinationQueue> queues = new ConcurrentHashMap<>();
+  // bytes in the logs, sent or not until they are truncated
+  private final AtomicLong size = new AtomicLong();
+  private final Object signal = new Object();
+  private final Thread thread;
+  private boolean wakeUp;
+  private volatile boolean closed;
+  private volatile int batchSize = DEFAULT_BATCH_SIZE;
+  private volatile long batchWindowMillis = DEFAULT_BATCH_WINDOW_MILLIS;
+  private volatile long maxSize = DEFAULT_MAX_SIZE_MB * 1024L * 1024L;
+  private volatile RetryPolicy backoff = new RetryPolicy(
+    RetryPolicy.DEFAULT_MAX_RETRIES,
+    RetryPolicy.DEFAULT_BASE_DELAY_MILLIS,
+    RetryPolicy.DEFAULT_MAX_DELAY_MILLIS
+  );
+
+  /**
+   * Sends a batch to its destination.
+   */
+  public interface Sender {
+    /**
+     * @return the status code of the response
+     */
+    int send(Destination destination, String body) throws Exception;
+  }
+
+  /**
+   * Where and how the queued bodies are posted. Instances are immutable.
+   */
+  public static final class Destination {
+    private final String url;
+    private final JSONObject headers;
+    private final String endpointProfile;
+    private final String oauthClient;
+    private final boolean ignoreSSLErrors;
+    private final double timeout;
+
+    /**
+     * @param url the url, relative to the base url of the endpoint profile
+     * if there is one
+     * @param headers headers without credentials, null if there are none
+     * @param endpointProfile name of the endpoint profile, or null
+     * @param oauthClient name of the OAuth client whose bearer token is
+     * sent, or null
+     * @throws IllegalArgumentException if a header carries credentials
+     */
+    public Destination(
+      String url,
+      JSONObject headers,
+      String endpointProfile,
+      String oauthClient,
+      boolean ignoreSSLErrors,
+      double timeout
+    ) {
+      String credentialHeader = findCredentialHeader(headers);
+      if (credentialHeader != null) {
+        throw new IllegalArgumentException(
+          "The " +
+          credentialHeader +
+          " header would be stored in the spool, use an endpoint profile or an OAuth client instead"
+        );
+      }
+      this.url = url;
+      this.headers = headers;
+      this.endpointProfile = endpointProfile;
+      this.oauthClient = oauthClient;
+      this.ignoreSSLErrors = ignoreSSLErrors;
+      this.timeout = timeout;
+    }
+
+    public String getUrl() {
+      return url;
+    }
+
+    /**
+     * @return the headers, null if there are none
+     */
+    public JSONObject getHeaders() {
+      return headers;
+    }
+
+    /**
+     * @return the name of the endpoint profile, null if there is none
+     */
+    public String getEndpointProfile() {
+      return endpointProfile;
+    }
+
+    /**
+     * @return the name of the OAuth client, null if there is none
+     */
+    public String getOAuthClient() {
+      return oauthClient;
+    }
+
+    public boolean isIgnoreSSLErrors() {
+      return ignoreSSLErrors;
+    }
+
+    public double getTimeout() {
+      return timeout;
+    }
+
+    /**
+     * @return the name of the files of the destination
+     */
+    private String getId() {
+      return StringUtilities
+        .fingerprint(
+          url +
+          "\n" +
+          headers +
+          "\n" +
+          endpointProfile +
+          "\n" +
+          oauthClient +
+          "\n" +
+          ignoreSSLErrors +
+          "\n" +
+          timeout
+        )
+        .substring(0, 32);
+    }
+
+    private JSONObject toJSON() throws JSONException {
+      JSONObject json = new JSONObject();
+      json.put("url", url);
+      json.put("headers", headers);
+      json.put("endpointProfile", endpointProfile);
+      json.put("oauthClient", oauthClient);
+      json.put("ignoreSSLErrors", ignoreSSLErrors);
+      json.put("timeout", timeout);
+      return json;
+    }
+
+    private static Destination fromJSON(JSONObject json)
+      throws JSONException {
+      return new Destination(
+        json.getString("url"),
+        json.optJSONObject("headers"),
+        json.optString("endpointProfile", null),
+        json.optString("oauthClient", null),
+        json.getBoolean("ignoreSSLErrors"),
+        json.getDouble("timeout")
+      );
+    }
+  }
+
+  /**
+   * @return the first header carrying credentials, null if there is none
+   */
+  public static String findCredentialHeader(JSONObject headers) {
+    if (headers == null) {
+      return null;
+    }
+    Iterator<?> names = headers.keys();
+    while (names.hasNext()) {
+      String name = names.next().toString();
+      for (String credentialHeader : CREDENTIAL_HEADERS) {
+        if (credentialHeader.equalsIgnoreCase(name)) {
+          return name;
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Queued bodies read from a log, not yet acknowledged.
+   */
+  private static final class Batch {
+    private final List<String> bodies = new ArrayList<>();
+    private int count;
+    private long end;
+    private long nextEnqueuedAt;
+
+    private String getBody() {
+      StringBuilder body = new StringBuilder("[");
+      for (String item : bodies) {
+        if (body.length() > 1) {
+          body.append(',');
+        }
+        body.append(item);
+      }
+      return body.append(']').toString();
+    }
+  }
+
+  /**
+   * The log of a destination. Each line is the time the body was queued and
+   * the body.
+   */
+  public final class DestinationQueue {
+    private final Destination destination;
+    private final File logFile;
+    private final File offsetFile;
+    private final FileOutputStream out;
+    private long committed;
+    private long length;
+    private int depth;
+    // time the first pending body was queued, 0 if there is none
+    private long oldest;
+    private int failedAttempts;
+    private long nextAttemptAt;
+    private boolean sending;
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    private DestinationQueue(Destination destination) throws IOException {
+      String id = destination.getId();
+      this.destination = destination;
+      this.logFile = new File(directory, id + LOG_SUFFIX);
+      this.offsetFile = new File(directory, id + OFFSET_SUFFIX);
+      this.committed = readOffset();
+      recover();
+      this.out = new FileOutputStream(logFile, true);
+      size.addAndGet(length);
+    }
+
+    private long readOffset() {
+      if (!offsetFile.isFile()) {
+        return 0;
+      }
+      try {
+        return Long.parseLong(
+          new String(
+            Files.readAllBytes(offsetFile.toPath()),
+            StandardCharsets.US_ASCII
+          )
+            .trim()
+        );
+      } catch (IOException | NumberFormatException ex) {
+        _logger.warn(
+          "Invalid spool offset {}, sending its log again: {}",
+          offsetFile,
+          ex.getMessage()
+        );
+        return 0;
+      }
+    }
+
+    /**
+     * Counts the pending bodies, and removes the last line if the server
+     * stopped while it was written.
+     */
+    private void recover() throws IOException {
+      length = logFile.length();
+      if (committed > length) {
+        committed = 0;
+      }
+      long end = committed;
+      long lastLineStart = committed;
+      if (length > committed) {
+        try (FileInputStream in = new FileInputStream(logFile)) {
+          in.getChannel().position(committed);
+          BufferedReader reader = new BufferedReader(
+            new InputStreamReader(in, StandardCharsets.UTF_8)
+          );
+          String line;
+          while ((line = reader.readLine()) != null) {
+            if (oldest == 0) {
+              oldest = getEnqueuedAt(line);
+            }
+            depth++;
+            lastLineStart = end;
+            end += line.getBytes(StandardCharsets.UTF_8).length + 1;
+          }
+        }
+      }
+      if (end > length) {
+        // the last line has no line feed
+        _logger.warn(
+          "Removing the incomplete last line of the spool {}",
+          logFile
+        );
+        try (RandomAccessFile file = new RandomAccessFile(logFile, "rw")) {
+          file.setLength(lastLineStart);
+        }
+        length = lastLineStart;
+        depth--;
+      }
+      if (depth == 0) {
+        oldest = 0;
+      }
+    }
+
+    private synchronized void append(String line) throws IOException {
+      byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+      out.write(bytes);
+      out.flush();
+      length += bytes.length;
+      size.addAndGet(bytes.length);
+      depth++;
+      if (oldest == 0) {
+        oldest = System.currentTimeMillis();
+      }
+    }
+
+    /**
+     * @return the time the next batch is due, Long.MAX_VALUE if there is
+     * none or a batch is already in flight
+     */
+    private synchronized long getDueTime(int batchSize, long batchWindow) {
+      if (depth == 0 || sending) {
+        return Long.MAX_VALUE;
+      }
+      long due = depth >= batchSize ? 0 : oldest + batchWindow;
+      return Math.max(due, nextAttemptAt);
+    }
+
+    /**
+     * @return true if no batch was in flight, the caller then sends the next
+     * one and calls finishSending
+     */
+    private synchronized boolean startSending() {
+      if (sending) {
+        return false;
+      }
+      sending = true;
+      return true;
+    }
+
+    private synchronized void finishSending() {
+      sending = false;
+    }
+
+    /**
+     * Reads the first pending bodies, up to the batch size. Only the batch
+     * in flight reads the log, so it does not change before the next commit.
+     */
+    private Batch readBatch(int batchSize) throws IOException {
+      long start;
+      long end;
+      synchronized (this) {
+        start = committed;
+        end = length;
+      }
+      Batch batch = new Batch();
+      batch.end = start;
+      try (FileInputStream in = new FileInputStream(logFile)) {
+        in.getChannel().position(start);
+        BufferedReader reader = new BufferedReader(
+          new InputStreamReader(in, StandardCharsets.UTF_8)
+        );
+        String line;
+        while (batch.end < end && (line = reader.readLine()) != null) {
+          if (batch.count == batchSize) {
+            batch.nextEnqueuedAt = getEnqueuedAt(line);
+            break;
+          }
+          batch.end += line.getBytes(StandardCharsets.UTF_8).length + 1;
+          batch.count++;
+          int separator = line.indexOf(' ');
+          if (separator < 0) {
+            _logger.warn("Dropping an invalid line of the spool {}", logFile);
+            dropped.increment();
+          } else {
+            batch.bodies.add(line.substring(separator + 1));
+          }
+        }
+      }
+      return batch;
+    }
+
+    /**
+     * Removes the bodies of the batch from the queue, and empties the log
+     * once everything in it was sent.
+     */
+    private synchronized void commit(Batch batch) throws IOException {
+      committed = batch.end;
+      depth -= batch.count;
+      failedAttempts = 0;
+      nextAttemptAt = 0;
+      if (depth == 0) {
+        oldest = 0;
+      } else if (batch.nextEnqueuedAt > 0) {
+        oldest = batch.nextEnqueuedAt;
+      }
+      if (committed == length) {
+        out.getChannel().truncate(0);
+        size.addAndGet(-length);
+        committed = 0;
+        length = 0;
+      }
+      File tmp = new File(directory, offsetFile.getName() + ".tmp");
+      Files.write(
+        tmp.toPath(),
+        Long.toString(committed).getBytes(StandardCharsets.US_ASCII)
+      );
+      Files.move(
+        tmp.toPath(),
+        offsetFile.toPath(),
+        StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE
+      );
+    }
+
+    private synchronized void postpone(RetryPolicy backoff) {
+      failures.increment();
+      nextAttemptAt =
+        System.currentTimeMillis() + backoff.getDelayMillis(failedAttempts++);
+    }
+
+    private synchronized void close() {
+      try {
+        out.close();
+      } catch (IOException ex) {
+        _logger.warn("Could not close the spool {}", logFile);
+      }
+    }
+
+    public Destination getDestination() {
+      return destination;
+    }
+
+    /**
+     * @return the number of bodies waiting to be sent
+     */
+    public synchronized int getDepth() {
+      return depth;
+    }
+
+    /**
+     * @return the milliseconds the oldest pending body has been waiting, 0
+     * if there is none
+     */
+    public synchronized long getLagMillis() {
+      return oldest == 0 ? 0 : System.currentTimeMillis() - oldest;
+    }
+
+    public long getSent() {
+      return sent.sum();
+    }
+
+    public long getDropped() {
+      return dropped.sum();
+    }
+
+    /**
+     * @return the number of batches that failed and were postponed
+     */
+    public long getFailures() {
+      return failures.sum();
+    }
+  }
+
+  /**
+   * Opens the spool in the directory and starts sending the bodies left by
+   * a previous run.
+   *
+   * @param executor runs the sends of the batches
+   */
+  public OutboundSpool(File directory, Sender sender, Executor executor)
+    throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create the spool directory " + directory);
+    }
+    this.directory = directory;
+    this.sender = sender;
+    this.executor = executor;
+    File[] files = directory.listFiles(
+      (dir, name) -> name.endsWith(DESTINATION_SUFFIX)
+    );
+    if (files != null) {
+      for (File file : files) {
+        try {
+          Destination destination = Destination.fromJSON(
+            new JSONObject(
+              new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8)
+            )
+          );
+          queues.put(destination.getId(), new DestinationQueue(destination));
+        } catch (IOException | JSONException | IllegalArgumentException ex) {
+          _logger.warn(
+            "Could not open the spool {}: {}",
+            file,
+            ex.getMessage()
+          );
+        }
+      }
+    }
+    thread = new Thread(this::run, "ContentLoaderExtended-spool");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Sets the maximum number of bodies per batch, how long the first body of
+   * a batch waits for others and the backoff of the failed batches.
+   */
+  public void setLimits(int batchSize, long batchWindowMillis, RetryPolicy backoff) {
+    if (batchSize <= 0 || batchWindowMillis < 0) {
+      throw new IllegalArgumentException("Invalid spool settings");
+    }
+    this.batchSize = batchSize;
+    this.batchWindowMillis = batchWindowMillis;
+    this.backoff = backoff;
+    wakeUp();
+  }
+
+  /**
+   * Sets the maximum size of the logs, beyond which bodies are refused.
+   */
+  public void setMaxSize(long maxSizeBytes) {
+    if (maxSizeBytes <= 0) {
+      throw new IllegalArgumentException("Invalid spool size");
+    }
+    this.maxSize = maxSizeBytes;
+  }
+
+  /**
+   * @return the bytes of the logs, including the sent bodies of the logs
+   * not yet emptied
+   */
+  public long getSize() {
+    return size.get();
+  }
+
+  /**
+   * Appends the body to the log of its destination. It is sent once the log
+   * is written.
+   *
+   * @param body a JSON value on a single line
+   * @throws IOException if the spool is closed or full
+   */
+  public void enqueue(Destination destination, String body)
+    throws IOException, JSONException {
+    if (closed) {
+      throw new IOException("The spool is closed");
+    }
+    if (size.get() + body.length() > maxSize) {
+      throw new IOException(
+        "The spool is full, its logs reached " + maxSize / (1024 * 1024) + " MB"
+      );
+    }
+    String id = destination.getId();
+    DestinationQueue queue = queues.get(id);
+    if (queue == null) {
+      synchronized (queues) {
+        queue = queues.get(id);
+        if (queue == null) {
+          Files.write(
+            new File(directory, id + DESTINATION_SUFFIX).toPath(),
+            destination.toJSON().toString().getBytes(StandardCharsets.UTF_8)
+          );
+          queue = new DestinationQueue(destination);
+          queues.put(id, queue);
+        }
+      }
+    }
+    queue.append(System.currentTimeMillis() + " " + body);
+    if (queue.getDepth() == 1 || queue.getDepth() >= batchSize) {
+      wakeUp();
+    }
+  }
+
+  public Collection<DestinationQueue> getQueues() {
+    return queues.values();
+  }
+
+  private void wakeUp() {
+    synchronized (signal) {
+      wakeUp = true;
+      signal.notifyAll();
+    }
+  }
+
+  private void run() {
+    while (!closed) {
+      long wait = batchWindowMillis > 0 ? batchWindowMillis : 1000;
+      for (DestinationQueue queue : queues.values()) {
+        long due = queue.getDueTime(batchSize, batchWindowMillis);
+        if (due <= System.currentTimeMillis() && !closed) {
+          dispatch(queue);
+          continue;
+        }
+        if (due != Long.MAX_VALUE) {
+          wait = Math.min(wait, due - System.currentTimeMillis());
+        }
+      }
+      synchronized (signal) {
+        if (!wakeUp && wait > 0 && !closed) {
+          try {
+            signal.wait(wait);
+          } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return;
+          }
+        }
+        wakeUp = false;
+      }
+    }
+  }
+
+  /**
+   * Sends the next batch of the queue on the executor, unless one is
+   * already in flight. The scheduler is woken up once it completes.
+   */
+  private void dispatch(final DestinationQueue queue) {
+    if (!queue.startSending()) {
+      return;
+    }
+    try {
+      executor.execute(
+        () -> {
+          try {
+            send(queue);
+          } finally {
+            queue.finishSending();
+            wakeUp();
+          }
+        }
+      );
+    } catch (RejectedExecutionException ex) {
+      queue.finishSending();
+      if (!closed) {
+        _logger.warn(
+          "Could not send to {}, retrying later: {}",
+          queue.destination.url,
+          ex.getMessage()
+        );
+        queue.postpone(backoff);
+      }
+    }
+  }
+
+  private void send(DestinationQueue queue) {
+    Destination destination = queue.destination;
+    try {
+      Batch batch = queue.readBatch(batchSize);
+      if (!batch.bodies.isEmpty()) {
+        int statusCode = sender.send(destination, batch.getBody());
+        if (statusCode >= 200 && statusCode < 300) {
+          queue.sent.add(batch.bodies.size());
+        } else if (
+          statusCode >= 400 &&
+          statusCode < 500 &&
+          statusCode != 408 &&
+          statusCode != 429
+        ) {
+          _logger.warn(
+            "Dropping {} bodies rejected by {} with status {}",
+            batch.bodies.size(),
+            destination.url,
+            statusCode
+          );
+          queue.dropped.add(batch.bodies.size());
+        } else {
+          _logger.warn(
+            "Sending {} bodies to {} failed with status {}, retrying later",
+            batch.bodies.size(),
+            destination.url,
+            statusCode
+          );
+          queue.postpone(backoff);
+          return;
+        }
+      }
+      queue.commit(batch);
+    } catch (Exception ex) {
+      if (closed) {
+        return;
+      }
+      _logger.warn(
+        "Sending to {} failed, retrying later: {}",
+        destination.url,
+        ex.getMessage()
+      );
+      queue.postpone(backoff);
+    }
+  }
+
+  private static long getEnqueuedAt(String line) {
+    int separator = line.indexOf(' ');
+    try {
+      return Long.parseLong(separator < 0 ? line : line.substring(0, separator));
+    } catch (NumberFormatException ex) {
+      return System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * Stops the scheduler. The batches in flight complete on the executor, the
+   * pending bodies stay in the logs and are sent when the spool is opened
+   * again.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    wakeUp();
+    thread.interrupt();
+    try {
+      thread.join(5000);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    for (DestinationQueue queue : queues.values()) {
+      queue.close();
+    }
+  }
+}
@@ -0,0 +1,68 @@
+package com.thingworx.extensions.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.MIME;
+import org.apache.http.entity.mime.content.AbstractContentBody;
+
+/**
+ * Multipart body streamed from a source that is opened again every time the
+ * body is written, so the request can be replayed (after an authentication
+ * challenge, a redirect or a retry). The stream is closed as soon as it is
+ * copied, and only a fixed size buffer is held in memory.
+ */
+public class RepeatableStreamBody extends AbstractContentBody {
+  // the chunked output stream of the connection buffers 8k too
+  private static final int BUFFER_SIZE = 8192;
+
+  private final StreamOpener opener;
+  private final String filename;
+
+  /**
+   * Opens a new stream over the content, positioned at its start.
+   */
+  public interface StreamOpener {
+    InputStream open() throws IOException;
+  }
+
+  public RepeatableStreamBody(
+    StreamOpener opener,
+    ContentType contentType,
+    String filename
+  ) {
+    super(contentType);
+    this.opener = opener;
+    this.filename = filename;
+  }
+
+  @Override
+  public String getFilename() {
+    return filename;
+  }
+
+  @Override
+  public void writeTo(OutputStream out) throws IOException {
+    try (InputStream in = opener.open()) {
+      byte[] buffer = new byte[BUFFER_SIZE];
+      int count;
+      while ((count = in.read(buffer)) != -1) {
+        out.write(buffer, 0, count);
+      }
+    }
+  }
+
+  @Override
+  public String getTransferEncoding() {
+    return MIME.ENC_BINARY;
+  }
+
+  /**
+   * @return -1, the length is not known up front and the entity is chunked
+   */
+  @Override
+  public long getContentLength() {
+    return -1;
+  }
+}
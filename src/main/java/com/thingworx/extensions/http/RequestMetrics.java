@@ -0,0 +1,293 @@
+package com.thingworx.extensions.http;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.HttpEntityWrapper;
+
+/**
+ * Request counters and latency histograms per host and per service. All the
+ * counters are lock free, so recording does not contend between requests.
+ */
+public class RequestMetrics {
+  /**
+   * Upper bounds of the latency histogram buckets, in milliseconds. Slower
+   * requests fall in an extra overflow bucket.
+   */
+  private static final long[] BUCKET_BOUNDS_MILLIS = {
+    1,
+    2,
+    5,
+    10,
+    20,
+    50,
+    100,
+    200,
+    500,
+    1000,
+    2000,
+    5000,
+    10000,
+    30000,
+    60000
+  };
+
+  private final ConcurrentMap<String, Map<String, Stats>> hosts = new ConcurrentHashMap<>();
+
+  public static final class Stats {
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+    private final AtomicLongArray buckets = new AtomicLongArray(
+      BUCKET_BOUNDS_MILLIS.length + 1
+    );
+
+    /**
+     * Counts the request and the bytes of its entity as they are written.
+     */
+    public void recordRequest(HttpRequest request) {
+      requests.increment();
+      if (request instanceof HttpEntityEnclosingRequest) {
+        HttpEntityEnclosingRequest enclosing = (HttpEntityEnclosingRequest) request;
+        if (enclosing.getEntity() != null) {
+          enclosing.setEntity(
+            new CountingEntity(enclosing.getEntity(), bytesOut)
+          );
+        }
+      }
+    }
+
+    /**
+     * Records the latency of the response and counts the bytes of its entity
+     * as they are read. Server errors count as errors.
+     */
+    public void recordResponse(HttpResponse response, long nanos) {
+      recordLatency(nanos);
+      if (response.getStatusLine().getStatusCode() >= 500) {
+        errors.increment();
+      }
+      if (response.getEntity() != null) {
+        response.setEntity(new CountingEntity(response.getEntity(), bytesIn));
+      }
+    }
+
+    public void recordFailure(Exception ex, long nanos) {
+      recordLatency(nanos);
+      errors.increment();
+      if (ex instanceof InterruptedIOException) {
+        timeouts.increment();
+      }
+    }
+
+    /**
+     * Counts an attempt that failed and is sent again. Only the outcome of
+     * the last attempt is recorded as the response or failure.
+     */
+    public void recordRetry() {
+      retries.increment();
+    }
+
+    private void recordLatency(long nanos) {
+      totalNanos.add(nanos);
+      maxNanos.accumulate(nanos);
+      long millis = nanos / 1000000;
+      int bucket = 0;
+      while (
+        bucket < BUCKET_BOUNDS_MILLIS.length &&
+        millis >= BUCKET_BOUNDS_MILLIS[bucket]
+      ) {
+        bucket++;
+      }
+      buckets.incrementAndGet(bucket);
+    }
+
+    public long getRequests() {
+      return requests.sum();
+    }
+
+    public long getErrors() {
+      return errors.sum();
+    }
+
+    public long getTimeouts() {
+      return timeouts.sum();
+    }
+
+    public long getRetries() {
+      return retries.sum();
+    }
+
+    public long getBytesIn() {
+      return bytesIn.sum();
+    }
+
+    public long getBytesOut() {
+      return bytesOut.sum();
+    }
+
+    public double getMeanMillis() {
+      long count = 0;
+      for (int i = 0; i < buckets.length(); i++) {
+        count += buckets.get(i);
+      }
+      return count > 0 ? totalNanos.sum() / 1000000D / count : 0;
+    }
+
+    public double getMaxMillis() {
+      return maxNanos.get() / 1000000D;
+    }
+
+    /**
+     * @return the upper bound of the histogram bucket holding the given
+     * percentile, or the max latency if it is in the overflow bucket
+     */
+    public double getPercentileMillis(double percentile) {
+      long count = 0;
+      for (int i = 0; i < buckets.length(); i++) {
+        count += buckets.get(i);
+      }
+      if (count == 0) {
+        return 0;
+      }
+
+      long rank = (long) Math.ceil(percentile * count);
+      long seen = 0;
+      for (int i = 0; i < BUCKET_BOUNDS_MILLIS.length; i++) {
+        seen += buckets.get(i);
+        if (seen >= rank) {
+          return Math.min(BUCKET_BOUNDS_MILLIS[i], getMaxMillis());
+        }
+      }
+      return getMaxMillis();
+    }
+  }
+
+  /**
+   * @return the stats of the service for the given host, created on first use
+   */
+  public Stats get(HttpHost host, String service) {
+    String hostKey = getHostKey(host);
+    Map<String, Stats> services = hosts.get(hostKey);
+    if (services == null) {
+      services = hosts.computeIfAbsent(hostKey, k -> new ConcurrentHashMap<>());
+    }
+    Stats stats = services.get(service);
+    if (stats == null) {
+      stats = services.computeIfAbsent(service, k -> new Stats());
+    }
+    return stats;
+  }
+
+  /**
+   * @return the keys of the hosts that received requests
+   */
+  public Set<String> getHosts() {
+    return hosts.keySet();
+  }
+
+  /**
+   * @return the stats by service for the given host key
+   */
+  public Map<String, Stats> getServices(String hostKey) {
+    Map<String, Stats> services = hosts.get(hostKey);
+    return services != null ? services : Collections.emptyMap();
+  }
+
+  public void clear() {
+    hosts.clear();
+  }
+
+  /**
+   * @return "host:port", with the default port of the scheme when the host
+   * has none, so that requests and connection routes use the same key
+   */
+  public static String getHostKey(HttpHost host) {
+    if (host == null) {
+      return "";
+    }
+    int port = host.getPort();
+    if (port < 0) {
+      port = "https".equalsIgnoreCase(host.getSchemeName()) ? 443 : 80;
+    }
+    return host.getHostName().toLowerCase() + ":" + port;
+  }
+
+  /**
+   * Counts the bytes going through the wrapped entity.
+   */
+  private static final class CountingEntity extends HttpEntityWrapper {
+    private final LongAdder counter;
+
+    private CountingEntity(HttpEntity entity, LongAdder counter) {
+      super(entity);
+      this.counter = counter;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+      return new FilterInputStream(super.getContent()) {
+
+        @Override
+        public int read() throws IOException {
+          int b = super.read();
+          if (b != -1) {
+            counter.increment();
+          }
+          return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length)
+          throws IOException {
+          int count = super.read(buffer, offset, length);
+          if (count > 0) {
+            counter.add(count);
+          }
+          return count;
+        }
+      };
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+      super.writeTo(
+        new FilterOutputStream(out) {
+
+          @Override
+          public void write(int b) throws IOException {
+            out.write(b);
+            counter.increment();
+          }
+
+          @Override
+          public void write(byte[] buffer, int offset, int length)
+            throws IOException {
+            out.write(buffer, offset, length);
+            counter.add(length);
+          }
+        }
+      );
+    }
+  }
+}
@@ -0,0 +1,347 @@
+package com.thingworx.extensions.http;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.LayeredConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.conn.SystemDefaultDnsResolver;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Duration of each phase of a request, in nanoseconds. The pooled clients
+ * record the phases of the requests whose context holds a RequestTimings;
+ * other requests are not affected. When a call needs several exchanges
+ * (authentication, redirects), their durations add up.
+ */
+public class RequestTimings {
+  public static final String CONTEXT_ATTRIBUTE = "com.thingworx.extensions.http.timings";
+
+  // DNS resolvers get no context, the lookup is made on the calling thread
+  private static final ThreadLocal<RequestTimings> CURRENT = new ThreadLocal<>();
+
+  private final long startTime = System.nanoTime();
+  private volatile long dns;
+  private volatile long connect;
+  private volatile long tls;
+  private volatile long send;
+  private volatile long firstByte;
+  private volatile long transfer;
+  private volatile long responseTime;
+  private volatile long endTime;
+  private volatile boolean sent;
+  private volatile boolean connected;
+
+  public static RequestTimings get(HttpContext context) {
+    if (context == null) {
+      return null;
+    }
+    return (RequestTimings) context.getAttribute(CONTEXT_ATTRIBUTE);
+  }
+
+  /**
+   * Attaches new timings to the context.
+   */
+  public static RequestTimings start(HttpContext context) {
+    RequestTimings timings = new RequestTimings();
+    context.setAttribute(CONTEXT_ATTRIBUTE, timings);
+    return timings;
+  }
+
+  /**
+   * Makes the timings of the context visible to the DNS resolver while the
+   * request executes on the current thread.
+   */
+  public static void setCurrent(RequestTimings timings) {
+    if (timings == null) {
+      CURRENT.remove();
+    } else {
+      CURRENT.set(timings);
+    }
+  }
+
+  /**
+   * Marks the response headers as received. The body transfer is timed from
+   * now until the entity content is fully read or closed.
+   */
+  public void responseReceived(HttpResponse response) {
+    responseTime = System.nanoTime();
+    endTime = responseTime;
+    if (response.getEntity() != null) {
+      response.setEntity(new TimingEntity(response.getEntity()));
+    }
+  }
+
+  public JSONObject toJSON() throws JSONException {
+    JSONObject json = new JSONObject();
+    json.put("dnsNanos", dns);
+    json.put("connectNanos", connect);
+    json.put("tlsNanos", tls);
+    json.put("sendNanos", send);
+    json.put("firstByteNanos", firstByte);
+    json.put("transferNanos", transfer);
+    json.put(
+      "totalNanos",
+      (endTime > 0 ? endTime : System.nanoTime()) - startTime
+    );
+    json.put("connectionReused", sent && !connected);
+    return json;
+  }
+
+  /**
+   * @return a resolver timing the lookups of the requests with timings
+   */
+  public static DnsResolver createDnsResolver() {
+    return new DnsResolver() {
+
+      @Override
+      public InetAddress[] resolve(String host) throws UnknownHostException {
+        RequestTimings timings = CURRENT.get();
+        long start = System.nanoTime();
+        try {
+          return SystemDefaultDnsResolver.INSTANCE.resolve(host);
+        } finally {
+          if (timings != null) {
+            timings.dns += System.nanoTime() - start;
+          }
+        }
+      }
+    };
+  }
+
+  /**
+   * @return a plain socket factory timing the TCP connect
+   */
+  public static ConnectionSocketFactory createPlainSocketFactory() {
+    return new PlainConnectionSocketFactory() {
+
+      @Override
+      public Socket connectSocket(
+        int connectTimeout,
+        Socket socket,
+        HttpHost host,
+        InetSocketAddress remoteAddress,
+        InetSocketAddress localAddress,
+        HttpContext context
+      )
+        throws IOException {
+        RequestTimings timings = get(context);
+        long start = System.nanoTime();
+        Socket connectedSocket = super.connectSocket(
+          connectTimeout,
+          socket,
+          host,
+          remoteAddress,
+          localAddress,
+          context
+        );
+        if (timings != null) {
+          timings.connect += System.nanoTime() - start;
+          timings.connected = true;
+        }
+        return connectedSocket;
+      }
+    };
+  }
+
+  /**
+   * Wraps a TLS socket factory so that the TCP connect and the handshake are
+   * timed separately. The plain connection is made first, then layered by
+   * the wrapped factory.
+   */
+  public static LayeredConnectionSocketFactory createLayeredSocketFactory(
+    final LayeredConnectionSocketFactory sslSocketFactory
+  ) {
+    final ConnectionSocketFactory plainSocketFactory = createPlainSocketFactory();
+    return new LayeredConnectionSocketFactory() {
+
+      @Override
+      public Socket createSocket(HttpContext context) throws IOException {
+        return sslSocketFactory.createSocket(context);
+      }
+
+      @Override
+      public Socket connectSocket(
+        int connectTimeout,
+        Socket socket,
+        HttpHost host,
+        InetSocketAddress remoteAddress,
+        InetSocketAddress localAddress,
+        HttpContext context
+      )
+        throws IOException {
+        Socket sock = socket != null ? socket : createSocket(context);
+        // like the wrapped factory, bound the handshake by the connect timeout
+        if (connectTimeout > 0 && sock.getSoTimeout() == 0) {
+          sock.setSoTimeout(connectTimeout);
+        }
+        Socket plainSocket = plainSocketFactory.connectSocket(
+          connectTimeout,
+          sock,
+          host,
+          remoteAddress,
+          localAddress,
+          context
+        );
+        try {
+          return createLayeredSocket(
+            plainSocket,
+            host.getHostName(),
+            remoteAddress.getPort(),
+            context
+          );
+        } catch (IOException ex) {
+          try {
+            plainSocket.close();
+          } catch (IOException ignored) {}
+          throw ex;
+        }
+      }
+
+      @Override
+      public Socket createLayeredSocket(
+        Socket socket,
+        String target,
+        int port,
+        HttpContext context
+      )
+        throws IOException {
+        RequestTimings timings = get(context);
+        long start = System.nanoTime();
+        Socket layeredSocket = sslSocketFactory.createLayeredSocket(
+          socket,
+          target,
+          port,
+          context
+        );
+        if (timings != null) {
+          timings.tls += System.nanoTime() - start;
+        }
+        return layeredSocket;
+      }
+    };
+  }
+
+  /**
+   * Request executor timing the sending of the request and the wait for the
+   * response headers.
+   */
+  public static class TimingRequestExecutor extends HttpRequestExecutor {
+
+    @Override
+    protected HttpResponse doSendRequest(
+      HttpRequest request,
+      HttpClientConnection connection,
+      HttpContext context
+    )
+      throws IOException, HttpException {
+      RequestTimings timings = get(context);
+      long start = System.nanoTime();
+      HttpResponse response = super.doSendRequest(request, connection, context);
+      if (timings != null) {
+        timings.send += System.nanoTime() - start;
+        timings.sent = true;
+      }
+      return response;
+    }
+
+    @Override
+    protected HttpResponse doReceiveResponse(
+      HttpRequest request,
+      HttpClientConnection connection,
+      HttpContext context
+    )
+      throws IOException, HttpException {
+      RequestTimings timings = get(context);
+      long start = System.nanoTime();
+      HttpResponse response = super.doReceiveResponse(
+        request,
+        connection,
+        context
+      );
+      if (timings != null) {
+        timings.firstByte += System.nanoTime() - start;
+      }
+      return response;
+    }
+  }
+
+  /**
+   * Times the body transfer, until the content is fully read or closed.
+   */
+  private final class TimingEntity extends HttpEntityWrapper {
+    private boolean done;
+
+    private TimingEntity(HttpEntity entity) {
+      super(entity);
+    }
+
+    private void finish() {
+      if (!done) {
+        done = true;
+        endTime = System.nanoTime();
+        transfer += endTime - responseTime;
+      }
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+      return new FilterInputStream(super.getContent()) {
+
+        @Override
+        public int read() throws IOException {
+          int b = super.read();
+          if (b == -1) {
+            finish();
+          }
+          return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length)
+          throws IOException {
+          int count = super.read(buffer, offset, length);
+          if (count == -1) {
+            finish();
+          }
+          return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+          try {
+            super.close();
+          } finally {
+            finish();
+          }
+        }
+      };
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+      try {
+        super.writeTo(out);
+      } finally {
+        finish();
+      }
+    }
+  }
+}
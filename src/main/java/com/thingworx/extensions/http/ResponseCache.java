@@ -0,0 +1,238 @@
+package com.thingworx.extensions.http;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+
+/**
+ * Size bounded, least recently used cache of GET response bodies. Entries are
+ * fresh for the max-age sent by the server and are revalidated with
+ * If-None-Match / If-Modified-Since afterwards.
+ */
+public class ResponseCache {
+  public static final int DEFAULT_MAX_SIZE = 32 * 1024 * 1024;
+  public static final int DEFAULT_MAX_ENTRY_SIZE = 1024 * 1024;
+
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(
+    16,
+    0.75f,
+    true
+  );
+  private long maxSize = DEFAULT_MAX_SIZE;
+  private long maxEntrySize = DEFAULT_MAX_ENTRY_SIZE;
+  private long size;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong revalidations = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * A cached response. Instances are immutable, except for the freshness
+   * which is extended on every successful revalidation.
+   */
+  public static final class Entry {
+    private final StatusLine statusLine;
+    private final byte[] body;
+    private final String contentType;
+    private final String etag;
+    private final String lastModified;
+    private volatile long expiresAt;
+
+    private Entry(
+      StatusLine statusLine,
+      byte[] body,
+      String contentType,
+      String etag,
+      String lastModified,
+      long expiresAt
+    ) {
+      this.statusLine = statusLine;
+      this.body = body;
+      this.contentType = contentType;
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.expiresAt = expiresAt;
+    }
+
+    public StatusLine getStatusLine() {
+      return statusLine;
+    }
+
+    public byte[] getBody() {
+      return body;
+    }
+
+    public String getContentType() {
+      return contentType;
+    }
+
+    public String getETag() {
+      return etag;
+    }
+
+    public String getLastModified() {
+      return lastModified;
+    }
+
+    public boolean isFresh() {
+      return System.currentTimeMillis() < expiresAt;
+    }
+  }
+
+  /**
+   * Wraps a response that could not be cached, so callers can handle cached
+   * and uncached responses the same way.
+   */
+  public static Entry uncached(HttpResponse response, byte[] body) {
+    Header contentType = response.getFirstHeader("Content-Type");
+    return new Entry(
+      response.getStatusLine(),
+      body,
+      contentType != null ? contentType.getValue() : null,
+      null,
+      null,
+      0
+    );
+  }
+
+  public synchronized void setLimits(long maxSize, long maxEntrySize) {
+    this.maxSize = maxSize;
+    this.maxEntrySize = Math.min(maxEntrySize, maxSize);
+    evict();
+  }
+
+  public synchronized Entry get(String key) {
+    return entries.get(key);
+  }
+
+  /**
+   * Stores the response if the server allows it and the body fits the cache.
+   *
+   * @return the stored entry, or null if the response is not cacheable
+   */
+  public Entry put(String key, HttpResponse response, byte[] body) {
+    long maxAge = getMaxAge(response);
+    Header etag = response.getFirstHeader("ETag");
+    Header lastModified = response.getFirstHeader("Last-Modified");
+    if (maxAge < 0 || (maxAge == 0 && etag == null && lastModified == null)) {
+      return null;
+    }
+
+    Header contentType = response.getFirstHeader("Content-Type");
+    Entry entry = new Entry(
+      response.getStatusLine(),
+      body,
+      contentType != null ? contentType.getValue() : null,
+      etag != null ? etag.getValue() : null,
+      lastModified != null ? lastModified.getValue() : null,
+      System.currentTimeMillis() + maxAge * 1000
+    );
+
+    synchronized (this) {
+      if (body.length > maxEntrySize) {
+        return null;
+      }
+      Entry previous = entries.put(key, entry);
+      if (previous != null) {
+        size -= previous.body.length;
+      }
+      size += body.length;
+      evict();
+    }
+    return entry;
+  }
+
+  /**
+   * Extends the freshness of an entry after the server answered 304.
+   */
+  public void revalidated(Entry entry, HttpResponse response) {
+    long maxAge = getMaxAge(response);
+    entry.expiresAt = System.currentTimeMillis() + Math.max(maxAge, 0) * 1000;
+    revalidations.incrementAndGet();
+  }
+
+  public synchronized void remove(String key) {
+    Entry previous = entries.remove(key);
+    if (previous != null) {
+      size -= previous.body.length;
+    }
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+    size = 0;
+  }
+
+  public void recordHit() {
+    hits.incrementAndGet();
+  }
+
+  public void recordMiss() {
+    misses.incrementAndGet();
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getRevalidations() {
+    return revalidations.get();
+  }
+
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  public synchronized int getEntryCount() {
+    return entries.size();
+  }
+
+  public synchronized long getSize() {
+    return size;
+  }
+
+  private void evict() {
+    Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+    while (size > maxSize && eldest.hasNext()) {
+      size -= eldest.next().getValue().body.length;
+      eldest.remove();
+      evictions.incrementAndGet();
+    }
+  }
+
+  /**
+   * @return the max-age in seconds, 0 if the response must be revalidated and
+   * -1 if it must not be stored
+   */
+  private static long getMaxAge(HttpResponse response) {
+    long maxAge = 0;
+    boolean noCache = false;
+    for (Header header : response.getHeaders("Cache-Control")) {
+      for (HeaderElement element : header.getElements()) {
+        String name = element.getName();
+        if ("no-store".equalsIgnoreCase(name)) {
+          return -1;
+        } else if ("no-cache".equalsIgnoreCase(name)) {
+          noCache = true;
+        } else if (
+          "max-age".equalsIgnoreCase(name) && element.getValue() != null
+        ) {
+          try {
+            maxAge = Math.max(0, Long.parseLong(element.getValue().trim()));
+          } catch (NumberFormatException ignored) {}
+        }
+      }
+    }
+    return noCache ? 0 : maxAge;
+  }
+}
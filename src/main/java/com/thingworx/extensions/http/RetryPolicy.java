@@ -0,0 +1,131 @@
+package com.thingworx.extensions.http;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.concurrent.ThreadLocalRandom;
+import javax.net.ssl.SSLException;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.conn.ConnectTimeoutException;
+
+/**
+ * Decides whether a failed request is sent again and how long to wait
+ * before. Only idempotent methods are retried, after connection failures
+ * and gateway errors, with an exponential backoff and full jitter so that
+ * the callers of a recovering host do not retry in lockstep.
+ *
+ * Instances are immutable.
+ */
+public class RetryPolicy {
+  public static final int DEFAULT_MAX_RETRIES = 0;
+  public static final int DEFAULT_BASE_DELAY_MILLIS = 200;
+  public static final int DEFAULT_MAX_DELAY_MILLIS = 10000;
+
+  private static final String[] IDEMPOTENT_METHODS = {
+    "GET",
+    "HEAD",
+    "OPTIONS",
+    "TRACE",
+    "PUT",
+    "DELETE"
+  };
+
+  private final int maxRetries;
+  private final long baseDelayMillis;
+  private final long maxDelayMillis;
+
+  public RetryPolicy(int maxRetries, long baseDelayMillis, long maxDelayMillis) {
+    if (maxRetries < 0 || baseDelayMillis <= 0 || maxDelayMillis <= 0) {
+      throw new IllegalArgumentException("Invalid retry settings");
+    }
+    this.maxRetries = maxRetries;
+    this.baseDelayMillis = baseDelayMillis;
+    this.maxDelayMillis = Math.max(baseDelayMillis, maxDelayMillis);
+  }
+
+  public int getMaxRetries() {
+    return maxRetries;
+  }
+
+  /**
+   * @param attempt the number of the failed attempt, starting at 0
+   */
+  public boolean canRetry(HttpRequest request, IOException ex, int attempt) {
+    if (
+      ex instanceof CircuitBreakers.OpenException ||
+      ex instanceof HostLimits.RejectedException ||
+      ex instanceof UnknownHostException ||
+      ex instanceof SSLException ||
+      // a read timeout already cost the full timeout
+      ex instanceof SocketTimeoutException ||
+      (
+        ex instanceof InterruptedIOException &&
+        !(ex instanceof ConnectTimeoutException)
+      )
+    ) {
+      return false;
+    }
+    return canRetry(request, attempt);
+  }
+
+  public boolean canRetry(HttpRequest request, int statusCode, int attempt) {
+    if (statusCode != 502 && statusCode != 503 && statusCode != 504) {
+      return false;
+    }
+    return canRetry(request, attempt);
+  }
+
+  private boolean canRetry(HttpRequest request, int attempt) {
+    if (attempt >= maxRetries) {
+      return false;
+    }
+    return isIdempotent(request);
+  }
+
+  /**
+   * @return true if the method of the request is idempotent and its body, if
+   * any, can be sent again
+   */
+  public static boolean isIdempotent(HttpRequest request) {
+    String method = request.getRequestLine().getMethod();
+    boolean idempotent = false;
+    for (String idempotentMethod : IDEMPOTENT_METHODS) {
+      if (idempotentMethod.equalsIgnoreCase(method)) {
+        idempotent = true;
+        break;
+      }
+    }
+    if (idempotent && request instanceof HttpEntityEnclosingRequest) {
+      HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+      return entity == null || entity.isRepeatable();
+    }
+    return idempotent;
+  }
+
+  /**
+   * @return a random delay between 0 and the exponential backoff of the
+   * attempt, capped to the max delay
+   */
+  public long getDelayMillis(int attempt) {
+    long backoff = baseDelayMillis << Math.min(attempt, 30);
+    if (backoff <= 0 || backoff > maxDelayMillis) {
+      backoff = maxDelayMillis;
+    }
+    return ThreadLocalRandom.current().nextLong(backoff + 1);
+  }
+
+  /**
+   * Waits before the next attempt.
+   */
+  public void backOff(int attempt) throws InterruptedIOException {
+    try {
+      Thread.sleep(getDelayMillis(attempt));
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting to retry");
+    }
+  }
+}
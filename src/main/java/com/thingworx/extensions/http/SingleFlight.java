@@ -0,0 +1,65 @@
+package com.thingworx.extensions.http;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Coalesces identical concurrent calls: while a call with a given key is in
+ * flight, the calls with the same key wait for its result instead of making
+ * their own. Results are not kept once the call completes, so a later call
+ * is executed again.
+ */
+public class SingleFlight<V> {
+  private final ConcurrentMap<String, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+  private final LongAdder coalesced = new LongAdder();
+
+  public interface Call<V> {
+    V call() throws Exception;
+  }
+
+  /**
+   * Executes the call, or waits for the one in flight with the same key.
+   * The waiting callers get the same result, or the same exception.
+   */
+  public V execute(String key, Call<V> call) throws Exception {
+    CompletableFuture<V> future = new CompletableFuture<>();
+    CompletableFuture<V> existing = inFlight.putIfAbsent(key, future);
+    if (existing != null) {
+      coalesced.increment();
+      try {
+        return existing.get();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for " + key);
+      } catch (ExecutionException ex) {
+        if (ex.getCause() instanceof Exception) {
+          throw (Exception) ex.getCause();
+        }
+        throw ex;
+      }
+    }
+
+    try {
+      V result = call.call();
+      future.complete(result);
+      return result;
+    } catch (Exception | Error ex) {
+      future.completeExceptionally(ex);
+      throw ex;
+    } finally {
+      inFlight.remove(key, future);
+    }
+  }
+
+  /**
+   * @return the number of calls that waited for another one instead of
+   * being executed
+   */
+  public long getCoalesced() {
+    return coalesced.sum();
+  }
+}
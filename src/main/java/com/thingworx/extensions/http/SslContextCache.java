@@ -0,0 +1,196 @@
+package com.thingworx.extensions.http;
+
+import com.thingworx.things.repository.FileRepositoryThing;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.net.ssl.SSLContext;
+import org.apache.http.conn.ssl.TrustSelfSignedStrategy;
+import org.apache.http.ssl.SSLContextBuilder;
+import org.apache.http.ssl.SSLContexts;
+
+/**
+ * Caches the SSL contexts built from PKCS12 client certificates stored in
+ * file repositories. A context is rebuilt when the modification stamp of its
+ * certificate file changes.
+ */
+public class SslContextCache {
+  private final ConcurrentMap<CertificateKey, CachedContext> contexts = new ConcurrentHashMap<>();
+  private final ReplacementListener listener;
+  private volatile SSLContext trustSelfSignedContext;
+
+  /**
+   * Notified when a cached context is replaced because its certificate file
+   * changed.
+   */
+  public interface ReplacementListener {
+    void contextReplaced(SSLContext oldContext);
+  }
+
+  private static final class CertificateKey {
+    private final String repository;
+    private final String path;
+    private final String passwordFingerprint;
+
+    private CertificateKey(
+      String repository,
+      String path,
+      String passwordFingerprint
+    ) {
+      this.repository = repository;
+      this.path = path;
+      this.passwordFingerprint = passwordFingerprint;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof CertificateKey)) {
+        return false;
+      }
+      CertificateKey other = (CertificateKey) o;
+      return (
+        repository.equals(other.repository) &&
+        path.equals(other.path) &&
+        Objects.equals(passwordFingerprint, other.passwordFingerprint)
+      );
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(repository, path, passwordFingerprint);
+    }
+  }
+
+  private static final class CachedContext {
+    private final String stamp;
+    private final SSLContext sslContext;
+
+    private CachedContext(String stamp, SSLContext sslContext) {
+      this.stamp = stamp;
+      this.sslContext = sslContext;
+    }
+  }
+
+  public SslContextCache(ReplacementListener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Builds an SSL context that trusts self signed certificates and, when a
+   * certificate stream is given, presents it as the client certificate.
+   */
+  public static SSLContext createSSLContext(
+    InputStream certStream,
+    String certPass
+  )
+    throws Exception {
+    SSLContextBuilder sslContextBuilder = SSLContexts
+      .custom()
+      .loadTrustMaterial(null, new TrustSelfSignedStrategy());
+    if (certStream != null) {
+      // Client keystore
+      KeyStore cks = KeyStore.getInstance("PKCS12");
+      cks.load(certStream, certPass.toCharArray());
+      sslContextBuilder.loadKeyMaterial(cks, certPass.toCharArray());
+    }
+    return sslContextBuilder.build();
+  }
+
+  /**
+   * @return the shared context used when no client certificate is configured
+   */
+  public SSLContext getTrustSelfSignedContext() throws Exception {
+    SSLContext context = trustSelfSignedContext;
+    if (context == null) {
+      synchronized (this) {
+        context = trustSelfSignedContext;
+        if (context == null) {
+          context = createSSLContext(null, null);
+          trustSelfSignedContext = context;
+        }
+      }
+    }
+    return context;
+  }
+
+  /**
+   * Returns the context for the given certificate file, loading the keystore
+   * only if it is not cached yet or the file changed since it was loaded.
+   */
+  public SSLContext getSSLContext(
+    String repositoryName,
+    final FileRepositoryThing repository,
+    final String certFilePath,
+    final String certPass
+  )
+    throws Exception {
+    CertificateKey key = new CertificateKey(
+      repositoryName,
+      certFilePath,
+      StringUtilities.fingerprint(certPass)
+    );
+    final String stamp = getModificationStamp(repository, certFilePath);
+
+    CachedContext cached = contexts.get(key);
+    if (cached != null && cached.stamp.equals(stamp)) {
+      return cached.sslContext;
+    }
+
+    final SSLContext[] replaced = new SSLContext[1];
+    try {
+      cached =
+        contexts.compute(
+          key,
+          (k, current) -> {
+            if (current != null && current.stamp.equals(stamp)) {
+              return current;
+            }
+            try {
+              SSLContext sslContext = createSSLContext(
+                new ByteArrayInputStream(repository.LoadBinary(certFilePath)),
+                certPass
+              );
+              if (current != null) {
+                replaced[0] = current.sslContext;
+              }
+              return new CachedContext(stamp, sslContext);
+            } catch (Exception ex) {
+              throw new CertificateLoadException(ex);
+            }
+          }
+        );
+    } catch (CertificateLoadException ex) {
+      throw (Exception) ex.getCause();
+    }
+
+    if (replaced[0] != null && listener != null) {
+      listener.contextReplaced(replaced[0]);
+    }
+    return cached.sslContext;
+  }
+
+  public void clear() {
+    contexts.clear();
+  }
+
+  private static String getModificationStamp(
+    FileRepositoryThing repository,
+    String path
+  ) {
+    File file = new File(repository.getRootPath(), path);
+    return file.lastModified() + ":" + file.length();
+  }
+
+  private static final class CertificateLoadException
+    extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private CertificateLoadException(Exception cause) {
+      super(cause);
+    }
+  }
+}
@@ -0,0 +1,66 @@
+package com.thingworx.extensions.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Copies response bodies into files through a fixed size buffer, so the
+ * memory used does not depend on the size of the body.
+ */
+public class StreamTransfer {
+  public static final int BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * Copies the stream into the channel starting at the given file position,
+   * until the end of the stream.
+   *
+   * @return the number of bytes written
+   */
+  public static long copy(InputStream in, FileChannel out, long position)
+    throws IOException {
+    if (position < 0) {
+      throw new IllegalArgumentException("Negative file position " + position);
+    }
+    return transfer(in, out, position);
+  }
+
+  /**
+   * Copies the stream into the channel at its current position, until the
+   * end of the stream. Channels of files opened for append must be written
+   * this way: the effect of a positional write on them is unspecified.
+   *
+   * @return the number of bytes written
+   */
+  public static long append(InputStream in, FileChannel out)
+    throws IOException {
+    return transfer(in, out, -1);
+  }
+
+  /**
+   * @param position the file position, or -1 to write at the position of
+   * the channel
+   */
+  private static long transfer(InputStream in, FileChannel out, long position)
+    throws IOException {
+    ReadableByteChannel source = Channels.newChannel(in);
+    ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    long written = 0;
+
+    while (source.read(buffer) != -1) {
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        written +=
+          position < 0
+            ? out.write(buffer)
+            : out.write(buffer, position + written);
+      }
+      buffer.clear();
+    }
+
+    return written;
+  }
+}
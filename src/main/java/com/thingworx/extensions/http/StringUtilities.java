@@ -1,11 +1,27 @@
 package com.thingworx.extensions.http;
 
-import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.NameValuePair;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.protocol.HTTP;
 
 public class StringUtilities {
+  private static final int BUFFER_SIZE = 8192;
+  /**
+   * The buffer is sized up front for at most this many chars, whatever the
+   * length announced by the server, and grows past it as the body arrives.
+   */
+  private static final long MAX_PRESIZE = 1024 * 1024;
 
   public static boolean isNullOrEmpty(String s) {
     if (s == null) {
@@ -25,62 +41,115 @@ public class StringUtilities {
 
   public static String readFromStream(InputStream stream, boolean withClose)
     throws Exception {
-    int length = 8192;
-    StringBuilder buffer = new StringBuilder();
-    InputStreamReader isr = new InputStreamReader(
-      stream,
-      StandardCharsets.UTF_8
+    return readFromStream(stream, StandardCharsets.UTF_8, -1, withClose);
+  }
+
+  /**
+   * Decodes the stream in bulk. The expected length, when known, is only a
+   * hint to size the buffer up front, capped to MAX_PRESIZE.
+   */
+  public static String readFromStream(
+    InputStream stream,
+    Charset charset,
+    long expectedLength,
+    boolean withClose
+  )
+    throws IOException {
+    StringBuilder buffer = new StringBuilder(
+      expectedLength > 0
+        ? (int) Math.min(expectedLength, MAX_PRESIZE)
+        : BUFFER_SIZE
     );
-    Throwable var5 = null;
+    Reader in = new InputStreamReader(stream, charset);
 
     try {
-      BufferedReader in = new BufferedReader(isr, length);
-      Throwable var7 = null;
-
-      try {
-        int ch;
-        while ((ch = in.read()) > -1) {
-          buffer.append((char) ch);
-        }
-
-        if (withClose) {
-          try {
-            in.close();
-            stream.close();
-          } catch (Exception ignored) {}
-        }
-      } catch (Throwable var34) {
-        var7 = var34;
-        throw var34;
-      } finally {
-        if (var7 != null) {
-          try {
-            in.close();
-          } catch (Throwable var32) {
-            var7.addSuppressed(var32);
-          }
-        } else {
-          in.close();
-        }
+      char[] chars = new char[BUFFER_SIZE];
+      int count;
+      while ((count = in.read(chars)) != -1) {
+        buffer.append(chars, 0, count);
       }
-    } catch (Throwable var36) {
-      var5 = var36;
-      throw var36;
     } finally {
-      if (var5 != null) {
+      if (withClose) {
         try {
-          isr.close();
-        } catch (Throwable var31) {
-          var5.addSuppressed(var31);
-        }
-      } else {
-        isr.close();
+          in.close();
+        } catch (IOException ignored) {}
       }
     }
 
     return buffer.toString();
   }
 
+  /**
+   * Reads the whole entity as a string, using the charset of its content type
+   * and UTF-8 when none is declared. The entity content is always closed.
+   */
+  public static String readFromEntity(HttpEntity entity) throws IOException {
+    if (entity == null) {
+      return "";
+    }
+    return readFromStream(
+      entity.getContent(),
+      getCharset(entity.getContentType()),
+      entity.getContentLength(),
+      true
+    );
+  }
+
+  /**
+   * Decodes a buffered body using the charset of the given content type.
+   */
+  public static String decode(byte[] body, String contentType) {
+    return new String(body, getCharset(contentType));
+  }
+
+  /**
+   * @return the charset declared by the content type, or UTF-8 if none is
+   */
+  public static Charset getCharset(String contentType) {
+    return getCharset(
+      contentType != null
+        ? new BasicHeader(HTTP.CONTENT_TYPE, contentType)
+        : null
+    );
+  }
+
+  public static Charset getCharset(Header contentTypeHeader) {
+    if (contentTypeHeader != null) {
+      for (HeaderElement element : contentTypeHeader.getElements()) {
+        NameValuePair charset = element.getParameterByName("charset");
+        if (charset != null && isNonEmpty(charset.getValue())) {
+          try {
+            return Charset.forName(charset.getValue().trim());
+          } catch (IllegalArgumentException ignored) {}
+        }
+      }
+    }
+    return StandardCharsets.UTF_8;
+  }
+
+  /**
+   * Returns a hex encoded SHA-256 digest of the value, or null for a null
+   * value. Used to key caches on secrets without keeping them in clear.
+   */
+  public static String fingerprint(String value) {
+    if (value == null) {
+      return null;
+    }
+    try {
+      byte[] digest = MessageDigest
+        .getInstance("SHA-256")
+        .digest(value.getBytes(StandardCharsets.UTF_8));
+      StringBuilder hex = new StringBuilder(digest.length * 2);
+      for (byte b : digest) {
+        hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+        hex.append(Character.forDigit(b & 0xF, 16));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
   public static boolean isBlank(String string) {
     if (isNullOrEmpty(string)) {
       return true;
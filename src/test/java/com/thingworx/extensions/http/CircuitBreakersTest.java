@@ -0,0 +1,121 @@
+package com.thingworx.extensions.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.apache.http.HttpHost;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CircuitBreakersTest {
+  private CircuitBreakers breakers;
+  private CircuitBreakers.Breaker breaker;
+
+  @Before
+  public void setUp() {
+    breakers = new CircuitBreakers();
+    breakers.setLimits(3, 1);
+    breaker = breakers.get(new HttpHost("example.com", 443, "https"));
+  }
+
+  private void failRequests(int count) throws Exception {
+    for (int i = 0; i < count; i++) {
+      breaker.acquire();
+      breaker.recordFailure();
+    }
+  }
+
+  private void assertRejected() {
+    try {
+      breaker.acquire();
+      fail("The breaker let the request through");
+    } catch (CircuitBreakers.OpenException expected) {}
+  }
+
+  @Test
+  public void opensAfterConsecutiveFailures() throws Exception {
+    failRequests(2);
+    assertEquals(CircuitBreakers.State.CLOSED, breaker.getState());
+
+    failRequests(1);
+
+    assertEquals(CircuitBreakers.State.OPEN, breaker.getState());
+    assertTrue(breaker.getRemainingOpenMillis() > 0);
+    assertRejected();
+    assertEquals(3, breaker.getFailures());
+    assertEquals(1, breaker.getRejected());
+  }
+
+  @Test
+  public void successResetsTheFailureCount() throws Exception {
+    failRequests(2);
+    breaker.acquire();
+    breaker.recordSuccess();
+
+    failRequests(2);
+
+    assertEquals(CircuitBreakers.State.CLOSED, breaker.getState());
+    assertEquals(2, breaker.getConsecutiveFailures());
+  }
+
+  @Test
+  public void letsASingleTrialThroughOnceTheOpenDurationElapsed()
+    throws Exception {
+    failRequests(3);
+    Thread.sleep(1100);
+    assertEquals(CircuitBreakers.State.HALF_OPEN, breaker.getState());
+
+    breaker.acquire();
+
+    assertRejected();
+    breaker.recordSuccess();
+    assertEquals(CircuitBreakers.State.CLOSED, breaker.getState());
+    breaker.acquire();
+  }
+
+  @Test
+  public void failedTrialOpensAgain() throws Exception {
+    failRequests(3);
+    Thread.sleep(1100);
+    breaker.acquire();
+
+    breaker.recordFailure();
+
+    assertEquals(CircuitBreakers.State.OPEN, breaker.getState());
+    assertRejected();
+  }
+
+  @Test
+  public void resetClosesTheBreaker() throws Exception {
+    failRequests(3);
+
+    breakers.reset(breaker.getHost());
+
+    assertEquals(CircuitBreakers.State.CLOSED, breaker.getState());
+    assertEquals(0, breaker.getConsecutiveFailures());
+    breaker.acquire();
+  }
+
+  @Test
+  public void breakersArePerHost() throws Exception {
+    failRequests(3);
+
+    CircuitBreakers.Breaker other = breakers.get(
+      new HttpHost("example.org", 443, "https")
+    );
+
+    assertSame(
+      breaker,
+      breakers.get(new HttpHost("example.com", 443, "https"))
+    );
+    assertEquals(CircuitBreakers.State.CLOSED, other.getState());
+    other.acquire();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void refusesNonPositiveLimits() {
+    breakers.setLimits(0, 1);
+  }
+}
@@ -0,0 +1,143 @@
+package com.thingworx.extensions.http;
+
+import static com.thingworx.extensions.http.TestResponses.response;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.entity.ByteArrayEntity;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class DownloadStateTest {
+  private static HttpResponse partial(String contentRange) {
+    return response(
+      HttpStatus.SC_PARTIAL_CONTENT,
+      "Content-Range",
+      contentRange
+    );
+  }
+
+  @Test
+  public void parsesContentRange() {
+    HttpResponse response = partial("bytes 100-199/1000");
+
+    assertEquals(100, DownloadState.getRangeStart(response));
+    assertEquals(1000, DownloadState.getTotalLength(response));
+  }
+
+  @Test
+  public void parsesContentRangeCaseAndSpaces() {
+    HttpResponse response = partial(" Bytes 0 - 9 / 10 ");
+
+    assertEquals(0, DownloadState.getRangeStart(response));
+    assertEquals(10, DownloadState.getTotalLength(response));
+  }
+
+  @Test
+  public void unknownTotalLength() {
+    HttpResponse response = partial("bytes 100-199/*");
+
+    assertEquals(100, DownloadState.getRangeStart(response));
+    assertEquals(-1, DownloadState.getTotalLength(response));
+  }
+
+  @Test
+  public void unsatisfiedRange() {
+    HttpResponse response = partial("bytes */1000");
+
+    assertEquals(-1, DownloadState.getRangeStart(response));
+    assertEquals(1000, DownloadState.getTotalLength(response));
+  }
+
+  @Test
+  public void invalidContentRange() {
+    assertEquals(-1, DownloadState.getRangeStart(partial("items 0-9/10")));
+    assertEquals(-1, DownloadState.getTotalLength(partial("items 0-9/10")));
+    assertEquals(-1, DownloadState.getRangeStart(partial("bytes x-9/10")));
+    assertEquals(-1, DownloadState.getTotalLength(partial("bytes 0-9")));
+  }
+
+  @Test
+  public void totalLengthOfACompleteResponse() {
+    HttpResponse response = response(HttpStatus.SC_OK);
+
+    assertEquals(-1, DownloadState.getRangeStart(response));
+    assertEquals(-1, DownloadState.getTotalLength(response));
+
+    response.setEntity(new ByteArrayEntity(new byte[42]));
+
+    assertEquals(42, DownloadState.getTotalLength(response));
+  }
+
+  @Test
+  public void prefersStrongETagAsValidator() {
+    assertEquals(
+      "\"v1\"",
+      DownloadState.getValidator(
+        response(
+          HttpStatus.SC_OK,
+          "ETag",
+          "\"v1\"",
+          "Last-Modified",
+          "Tue, 15 Nov 1994 12:45:26 GMT"
+        )
+      )
+    );
+    assertEquals(
+      "Tue, 15 Nov 1994 12:45:26 GMT",
+      DownloadState.getValidator(
+        response(
+          HttpStatus.SC_OK,
+          "ETag",
+          "W/\"v1\"",
+          "Last-Modified",
+          "Tue, 15 Nov 1994 12:45:26 GMT"
+        )
+      )
+    );
+    assertNull(
+      DownloadState.getValidator(response(HttpStatus.SC_OK, "ETag", "W/\"v1\""))
+    );
+  }
+
+  @Test
+  public void roundTripsThroughJSON() throws Exception {
+    DownloadState state = new DownloadState(
+      "https://example.com/file",
+      "\"v1\"",
+      1000,
+      0
+    );
+    state.setOffset(400);
+
+    DownloadState read = DownloadState.fromJSON(
+      new JSONObject(state.toJSON().toString())
+    );
+
+    assertEquals("https://example.com/file", read.getUrl());
+    assertEquals("\"v1\"", read.getValidator());
+    assertEquals(1000, read.getLength());
+    assertEquals(400, read.getOffset());
+    assertFalse(read.isComplete());
+    read.setOffset(1000);
+    assertTrue(read.isComplete());
+  }
+
+  @Test
+  public void invalidJSONIsNoState() throws Exception {
+    assertNull(DownloadState.fromJSON(null));
+    JSONObject json = new JSONObject();
+    json.put("url", "https://example.com/file");
+
+    assertNull(DownloadState.fromJSON(json));
+  }
+
+  @Test
+  public void unknownLengthIsNeverComplete() {
+    assertFalse(new DownloadState("u", "v", -1, 1000).isComplete());
+  }
+}
@@ -0,0 +1,188 @@
+package com.thingworx.extensions.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.http.HttpHost;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HostLimitsTest {
+  private static final HttpHost HOST = new HttpHost(
+    "example.com",
+    443,
+    "https"
+  );
+
+  private HostLimits hostLimits;
+
+  @Before
+  public void setUp() {
+    hostLimits = new HostLimits();
+  }
+
+  private void setLimit(String host, HostLimits.Limit limit) {
+    hostLimits.setLimits(Collections.singletonMap(host, limit));
+  }
+
+  private void assertRejected(HttpHost host, Long queueTimeoutMillis)
+    throws Exception {
+    try {
+      hostLimits.acquire(host, queueTimeoutMillis).close();
+      fail("The request was not rejected");
+    } catch (HostLimits.RejectedException expected) {}
+  }
+
+  @Test
+  public void tokenBucketWaitsForTheNextToken() throws Exception {
+    setLimit("example.com", new HostLimits.Limit(10, 2, 0, 1000));
+
+    long start = System.nanoTime();
+    hostLimits.acquire(HOST).close();
+    hostLimits.acquire(HOST).close();
+    hostLimits.acquire(HOST).close();
+    long third = System.nanoTime() - start;
+
+    // the third token is refilled 100 ms after the bucket is created
+    assertTrue(third >= TimeUnit.MILLISECONDS.toNanos(80));
+    assertTrue(third < TimeUnit.SECONDS.toNanos(5));
+  }
+
+  @Test
+  public void tokenBucketRejectsWithoutQueueTimeout() throws Exception {
+    setLimit("example.com", new HostLimits.Limit(1, 1, 0, 0));
+
+    hostLimits.acquire(HOST).close();
+
+    assertRejected(HOST, null);
+  }
+
+  @Test
+  public void tokenBucketRejectsWhenTheWaitExceedsTheQueueTimeout()
+    throws Exception {
+    setLimit("example.com", new HostLimits.Limit(1, 1, 0, 100));
+
+    hostLimits.acquire(HOST).close();
+
+    assertRejected(HOST, null);
+    hostLimits.acquire(HOST, 2000L).close();
+  }
+
+  @Test
+  public void concurrencySlotIsHeldUntilThePermitIsClosed() throws Exception {
+    setLimit("*", new HostLimits.Limit(0, 1, 1, 0));
+
+    HostLimits.Permit permit = hostLimits.acquire(HOST);
+    assertRejected(HOST, null);
+    permit.close();
+    permit.close();
+
+    HostLimits.Permit next = hostLimits.acquire(HOST);
+    assertRejected(HOST, null);
+    next.close();
+  }
+
+  @Test
+  public void concurrencySlotIsHeldUntilTheResponseIsClosed()
+    throws Exception {
+    setLimit("example.com:443", new HostLimits.Limit(0, 1, 1, 0));
+    AtomicInteger closed = new AtomicInteger();
+    CloseableHttpResponse response = (CloseableHttpResponse) Proxy.newProxyInstance(
+      getClass().getClassLoader(),
+      new Class<?>[] { CloseableHttpResponse.class },
+      (proxy, method, args) -> {
+        if ("close".equals(method.getName())) {
+          closed.incrementAndGet();
+        }
+        return null;
+      }
+    );
+
+    CloseableHttpResponse held = hostLimits
+      .acquire(HOST)
+      .holdUntilClosed(response);
+    assertRejected(HOST, null);
+    held.close();
+
+    assertEquals(1, closed.get());
+    hostLimits.acquire(HOST).close();
+  }
+
+  @Test
+  public void waitsForAConcurrencySlot() throws Exception {
+    setLimit("example.com", new HostLimits.Limit(0, 1, 1, 1000));
+    HostLimits.Permit permit = hostLimits.acquire(HOST);
+    new Thread(
+      () -> {
+        try {
+          Thread.sleep(100);
+        } catch (InterruptedException ignored) {}
+        permit.close();
+      }
+    )
+      .start();
+
+    long start = System.nanoTime();
+    hostLimits.acquire(HOST).close();
+
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+  }
+
+  @Test
+  public void contextQueueTimeoutOverridesTheHost() throws Exception {
+    setLimit("example.com", new HostLimits.Limit(0, 1, 1, 5000));
+    HttpContext context = new BasicHttpContext();
+    HostLimits.setQueueTimeout(context, 0);
+    HostLimits.Permit permit = hostLimits.acquire(HOST);
+
+    long start = System.nanoTime();
+    assertRejected(HOST, HostLimits.getQueueTimeout(context));
+
+    assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+    permit.close();
+    HostLimits.setQueueTimeout(context, null);
+    assertNull(HostLimits.getQueueTimeout(context));
+  }
+
+  @Test
+  public void matchesHostPortThenHostNameThenAnyHost() throws Exception {
+    Map<String, HostLimits.Limit> limits = new HashMap<>();
+    limits.put("Example.com:8443", new HostLimits.Limit(0, 1, 1, 0));
+    limits.put("example.com", new HostLimits.Limit(0, 1, 2, 0));
+    limits.put("*", new HostLimits.Limit(0, 1, 3, 0));
+    hostLimits.setLimits(limits);
+
+    assertEquals(1, countPermits(new HttpHost("example.com", 8443, "https")));
+    assertEquals(2, countPermits(HOST));
+    assertEquals(3, countPermits(new HttpHost("example.org", 443, "https")));
+  }
+
+  @Test
+  public void hostsWithoutLimitsAreNotLimited() throws Exception {
+    setLimit("example.org", new HostLimits.Limit(1, 1, 1, 0));
+
+    assertEquals(10, countPermits(HOST));
+  }
+
+  private int countPermits(HttpHost host) throws Exception {
+    int count = 0;
+    try {
+      while (count < 10) {
+        hostLimits.acquire(host);
+        count++;
+      }
+    } catch (HostLimits.RejectedException expected) {}
+    return count;
+  }
+}
@@ -0,0 +1,273 @@
+package com.thingworx.extensions.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.thingworx.common.exceptions.InvalidRequestException;
+import com.thingworx.types.collections.ValueCollection;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.http.NameValuePair;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class OAuthTokensTest {
+  /**
+   * Token server answering with numbered tokens, recording the forms.
+   */
+  private static class FakeTransport implements OAuthTokens.Transport {
+    private final List<Map<String, String>> forms = new ArrayList<>();
+    private final long expiresIn;
+    private String refreshToken;
+    private boolean refuseRefreshTokens;
+
+    private FakeTransport(long expiresIn) {
+      this.expiresIn = expiresIn;
+    }
+
+    @Override
+    public synchronized JSONObject post(
+      OAuthTokens.Client client,
+      List<NameValuePair> form
+    )
+      throws Exception {
+      Map<String, String> values = new HashMap<>();
+      for (NameValuePair pair : form) {
+        values.put(pair.getName(), pair.getValue());
+      }
+      forms.add(values);
+      if (
+        refuseRefreshTokens && "refresh_token".equals(values.get("grant_type"))
+      ) {
+        throw new IOException("invalid_grant");
+      }
+      JSONObject response = new JSONObject();
+      response.put("access_token", "token" + forms.size());
+      response.put("expires_in", expiresIn);
+      if (refreshToken != null) {
+        response.put("refresh_token", refreshToken);
+      }
+      return response;
+    }
+
+    private synchronized int getRequests() {
+      return forms.size();
+    }
+
+    private synchronized Map<String, String> getForm(int index) {
+      return forms.get(index);
+    }
+  }
+
+  private static ValueCollection row(Object... fieldsAndValues) {
+    final Map<String, Object> values = new HashMap<>();
+    for (int i = 0; i < fieldsAndValues.length; i += 2) {
+      values.put((String) fieldsAndValues[i], fieldsAndValues[i + 1]);
+    }
+    return new ValueCollection() {
+      @Override
+      public Object getValue(String name) {
+        return values.get(name);
+      }
+
+      @Override
+      public String getStringValue(String name) {
+        Object value = values.get(name);
+        return value != null ? value.toString() : null;
+      }
+    };
+  }
+
+  private static OAuthTokens.Client client(Object... extraFieldsAndValues)
+    throws InvalidRequestException {
+    Object[] fields = {
+      "name",
+      "client",
+      "tokenUrl",
+      "https://auth.example.com/token",
+      "clientId",
+      "id",
+      "clientSecret",
+      "secret",
+      "scope",
+      "read"
+    };
+    Object[] all = new Object[fields.length + extraFieldsAndValues.length];
+    System.arraycopy(fields, 0, all, 0, fields.length);
+    System.arraycopy(
+      extraFieldsAndValues,
+      0,
+      all,
+      fields.length,
+      extraFieldsAndValues.length
+    );
+    return OAuthTokens.getClient(row(all));
+  }
+
+  @Test
+  public void requestsAndCachesAClientCredentialsToken() throws Exception {
+    FakeTransport transport = new FakeTransport(3600);
+    OAuthTokens tokens = new OAuthTokens(transport, Runnable::run);
+    OAuthTokens.Client client = client();
+
+    assertEquals("token1", tokens.getAccessToken(client, null));
+    assertEquals("token1", tokens.getAccessToken(client, ""));
+
+    assertEquals(1, transport.getRequests());
+    Map<String, String> form = transport.getForm(0);
+    assertEquals("client_credentials", form.get("grant_type"));
+    assertEquals("read", form.get("scope"));
+    assertFalse(form.containsKey("client_secret"));
+  }
+
+  @Test
+  public void cachesTokensPerScope() throws Exception {
+    FakeTransport transport = new FakeTransport(3600);
+    OAuthTokens tokens = new OAuthTokens(transport, Runnable::run);
+    OAuthTokens.Client client = client();
+
+    assertEquals("token1", tokens.getAccessToken(client, null));
+    assertEquals("token2", tokens.getAccessToken(client, "write"));
+    assertEquals("token1", tokens.getAccessToken(client, "read"));
+
+    assertEquals("write", transport.getForm(1).get("scope"));
+  }
+
+  @Test
+  public void sendsCredentialsInBody() throws Exception {
+    FakeTransport transport = new FakeTransport(3600);
+    OAuthTokens tokens = new OAuthTokens(transport, Runnable::run);
+
+    tokens.getAccessToken(client("credentialsInBody", true), null);
+
+    assertEquals("id", transport.getForm(0).get("client_id"));
+    assertEquals("secret", transport.getForm(0).get("client_secret"));
+  }
+
+  @Test
+  public void concurrentRequestsAreSentOnce() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    FakeTransport transport = new FakeTransport(3600) {
+      @Override
+      public JSONObject post(
+        OAuthTokens.Client client,
+        List<NameValuePair> form
+      )
+        throws Exception {
+        release.await();
+        return super.post(client, form);
+      }
+    };
+    OAuthTokens tokens = new OAuthTokens(transport, Runnable::run);
+    OAuthTokens.Client client = client();
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<String>> results = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        results.add(executor.submit(() -> tokens.getAccessToken(client, null)));
+      }
+      Thread.sleep(200);
+      release.countDown();
+
+      for (Future<String> result : results) {
+        assertEquals("token1", result.get());
+      }
+      assertEquals(1, transport.getRequests());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void refreshesAheadOfExpiry() throws Exception {
+    // refreshed after 500 ms, expires after 1 s
+    FakeTransport transport = new FakeTransport(1);
+    transport.refreshToken = "refresh";
+    OAuthTokens tokens = new OAuthTokens(transport, Runnable::run);
+    OAuthTokens.Client client = client();
+    assertEquals("token1", tokens.getAccessToken(client, null));
+
+    Thread.sleep(600);
+
+    assertEquals("token1", tokens.getAccessToken(client, null));
+    assertEquals(2, transport.getRequests());
+    assertEquals("refresh_token", transport.getForm(1).get("grant_type"));
+    assertEquals("refresh", transport.getForm(1).get("refresh_token"));
+    assertEquals("token2", tokens.getAccessToken(client, null));
+  }
+
+  @Test
+  public void requestsANewTokenOnceExpired() throws Exception {
+    FakeTransport transport = new FakeTransport(1);
+    OAuthTokens tokens = new OAuthTokens(transport, command -> {});
+    OAuthTokens.Client client = client();
+    tokens.getAccessToken(client, null);
+
+    Thread.sleep(1100);
+
+    assertEquals("token2", tokens.getAccessToken(client, null));
+  }
+
+  @Test
+  public void invalidatedTokensAreRequestedAgain() throws Exception {
+    FakeTransport transport = new FakeTransport(3600);
+    OAuthTokens tokens = new OAuthTokens(transport, Runnable::run);
+    OAuthTokens.Client client = client();
+    tokens.getAccessToken(client, null);
+
+    tokens.invalidate("other");
+    assertEquals("token1", tokens.getAccessToken(client, null));
+    tokens.invalidate("token1");
+
+    assertEquals("token2", tokens.getAccessToken(client, null));
+    assertEquals(2, transport.getRequests());
+  }
+
+  @Test
+  public void fallsBackToClientCredentialsWhenTheRefreshTokenIsRefused()
+    throws Exception {
+    FakeTransport transport = new FakeTransport(3600);
+    transport.refuseRefreshTokens = true;
+    OAuthTokens tokens = new OAuthTokens(transport, Runnable::run);
+
+    String token = tokens.getAccessToken(
+      client("refreshToken", "revoked"),
+      null
+    );
+
+    assertEquals("token2", token);
+    assertEquals("refresh_token", transport.getForm(0).get("grant_type"));
+    assertEquals("client_credentials", transport.getForm(1).get("grant_type"));
+  }
+
+  @Test
+  public void refusesResponsesWithoutAccessToken() throws Exception {
+    OAuthTokens tokens = new OAuthTokens(
+      (client, form) -> new JSONObject(),
+      Runnable::run
+    );
+
+    try {
+      tokens.getAccessToken(client(), null);
+      fail("A token was returned");
+    } catch (InvalidRequestException expected) {}
+  }
+
+  @Test
+  public void clientsNeedATokenUrlAndAClientId() throws Exception {
+    try {
+      OAuthTokens.getClient(row("name", "client", "clientId", "id"));
+      fail("The client was accepted");
+    } catch (InvalidRequestException expected) {}
+    assertTrue(client("timeout", 0).getTimeout() > 0);
+  }
+}
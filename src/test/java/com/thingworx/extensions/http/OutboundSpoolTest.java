@@ -0,0 +1,233 @@
+package com.thingworx.extensions.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class OutboundSpoolTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final OutboundSpool.Destination destination = new OutboundSpool.Destination(
+    "https://example.com/events",
+    null,
+    null,
+    null,
+    false,
+    60
+  );
+  private final BlockingQueue<String> sent = new LinkedBlockingQueue<>();
+  private OutboundSpool spool;
+
+  @After
+  public void tearDown() {
+    if (spool != null) {
+      spool.close();
+    }
+  }
+
+  /**
+   * Opens the spool with a sender recording the batches and answering with
+   * the status code, sending on the scheduler thread.
+   */
+  private OutboundSpool open(int statusCode, int batchSize, long batchWindow)
+    throws IOException {
+    OutboundSpool spool = new OutboundSpool(
+      folder.getRoot(),
+      (destination, body) -> {
+        sent.add(body);
+        return statusCode;
+      },
+      Runnable::run
+    );
+    spool.setLimits(batchSize, batchWindow, new RetryPolicy(0, 60000, 60000));
+    return spool;
+  }
+
+  private String nextBatch() throws InterruptedException {
+    return sent.poll(5, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Waits until the queue is empty, its counters are updated before.
+   */
+  private OutboundSpool.DestinationQueue awaitEmpty()
+    throws InterruptedException {
+    OutboundSpool.DestinationQueue queue = spool.getQueues().iterator().next();
+    for (int i = 0; i < 250 && queue.getDepth() > 0; i++) {
+      Thread.sleep(20);
+    }
+    assertEquals(0, queue.getDepth());
+    return queue;
+  }
+
+  private File getLogFile() {
+    File[] logs = folder
+      .getRoot()
+      .listFiles((dir, name) -> name.endsWith(".log"));
+    assertEquals(1, logs.length);
+    return logs[0];
+  }
+
+  @Test
+  public void sendsBatchesInOrder() throws Exception {
+    spool = open(200, 3, 200);
+
+    for (int i = 1; i <= 5; i++) {
+      spool.enqueue(destination, Integer.toString(i));
+    }
+
+    assertEquals("[1,2,3]", nextBatch());
+    assertEquals("[4,5]", nextBatch());
+    assertEquals(5, awaitEmpty().getSent());
+    assertEquals(0, getLogFile().length());
+    assertEquals(0, spool.getSize());
+  }
+
+  @Test
+  public void dropsBatchesRejectedWithAClientError() throws Exception {
+    spool = open(400, 10, 0);
+
+    spool.enqueue(destination, "{\"a\":1}");
+
+    assertEquals("[{\"a\":1}]", nextBatch());
+    assertEquals(1, awaitEmpty().getDropped());
+  }
+
+  @Test
+  public void keepsFailedBatchesAcrossRestarts() throws Exception {
+    spool = open(503, 10, 200);
+    spool.enqueue(destination, "1");
+    spool.enqueue(destination, "2");
+    assertEquals("[1,2]", nextBatch());
+    spool.close();
+    sent.clear();
+
+    spool = open(200, 10, 0);
+
+    assertEquals("[1,2]", nextBatch());
+  }
+
+  @Test
+  public void doesNotSendCommittedBodiesAgain() throws Exception {
+    spool = new OutboundSpool(
+      folder.getRoot(),
+      (destination, body) -> {
+        sent.add(body);
+        return "[1]".equals(body) ? 200 : 503;
+      },
+      Runnable::run
+    );
+    spool.setLimits(1, 0, new RetryPolicy(0, 60000, 60000));
+    spool.enqueue(destination, "1");
+    assertEquals("[1]", nextBatch());
+    spool.enqueue(destination, "2");
+    assertEquals("[2]", nextBatch());
+    spool.close();
+    sent.clear();
+
+    spool = open(200, 10, 0);
+
+    assertEquals("[2]", nextBatch());
+  }
+
+  @Test
+  public void removesATruncatedLastLine() throws Exception {
+    spool = open(503, 10, 60000);
+    spool.enqueue(destination, "{\"a\":1}");
+    spool.enqueue(destination, "{\"a\":2}");
+    spool.close();
+    File log = getLogFile();
+    long length = log.length();
+    // the server stopped while the third body was written
+    try (FileOutputStream out = new FileOutputStream(log, true)) {
+      out.write("1234 {\"a\":".getBytes(StandardCharsets.UTF_8));
+    }
+
+    spool = open(200, 10, 0);
+
+    assertEquals(length, log.length());
+    assertEquals("[{\"a\":1},{\"a\":2}]", nextBatch());
+    assertNull(sent.poll(200, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void skipsInvalidLines() throws Exception {
+    spool = open(503, 10, 60000);
+    spool.enqueue(destination, "1");
+    spool.close();
+    try (FileOutputStream out = new FileOutputStream(getLogFile(), true)) {
+      out.write("invalid\n".getBytes(StandardCharsets.UTF_8));
+    }
+
+    spool = open(200, 10, 0);
+
+    assertEquals("[1]", nextBatch());
+    assertEquals(1, awaitEmpty().getDropped());
+  }
+
+  @Test
+  public void refusesBodiesOnceFull() throws Exception {
+    spool = open(503, 10, 60000);
+    spool.setMaxSize(30);
+    spool.enqueue(destination, "1");
+
+    try {
+      spool.enqueue(destination, "12345678901234567890");
+      fail("The body was queued");
+    } catch (IOException expected) {}
+    assertEquals(1, spool.getQueues().iterator().next().getDepth());
+  }
+
+  @Test
+  public void refusesCredentialHeaders() throws Exception {
+    JSONObject headers = new JSONObject();
+    headers.put("Content-Type", "application/json");
+    assertNull(OutboundSpool.findCredentialHeader(headers));
+    headers.put("authorization", "Bearer token");
+
+    assertEquals("authorization", OutboundSpool.findCredentialHeader(headers));
+    try {
+      new OutboundSpool.Destination("u", headers, null, null, false, 60);
+      fail("The credentials were accepted");
+    } catch (IllegalArgumentException expected) {}
+  }
+
+  @Test
+  public void destinationsAreKeptApart() throws Exception {
+    spool = open(200, 10, 0);
+    OutboundSpool.Destination other = new OutboundSpool.Destination(
+      "https://example.com/events",
+      null,
+      "profile",
+      null,
+      false,
+      60
+    );
+
+    spool.enqueue(destination, "1");
+    spool.enqueue(other, "2");
+
+    String first = nextBatch();
+    String second = nextBatch();
+    assertTrue(
+      ("[1]".equals(first) && "[2]".equals(second)) ||
+      ("[2]".equals(first) && "[1]".equals(second))
+    );
+    assertEquals(2, spool.getQueues().size());
+  }
+}
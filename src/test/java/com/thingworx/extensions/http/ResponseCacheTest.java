@@ -0,0 +1,190 @@
+package com.thingworx.extensions.http;
+
+import static com.thingworx.extensions.http.TestResponses.response;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ResponseCacheTest {
+  private ResponseCache cache;
+
+  @Before
+  public void setUp() {
+    cache = new ResponseCache();
+  }
+
+  @Test
+  public void storesFreshEntryWithMaxAge() {
+    ResponseCache.Entry entry = cache.put(
+      "a",
+      response(
+        HttpStatus.SC_OK,
+        "Cache-Control",
+        "public, max-age=60",
+        "Content-Type",
+        "application/json"
+      ),
+      "{}".getBytes()
+    );
+
+    assertNotNull(entry);
+    assertTrue(entry.isFresh());
+    assertEquals("application/json", entry.getContentType());
+    assertSame(entry, cache.get("a"));
+    assertEquals(1, cache.getEntryCount());
+    assertEquals(2, cache.getSize());
+  }
+
+  @Test
+  public void doesNotStoreNoStore() {
+    assertNull(
+      cache.put(
+        "a",
+        response(HttpStatus.SC_OK, "Cache-Control", "no-store, max-age=60"),
+        new byte[1]
+      )
+    );
+    assertNull(cache.get("a"));
+  }
+
+  @Test
+  public void doesNotStoreWithoutMaxAgeOrValidator() {
+    assertNull(cache.put("a", response(HttpStatus.SC_OK), new byte[1]));
+    assertNull(
+      cache.put(
+        "b",
+        response(HttpStatus.SC_OK, "Cache-Control", "max-age=0"),
+        new byte[1]
+      )
+    );
+    assertEquals(0, cache.getEntryCount());
+  }
+
+  @Test
+  public void storesStaleEntryWithValidator() {
+    ResponseCache.Entry entry = cache.put(
+      "a",
+      response(
+        HttpStatus.SC_OK,
+        "Cache-Control",
+        "no-cache, max-age=60",
+        "ETag",
+        "\"v1\"",
+        "Last-Modified",
+        "Tue, 15 Nov 1994 12:45:26 GMT"
+      ),
+      new byte[1]
+    );
+
+    assertNotNull(entry);
+    assertFalse(entry.isFresh());
+    assertEquals("\"v1\"", entry.getETag());
+    assertEquals("Tue, 15 Nov 1994 12:45:26 GMT", entry.getLastModified());
+  }
+
+  @Test
+  public void notModifiedExtendsFreshness() {
+    ResponseCache.Entry entry = cache.put(
+      "a",
+      response(HttpStatus.SC_OK, "ETag", "\"v1\""),
+      "body".getBytes()
+    );
+    assertFalse(entry.isFresh());
+
+    cache.revalidated(
+      entry,
+      response(HttpStatus.SC_NOT_MODIFIED, "Cache-Control", "max-age=60")
+    );
+
+    assertTrue(entry.isFresh());
+    assertSame(entry, cache.get("a"));
+    assertEquals("body", new String(entry.getBody()));
+    assertEquals(1, cache.getRevalidations());
+  }
+
+  @Test
+  public void notModifiedWithoutMaxAgeStaysStale() {
+    ResponseCache.Entry entry = cache.put(
+      "a",
+      response(
+        HttpStatus.SC_OK,
+        "Cache-Control",
+        "max-age=60",
+        "ETag",
+        "\"v1\""
+      ),
+      new byte[1]
+    );
+
+    cache.revalidated(entry, response(HttpStatus.SC_NOT_MODIFIED));
+
+    assertFalse(entry.isFresh());
+  }
+
+  @Test
+  public void rejectsEntriesLargerThanMaxEntrySize() {
+    cache.setLimits(100, 10);
+
+    assertNull(
+      cache.put(
+        "a",
+        response(HttpStatus.SC_OK, "Cache-Control", "max-age=60"),
+        new byte[11]
+      )
+    );
+    assertNotNull(
+      cache.put(
+        "b",
+        response(HttpStatus.SC_OK, "Cache-Control", "max-age=60"),
+        new byte[10]
+      )
+    );
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsed() {
+    cache.setLimits(20, 10);
+    HttpResponse response = response(
+      HttpStatus.SC_OK,
+      "Cache-Control",
+      "max-age=60"
+    );
+    cache.put("a", response, new byte[10]);
+    cache.put("b", response, new byte[10]);
+    cache.get("a");
+
+    cache.put("c", response, new byte[10]);
+
+    assertNotNull(cache.get("a"));
+    assertNull(cache.get("b"));
+    assertNotNull(cache.get("c"));
+    assertEquals(20, cache.getSize());
+    assertEquals(1, cache.getEvictions());
+  }
+
+  @Test
+  public void replacingAnEntryKeepsTheSize() {
+    HttpResponse response = response(
+      HttpStatus.SC_OK,
+      "Cache-Control",
+      "max-age=60"
+    );
+    cache.put("a", response, new byte[10]);
+    cache.put("a", response, new byte[4]);
+
+    assertEquals(1, cache.getEntryCount());
+    assertEquals(4, cache.getSize());
+
+    cache.remove("a");
+
+    assertEquals(0, cache.getSize());
+  }
+}
@@ -0,0 +1,103 @@
+package com.thingworx.extensions.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import javax.net.ssl.SSLHandshakeException;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.HttpHostConnectException;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.entity.StringEntity;
+import org.junit.Test;
+
+public class RetryPolicyTest {
+  private final RetryPolicy policy = new RetryPolicy(2, 100, 1000);
+  private final HttpRequest get = new HttpGet("http://example.com/");
+
+  @Test
+  public void retriesGatewayErrorsUpToMaxRetries() {
+    assertTrue(policy.canRetry(get, 502, 0));
+    assertTrue(policy.canRetry(get, 503, 1));
+    assertFalse(policy.canRetry(get, 504, 2));
+    assertFalse(policy.canRetry(get, 500, 0));
+    assertFalse(policy.canRetry(get, 429, 0));
+  }
+
+  @Test
+  public void retriesConnectionFailures() {
+    assertTrue(
+      policy.canRetry(
+        get,
+        new HttpHostConnectException(new IOException("refused"), null),
+        0
+      )
+    );
+    assertTrue(policy.canRetry(get, new ConnectTimeoutException(), 0));
+    assertTrue(policy.canRetry(get, new IOException("reset"), 1));
+    assertFalse(policy.canRetry(get, new IOException("reset"), 2));
+  }
+
+  @Test
+  public void doesNotRetryTimeoutsAndPermanentFailures() {
+    assertFalse(policy.canRetry(get, new SocketTimeoutException(), 0));
+    assertFalse(policy.canRetry(get, new InterruptedIOException(), 0));
+    assertFalse(policy.canRetry(get, new UnknownHostException(), 0));
+    assertFalse(policy.canRetry(get, new SSLHandshakeException("cert"), 0));
+  }
+
+  @Test
+  public void retriesOnlyIdempotentMethods() {
+    HttpPut put = new HttpPut("http://example.com/");
+    put.setEntity(new StringEntity("{}", "UTF-8"));
+    HttpPut streamedPut = new HttpPut("http://example.com/");
+    streamedPut.setEntity(new InputStreamEntity(System.in));
+    HttpPost post = new HttpPost("http://example.com/");
+
+    assertTrue(RetryPolicy.isIdempotent(get));
+    assertTrue(RetryPolicy.isIdempotent(put));
+    assertTrue(RetryPolicy.isIdempotent(new HttpDelete("http://example.com/")));
+    assertFalse(RetryPolicy.isIdempotent(streamedPut));
+    assertFalse(RetryPolicy.isIdempotent(post));
+    assertFalse(policy.canRetry(post, 503, 0));
+  }
+
+  @Test
+  public void delayIsBoundedByTheBackoffAndMaxDelay() {
+    for (int i = 0; i < 1000; i++) {
+      long first = policy.getDelayMillis(0);
+      assertTrue(first >= 0 && first <= 100);
+      long third = policy.getDelayMillis(2);
+      assertTrue(third >= 0 && third <= 400);
+      long capped = policy.getDelayMillis(40);
+      assertTrue(capped >= 0 && capped <= 1000);
+    }
+  }
+
+  @Test
+  public void maxDelayIsAtLeastTheBaseDelay() {
+    RetryPolicy policy = new RetryPolicy(1, 500, 100);
+
+    long max = 0;
+    for (int i = 0; i < 1000; i++) {
+      max = Math.max(max, policy.getDelayMillis(3));
+    }
+
+    assertTrue(max <= 500);
+    assertEquals(1, policy.getMaxRetries());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void refusesNegativeRetries() {
+    new RetryPolicy(-1, 100, 1000);
+  }
+}
@@ -0,0 +1,154 @@
+package com.thingworx.extensions.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+
+public class SingleFlightTest {
+  private final SingleFlight<String> singleFlight = new SingleFlight<>();
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Starts the callers with the same key, the first one blocking its call
+   * until the others wait for it.
+   */
+  private List<Future<String>> startCallers(
+    int count,
+    SingleFlight.Call<String> call
+  )
+    throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    List<Future<String>> results = new ArrayList<>();
+    results.add(
+      executor.submit(
+        () ->
+          singleFlight.execute(
+            "key",
+            () -> {
+              started.countDown();
+              release.await();
+              return call.call();
+            }
+          )
+      )
+    );
+    started.await();
+    for (int i = 1; i < count; i++) {
+      results.add(executor.submit(() -> singleFlight.execute("key", call)));
+    }
+    while (singleFlight.getCoalesced() < count - 1) {
+      Thread.sleep(5);
+    }
+    release.countDown();
+    return results;
+  }
+
+  @Test
+  public void concurrentCallsShareOneExecution() throws Exception {
+    AtomicInteger calls = new AtomicInteger();
+    String value = "value";
+
+    List<Future<String>> results = startCallers(
+      10,
+      () -> {
+        calls.incrementAndGet();
+        return value;
+      }
+    );
+
+    for (Future<String> result : results) {
+      assertSame(value, result.get());
+    }
+    assertEquals(1, calls.get());
+    assertEquals(9, singleFlight.getCoalesced());
+  }
+
+  @Test
+  public void concurrentCallsShareTheException() throws Exception {
+    IOException failure = new IOException("failed");
+
+    List<Future<String>> results = startCallers(
+      5,
+      () -> {
+        throw failure;
+      }
+    );
+
+    for (Future<String> result : results) {
+      try {
+        result.get();
+        fail("The call did not fail");
+      } catch (ExecutionException ex) {
+        assertSame(failure, ex.getCause());
+      }
+    }
+  }
+
+  @Test
+  public void completedCallsAreExecutedAgain() throws Exception {
+    AtomicInteger calls = new AtomicInteger();
+
+    singleFlight.execute("key", () -> "1" + calls.incrementAndGet());
+    String second = singleFlight.execute(
+      "key",
+      () -> "2" + calls.incrementAndGet()
+    );
+
+    assertEquals("22", second);
+    assertEquals(0, singleFlight.getCoalesced());
+  }
+
+  @Test
+  public void failedCallsAreExecutedAgain() throws Exception {
+    try {
+      singleFlight.execute(
+        "key",
+        () -> {
+          throw new IOException("failed");
+        }
+      );
+      fail("The call did not fail");
+    } catch (IOException expected) {}
+
+    assertEquals("value", singleFlight.execute("key", () -> "value"));
+  }
+
+  @Test
+  public void differentKeysAreNotCoalesced() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    Future<String> first = executor.submit(
+      () ->
+        singleFlight.execute(
+          "first",
+          () -> {
+            release.await();
+            return "first";
+          }
+        )
+    );
+
+    assertEquals("second", singleFlight.execute("second", () -> "second"));
+
+    release.countDown();
+    assertEquals("first", first.get());
+    assertEquals(0, singleFlight.getCoalesced());
+  }
+}
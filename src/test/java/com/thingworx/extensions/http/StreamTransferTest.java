@@ -0,0 +1,74 @@
+package com.thingworx.extensions.http;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class StreamTransferTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static ByteArrayInputStream stream(String content) {
+    return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static String read(File file) throws Exception {
+    return new String(
+      Files.readAllBytes(file.toPath()),
+      StandardCharsets.UTF_8
+    );
+  }
+
+  @Test
+  public void appendsAtTheEndOfTheFile() throws Exception {
+    File file = folder.newFile();
+    Files.write(file.toPath(), "partial".getBytes(StandardCharsets.UTF_8));
+
+    long written;
+    try (FileOutputStream out = new FileOutputStream(file, true)) {
+      written = StreamTransfer.append(stream(" rest"), out.getChannel());
+    }
+
+    assertEquals(5, written);
+    assertEquals("partial rest", read(file));
+  }
+
+  @Test
+  public void copiesAtThePosition() throws Exception {
+    File file = folder.newFile();
+
+    try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+      StreamTransfer.copy(stream("world"), out.getChannel(), 6);
+      StreamTransfer.copy(stream("hello "), out.getChannel(), 0);
+    }
+
+    assertEquals("hello world", read(file));
+  }
+
+  @Test
+  public void copiesBodiesLargerThanTheBuffer() throws Exception {
+    byte[] body = new byte[StreamTransfer.BUFFER_SIZE * 3 + 17];
+    for (int i = 0; i < body.length; i++) {
+      body[i] = (byte) i;
+    }
+    File file = folder.newFile();
+
+    try (FileOutputStream out = new FileOutputStream(file)) {
+      assertEquals(
+        body.length,
+        StreamTransfer.append(new ByteArrayInputStream(body), out.getChannel())
+      );
+    }
+
+    assertArrayEquals(body, Files.readAllBytes(file.toPath()));
+  }
+}
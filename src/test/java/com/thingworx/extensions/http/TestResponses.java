@@ -0,0 +1,27 @@
+package com.thingworx.extensions.http;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpResponse;
+
+/**
+ * Responses built in memory for the tests.
+ */
+final class TestResponses {
+  private TestResponses() {}
+
+  /**
+   * @param headers names and values of the headers, alternately
+   */
+  static HttpResponse response(int status, String... headers) {
+    HttpResponse response = new BasicHttpResponse(
+      HttpVersion.HTTP_1_1,
+      status,
+      null
+    );
+    for (int i = 0; i < headers.length; i += 2) {
+      response.addHeader(headers[i], headers[i + 1]);
+    }
+    return response;
+  }
+}